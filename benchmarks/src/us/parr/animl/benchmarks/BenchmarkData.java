@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.benchmarks;
+
+import us.parr.animl.data.DataTable;
+import us.parr.animl.data.Datasets;
+
+/** Find and load the datasets bundled with AniML via {@link Datasets}, which
+ *  unpacks the compressed ones on first use. Set system property animl.data
+ *  to load them from a directory instead. Dataset names like
+ *  "synthetic-100000x20" mean a synthetic table with that many rows and
+ *  predictors.
+ */
+public class BenchmarkData {
+	public static final String SYNTHETIC_PREFIX = "synthetic-";
+
+	/** Return the CSV file for dataset, such as "iris" */
+	public static String fileName(String dataset) {
+		return Datasets.file(dataset+".csv").getPath();
+	}
+
+	/** Load dataset sensing column types, as the tests do */
+	public static DataTable load(String dataset) {
+		if ( dataset.startsWith(SYNTHETIC_PREFIX) ) {
+			String[] shape = dataset.substring(SYNTHETIC_PREFIX.length()).split("x");
+			if ( shape.length!=2 ) {
+				throw new IllegalArgumentException("expecting "+SYNTHETIC_PREFIX+"ROWSxCOLUMNS not "+dataset);
+			}
+			return Datasets.synthetic(Integer.parseInt(shape[0]), Integer.parseInt(shape[1]), 10, 2, 1);
+		}
+		return Datasets.load(dataset+".csv");
+	}
+
+	/** Return the types of data's columns as the typed CSV loader wants
+	 *  them, which is all numbers. Categorical ints load as plain ints.
+	 */
+	public static DataTable.VariableType[] numericColTypes(DataTable data) {
+		DataTable.VariableType[] colTypes = data.getColTypes().clone();
+		for (int j = 0; j<colTypes.length; j++) {
+			switch ( colTypes[j] ) {
+				case CATEGORICAL_INT :
+				case UNUSED_INT :
+					colTypes[j] = DataTable.VariableType.NUMERICAL_INT;
+					break;
+				case NUMERICAL_INT :
+				case NUMERICAL_FLOAT :
+				case TARGET_CATEGORICAL_INT :
+					break;
+				default :
+					throw new IllegalArgumentException("typed CSV loading can't read "+colTypes[j]+
+					                                   " column "+data.getColNames()[j]);
+			}
+		}
+		return colTypes;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Run the JMH benchmarks like JMH's own main but write results as JSON
+ *  to jmh-result.json unless told otherwise with -rf and -rff, so runs
+ *  from different releases can be compared.
+ */
+public class BenchmarkMain {
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws RunnerException {
+		CommandLineOptions cmd;
+		try {
+			cmd = new CommandLineOptions(args);
+		}
+		catch (CommandLineOptionException e) {
+			System.err.println("Error parsing command line: "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if ( cmd.shouldHelp() ) {
+			cmd.showHelp();
+			return;
+		}
+		if ( cmd.shouldList() ) {
+			new Runner(cmd).list();
+			return;
+		}
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if ( !cmd.getResultFormat().hasValue() ) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if ( !cmd.getResult().hasValue() ) {
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		new Runner(options.build()).run();
+	}
+}
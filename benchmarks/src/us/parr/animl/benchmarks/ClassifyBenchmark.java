@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import us.parr.animl.classifiers.trees.QuickScorer;
+import us.parr.animl.classifiers.trees.RandomForest;
+import us.parr.animl.data.DataTable;
+
+import java.util.concurrent.TimeUnit;
+
+/** Time classifying every row of a dataset with a forest trained on it,
+ *  one row at a time and in batch, one row at a time with trees compiled
+ *  to bytecode, and with a {@link QuickScorer}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClassifyBenchmark {
+	@Param({"iris", "wine", "Heart-wo-NA", "poker-hand-training", "connect-4", "shuttle", "synthetic-100000x20"})
+	public String dataset;
+
+	@Param({"20"})
+	public int numTrees;
+
+	public DataTable data;
+	public int[][] rows;
+	public RandomForest rf;
+	public RandomForest compiledRF;
+	public QuickScorer quickScorer;
+	public int[] out;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.load(dataset);
+		rows = data.getRows().toArray(new int[0][]);
+		rf = new RandomForest(numTrees, 1);
+		rf.setSeed(1);
+		rf.train(new DataTable(data));
+		compiledRF = new RandomForest(numTrees, 1);
+		compiledRF.setSeed(1);
+		compiledRF.setGenerateBytecode(true);
+		compiledRF.train(new DataTable(data));
+		quickScorer = new QuickScorer(rf);
+		out = new int[rows.length];
+	}
+
+	@Benchmark
+	public void classifyEachRow(Blackhole bh) {
+		for (int[] row : rows) {
+			bh.consume(rf.classify(row));
+		}
+	}
+
+	@Benchmark
+	public void classifyEachRowCompiled(Blackhole bh) {
+		for (int[] row : rows) {
+			bh.consume(compiledRF.classify(row));
+		}
+	}
+
+	@Benchmark
+	public int[] classifyBatch() {
+		return rf.classifyBatch(data);
+	}
+
+	@Benchmark
+	public int[] classifyRowsInBatch() {
+		rf.classify(rows, out);
+		return out;
+	}
+
+	@Benchmark
+	public int[] classifyQuickScorer() {
+		quickScorer.classify(rows, out);
+		return out;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import us.parr.animl.data.DataTable;
+
+import java.util.concurrent.TimeUnit;
+
+/** Time loading CSV files with {@link DataTable#loadCSV(String, String, DataTable.VariableType[], String[], boolean)},
+ *  which senses column types, and with the typed loader
+ *  {@link DataTable#loadCSV(String, DataTable.VariableType[], boolean)}.
+ *  The typed loader only reads numbers so it has its own datasets.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+	@State(Scope.Benchmark)
+	public static class AnyCSV {
+		@Param({"iris", "wine", "Heart-wo-NA", "poker-hand-training", "connect-4", "shuttle"})
+		public String dataset;
+
+		public String fileName;
+
+		@Setup
+		public void setup() {
+			fileName = BenchmarkData.fileName(dataset);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class NumericCSV {
+		@Param({"poker-hand-training", "shuttle"})
+		public String dataset;
+
+		public String fileName;
+		public DataTable.VariableType[] colTypes;
+
+		@Setup
+		public void setup() {
+			fileName = BenchmarkData.fileName(dataset);
+			colTypes = BenchmarkData.numericColTypes(BenchmarkData.load(dataset));
+		}
+	}
+
+	@Benchmark
+	public DataTable loadCSVSensingTypes(AnyCSV csv) {
+		return DataTable.loadCSV(csv.fileName, null, null, null, true);
+	}
+
+	@Benchmark
+	public DataTable loadCSVTyped(NumericCSV csv) {
+		return DataTable.loadCSV(csv.fileName, csv.colTypes, true);
+	}
+}
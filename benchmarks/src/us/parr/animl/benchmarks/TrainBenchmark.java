@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import us.parr.animl.classifiers.trees.DecisionTree;
+import us.parr.animl.classifiers.trees.RandomForest;
+import us.parr.animl.data.DataTable;
+
+import java.util.concurrent.TimeUnit;
+
+/** Time training a decision tree and a random forest. Trees are seeded
+ *  so each iteration does the same work.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainBenchmark {
+	@Param({"iris", "wine", "Heart-wo-NA", "poker-hand-training", "connect-4", "shuttle", "synthetic-100000x20"})
+	public String dataset;
+
+	@Param({"20"})
+	public int numTrees;
+
+	@Param({"1"})
+	public int minLeafSize;
+
+	public DataTable data;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.load(dataset);
+	}
+
+	@Benchmark
+	public DecisionTree trainDecisionTree() {
+		DecisionTree tree = new DecisionTree(0, minLeafSize);
+		tree.setSeed(1);
+		tree.train(new DataTable(data)); // training reorders rows
+		return tree;
+	}
+
+	@Benchmark
+	public RandomForest trainRandomForest() {
+		RandomForest rf = new RandomForest(numTrees, minLeafSize);
+		rf.setSeed(1);
+		rf.train(data);
+		return rf;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import us.parr.animl.benchmarks.BenchmarkData;
+import us.parr.animl.data.DataTable;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_INT;
+import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_STRING;
+import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_FLOAT;
+import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_INT;
+
+/** Time finding the best split of one column at the root of a tree, the
+ *  inner loop of training. This lives in the trees package so it can
+ *  call the split search directly. A node sample size of 0 means use all
+ *  rows, which makes sorting dominate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitBenchmark {
+	/** A sample of rows at the root and the first column of some type */
+	public static class Node {
+		public DataTable data;
+		public DecisionTree.NodeSample sample = new DecisionTree.NodeSample();
+		public int j;
+		public int yi;
+		public int[] allCounts;
+		public double completeEntropy;
+
+		protected void setup(String dataset, int nodeSampleSize, DataTable.VariableType... types) {
+			data = BenchmarkData.load(dataset);
+			yi = data.getPredictedCol();
+			j = -1;
+			DataTable.VariableType[] colTypes = data.getColTypes();
+			for (int i = 0; i<colTypes.length && j<0; i++) {
+				for (DataTable.VariableType type : types) {
+					if ( i!=yi && colTypes[i]==type ) {
+						j = i;
+						break;
+					}
+				}
+			}
+			if ( j<0 ) {
+				throw new IllegalArgumentException(dataset+" has no column of the types benchmarked");
+			}
+			sample.draw(data, 0, data.size(), nodeSampleSize, new Random(1));
+			sample.countTargets(data, yi);
+			allCounts = sample.counts;
+			completeEntropy = SplitCriterion.ENTROPY.impurity(allCounts, sample.n);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class NumericNode extends Node {
+		@Param({"iris", "wine", "Heart-wo-NA", "poker-hand-training", "shuttle"})
+		public String dataset;
+
+		@Param({"20", "0"})
+		public int nodeSampleSize;
+
+		@Setup
+		public void setup() { setup(dataset, nodeSampleSize, NUMERICAL_INT, NUMERICAL_FLOAT); }
+	}
+
+	@State(Scope.Thread)
+	public static class CategoricalNode extends Node {
+		@Param({"wine", "Heart-wo-NA", "connect-4"})
+		public String dataset;
+
+		@Param({"20", "0"})
+		public int nodeSampleSize;
+
+		@Setup
+		public void setup() { setup(dataset, nodeSampleSize, CATEGORICAL_INT, CATEGORICAL_STRING); }
+	}
+
+	@Benchmark
+	public long[] sortBy(NumericNode node) {
+		return SplitBuffers.get().sortBy(node.sample, node.data, node.j);
+	}
+
+	@Benchmark
+	public DecisionTree.BestInfo bestNumericSplit(NumericNode node) {
+		return DecisionTree.bestNumericSplit(node.data, node.sample, node.j, node.yi,
+		                                     node.allCounts, node.completeEntropy,
+		                                     SplitCriterion.ENTROPY,
+		                                     new DecisionTree.BestInfo(),
+		                                     SplitBuffers.get());
+	}
+
+	@Benchmark
+	public DecisionTree.BestInfo bestCategoricalSplit(CategoricalNode node) {
+		return DecisionTree.bestCategoricalSplit(node.data, node.sample, node.j, node.yi,
+		                                         node.allCounts, node.completeEntropy,
+		                                         SplitCriterion.ENTROPY,
+		                                         new DecisionTree.BestInfo(),
+		                                         SplitBuffers.get());
+	}
+}
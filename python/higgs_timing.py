@@ -1,5 +1,5 @@
 """
-$ python python/connect4_timing.py 50 20
+$ python python/higgs_timing.py 50 20 [higgs.csv]
 """
 
 from sklearn import tree
@@ -14,8 +14,10 @@ from sklearn import tree
 import time
 import sys
 
+filename = sys.argv[3] if len(sys.argv)>3 else "/Users/parrt/data/higgs.csv"
+
 start = time.clock()
-data = pandas.read_table("/Users/parrt/data/higgs.csv", header=0, sep=",")
+data = pandas.read_table(filename, header=0, sep=",")
 stop = time.clock()
 print "Load time %f seconds" % (stop-start)
 
@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers;
+
+import us.parr.animl.data.DataTable;
+
+/** A classifier that, trained once, can estimate what it would predict
+ *  for each training row had that row been left out of training, so
+ *  leave-one-out validation doesn't need a model per row. The estimate
+ *  depends on the model; e.g., a random forest uses the trees not trained
+ *  on the row.
+ */
+public interface LeaveOneOutEstimator extends ClassifierModel {
+	/** Return the estimated held-out prediction for each row of data,
+	 *  which must be the table this was just trained on, in its current
+	 *  row order. Rows with no estimate get
+	 *  {@link us.parr.animl.classifiers.trees.DecisionTree#INVALID_CATEGORY}.
+	 */
+	int[] getLeaveOneOutPredictions(DataTable data);
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.BinaryDataTableFormat;
+import us.parr.animl.data.DataTable;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** A compact, versioned binary file format for trained decision trees
+ *  and random forests, meant for scoring. A tree is saved as a forest of
+ *  one tree. All values are little-endian:
+ *
+ *  <pre>
+ *  int magic, int version, int numTrees, int numCategories,
+ *  int numNodes, int numLeaves, int numCols, int headerLength
+ *  header: column names, types, and dictionaries; see {@link BinaryDataTableFormat#header(DataTable)}
+ *  padding to a multiple of 8
+ *  int treeStart[numTrees+1]: tree t is nodes treeStart[t]..treeStart[t+1]-1
+ *  int nodes[3*numNodes]: for each node in preorder, as in {@link FlatDecisionTree},
+ *      variable&lt;&lt;2 | kind or -1 for leaves,
+ *      threshold, category, or predicted category for leaves,
+ *      index of right child or leaf number for leaves
+ *  padding to a multiple of 8
+ *  double probabilities[numLeaves*numCategories]: leaf class distributions
+ *  </pre>
+ *
+ *  Node indexes are into the nodes of the whole forest. Loading
+ *  memory-maps the file and scores directly from the mapped nodes, so
+ *  loading takes about as long as reading the header, no matter how big
+ *  the forest, and processes loading the same file share its pages.
+ *  See {@link MappedRandomForest}.
+ */
+public class BinaryForestFormat {
+	public static final int MAGIC = 0x464D4E41; // "ANMF" in little-endian order
+	public static final int VERSION = 1;
+
+	/** Bytes in the int fields before the header */
+	protected static final int FIXED_SIZE = 8*Integer.BYTES;
+
+	/** Ints per node */
+	protected static final int NODE_SIZE = 3;
+
+	/** Save trees, which predict numCategories categories, along with the
+	 *  column metadata of data, a table with the columns they were trained on.
+	 */
+	public static void save(FlatDecisionTree[] trees, int numCategories, DataTable data, String fileName) {
+		int numNodes = 0;
+		int numLeaves = 0;
+		for (FlatDecisionTree tree : trees) {
+			numNodes += tree.getNumberOfNodes();
+			for (int i = 0; i<tree.getNumberOfNodes(); i++) {
+				if ( tree.splitVariable[i]==FlatDecisionTree.LEAF ) numLeaves++;
+			}
+		}
+		byte[] header = BinaryDataTableFormat.header(data);
+		try ( RandomAccessFile f = new RandomAccessFile(fileName, "rw");
+		      FileChannel channel = f.getChannel() )
+		{
+			f.setLength(0);
+			ByteBuffer buf = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(trees.length).putInt(numCategories);
+			buf.putInt(numNodes).putInt(numLeaves).putInt(data.getNumberOfColumns()).putInt(header.length);
+			buf.flip();
+			write(channel, buf);
+			write(channel, ByteBuffer.wrap(header));
+			write(channel, ByteBuffer.allocate(padding(FIXED_SIZE+header.length)));
+			buf.clear();
+
+			int start = 0;
+			for (FlatDecisionTree tree : trees) {
+				buf = putInt(channel, buf, start);
+				start += tree.getNumberOfNodes();
+			}
+			buf = putInt(channel, buf, start);
+
+			start = 0;
+			int leaf = 0;
+			for (FlatDecisionTree tree : trees) {
+				for (int i = 0; i<tree.getNumberOfNodes(); i++) {
+					if ( tree.splitVariable[i]==FlatDecisionTree.LEAF ) {
+						buf = putInt(channel, buf, FlatDecisionTree.LEAF);
+						buf = putInt(channel, buf, tree.value[i]);
+						buf = putInt(channel, buf, leaf++);
+					}
+					else {
+						buf = putInt(channel, buf, tree.splitVariable[i]<<2 | tree.splitKind[i]);
+						buf = putInt(channel, buf, tree.value[i]);
+						buf = putInt(channel, buf, start+tree.right[i]);
+					}
+				}
+				start += tree.getNumberOfNodes();
+			}
+			long ints = trees.length+1+(long)NODE_SIZE*numNodes;
+			if ( ints%2!=0 ) {
+				buf = putInt(channel, buf, 0);
+			}
+
+			for (FlatDecisionTree tree : trees) {
+				for (int i = 0; i<tree.getNumberOfNodes(); i++) {
+					if ( tree.splitVariable[i]!=FlatDecisionTree.LEAF ) continue;
+					double[] probabilities = tree.getLeafProbabilities(i);
+					for (int c = 0; c<numCategories; c++) {
+						if ( buf.remaining()<Double.BYTES ) {
+							flush(channel, buf);
+						}
+						buf.putDouble(c<probabilities.length ? probabilities[c] : 0.0);
+					}
+				}
+			}
+			flush(channel, buf);
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Can't write "+fileName, ioe);
+		}
+	}
+
+	public static MappedRandomForest load(String fileName) {
+		try ( RandomAccessFile f = new RandomAccessFile(fileName, "r");
+		      FileChannel channel = f.getChannel() )
+		{
+			long size = channel.size();
+			if ( size<FIXED_SIZE ) {
+				throw new IllegalArgumentException(fileName+" is not a binary model");
+			}
+			if ( size>Integer.MAX_VALUE ) {
+				throw new IllegalArgumentException(fileName+" is too big to map: "+size+" bytes");
+			}
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			file.order(ByteOrder.LITTLE_ENDIAN);
+			if ( file.getInt()!=MAGIC ) {
+				throw new IllegalArgumentException(fileName+" is not a binary model");
+			}
+			int version = file.getInt();
+			if ( version!=VERSION ) {
+				throw new IllegalArgumentException(fileName+" has unsupported version "+version);
+			}
+			int numTrees = file.getInt();
+			int numCategories = file.getInt();
+			int numNodes = file.getInt();
+			int numLeaves = file.getInt();
+			int numCols = file.getInt();
+			int headerLength = file.getInt();
+			long nodesOffset = FIXED_SIZE+headerLength+padding(FIXED_SIZE+headerLength);
+			long ints = numTrees+1+(long)NODE_SIZE*numNodes;
+			long probabilitiesOffset = nodesOffset+4*(ints+ints%2);
+			if ( probabilitiesOffset+8L*numLeaves*numCategories>size ) {
+				throw new IllegalArgumentException(fileName+" is truncated");
+			}
+			DataTable schema = BinaryDataTableFormat.readHeader(slice(file, FIXED_SIZE, headerLength), numCols);
+			return new MappedRandomForest(file, schema, numTrees, numCategories,
+			                              slice(file, nodesOffset, 4*(numTrees+1)).asIntBuffer(),
+			                              slice(file, nodesOffset+4*(numTrees+1), 4L*NODE_SIZE*numNodes).asIntBuffer(),
+			                              slice(file, probabilitiesOffset, 8L*numLeaves*numCategories).asDoubleBuffer());
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Can't open and/or read "+fileName, ioe);
+		}
+	}
+
+	/** A little-endian view of bytes offset..offset+length-1 of buf */
+	protected static ByteBuffer slice(ByteBuffer buf, long offset, long length) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position((int)offset);
+		dup.limit((int)(offset+length));
+		return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/** How many bytes to add to size to get a multiple of 8 */
+	protected static int padding(int size) {
+		return (8-size%8)%8;
+	}
+
+	protected static ByteBuffer putInt(FileChannel channel, ByteBuffer buf, int v) throws IOException {
+		if ( buf.remaining()<Integer.BYTES ) {
+			flush(channel, buf);
+		}
+		return buf.putInt(v);
+	}
+
+	protected static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		write(channel, buf);
+		buf.clear();
+	}
+
+	protected static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while ( buf.hasRemaining() ) {
+			channel.write(buf);
+		}
+	}
+}
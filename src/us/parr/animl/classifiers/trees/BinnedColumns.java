@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.DataTable;
+
+import java.util.Arrays;
+
+/** A train-time quantization of the numeric predictor columns of a table
+ *  in the style of LightGBM and XGBoost's "hist" method. Each column is cut
+ *  into at most 256 bins of roughly equal frequency and every row's value
+ *  is replaced by its bin number, stored in a byte. To find a split, a
+ *  decision tree node counts target categories per bin, which costs
+ *  O(rows + bins*categories) and needs no sort, and then considers only
+ *  splits at bin boundaries.
+ *
+ *  Bin boundaries are split values that work with the usual numeric split
+ *  test, value &lt; splitValue, so trees built from bins look and classify
+ *  just like trees built from the raw values. Bin numbers cover all rows of
+ *  the table's column storage but boundaries come only from the rows of the
+ *  table, so an instance can be shared by trees trained on subsets of it,
+ *  such as the bootstrap samples of a random forest.
+ */
+public class BinnedColumns {
+	public static final int MAX_BINS = 256;
+
+	/** bins[j][r] is the bin (0..255, as unsigned byte) of physical row r in
+	 *  column j; null if j is not a numeric predictor variable.
+	 */
+	protected final byte[][] bins;
+
+	/** splitValues[j][b] separates bin b from bin b+1; all values in bins
+	 *  0..b are less than it and all values in bins b+1.. are not.
+	 */
+	protected final double[][] splitValues;
+
+	public BinnedColumns(DataTable data, int maxBins) {
+		if ( maxBins<2 || maxBins>MAX_BINS ) {
+			throw new IllegalArgumentException("max bins must be in 2.."+MAX_BINS+": "+maxBins);
+		}
+		DataTable.VariableType[] colTypes = data.getColTypes();
+		int numPhysicalRows = data.getNumberOfPhysicalRows();
+		this.bins = new byte[colTypes.length][];
+		this.splitValues = new double[colTypes.length][];
+		int n = data.size();
+		int[] keys = new int[n];
+		for (int j = 0; j<colTypes.length; j++) {
+			DataTable.VariableType colType = colTypes[j];
+			if ( !SortedColumnIndex.isPresortedVar(colType) ) continue;
+			int[] col = data.getColumn(j);
+			for (int i = 0; i<n; i++) {
+				keys[i] = DataTable.toSortableInt(col[data.getRowIndex(i)], colType);
+			}
+			Arrays.sort(keys, 0, n);
+			double[] edges = computeSplitValues(keys, n, colType, maxBins);
+			byte[] binned = new byte[numPhysicalRows];
+			for (int r = 0; r<numPhysicalRows; r++) {
+				binned[r] = (byte)findBin(edges, toDouble(col[r], colType));
+			}
+			bins[j] = binned;
+			splitValues[j] = edges;
+		}
+	}
+
+	/** Walk the sorted values closing a bin once it holds its share of the
+	 *  n values; equal values always land in the same bin. Return the split
+	 *  values between adjacent bins: the midpoint of the largest value in one
+	 *  bin and the smallest value in the next.
+	 */
+	protected static double[] computeSplitValues(int[] sortedKeys, int n,
+	                                             DataTable.VariableType colType,
+	                                             int maxBins)
+	{
+		double[] edges = new double[maxBins-1];
+		int numEdges = 0;
+		int b = 0; // current bin
+		for (int i = 0; i<n-1 && numEdges<edges.length; i++) {
+			if ( sortedKeys[i]==sortedKeys[i+1] ) continue; // only split between distinct values
+			// bin b is full once it plus previous bins hold (b+1)/maxBins of n values
+			if ( (long)(i+1)*maxBins >= (long)(b+1)*n ) {
+				double lo = toDouble(fromSortableInt(sortedKeys[i], colType), colType);
+				double hi = toDouble(fromSortableInt(sortedKeys[i+1], colType), colType);
+				double edge = (lo+hi)/2.0;
+				if ( lo<edge && (numEdges==0 || edge>edges[numEdges-1]) ) { // e.g., -0.0 and 0.0 don't separate
+					edges[numEdges++] = edge;
+					b++;
+				}
+			}
+		}
+		return Arrays.copyOf(edges, numEdges);
+	}
+
+	/** Return the number of split values at or below value; NaN goes last. */
+	protected static int findBin(double[] edges, double value) {
+		int lo = 0;
+		int hi = edges.length;
+		while ( lo<hi ) {
+			int mid = (lo+hi) >>> 1;
+			if ( value<edges[mid] ) hi = mid;
+			else lo = mid+1;
+		}
+		return lo;
+	}
+
+	protected static double toDouble(int value, DataTable.VariableType colType) {
+		if ( colType==DataTable.VariableType.NUMERICAL_FLOAT ) {
+			return Float.intBitsToFloat(value);
+		}
+		return value;
+	}
+
+	protected static int fromSortableInt(int key, DataTable.VariableType colType) {
+		if ( colType==DataTable.VariableType.NUMERICAL_FLOAT ) {
+			return key ^ ((key >> 31) & 0x7fffffff); // same transformation reverses itself
+		}
+		return key;
+	}
+
+	/** Bin numbers for all physical rows of column j or null if j isn't binned */
+	public byte[] getBinnedColumn(int j) { return bins[j]; }
+
+	public int getNumberOfBins(int j) { return splitValues[j].length+1; }
+
+	/** The split value separating bin b from bin b+1 of column j */
+	public double getSplitValue(int j, int b) { return splitValues[j][b]; }
+}
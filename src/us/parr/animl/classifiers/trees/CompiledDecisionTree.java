@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A trained decision tree compiled to a JVM class whose classify() is
+ *  nested if-then-else statements on constants, one per node, such as:
+ *
+ *  <pre>
+ *  if ( X[3]&lt;7 ) {
+ *      if ( X[0]==2 ) return 1;
+ *      return 0;
+ *  }
+ *  return 2;
+ *  </pre>
+ *
+ *  The JIT compiles that to native code with thresholds inlined and hot
+ *  branches laid out first, which beats walking a {@link FlatDecisionTree}
+ *  for small trees. Tests are the same int comparisons as the flat tree's.
+ *
+ *  We write the class file directly. Using class file version 49 means we
+ *  don't need stack map frames. Each class gets its own class loader so it
+ *  can be unloaded with its tree.
+ */
+public abstract class CompiledDecisionTree {
+	/** HotSpot won't JIT methods with more bytecode than this
+	 *  (-XX:HugeMethodLimit), and an interpreted classify() is slower than
+	 *  the flat tree, so we don't compile trees bigger than this.
+	 */
+	public static final int MAX_CODE_SIZE = 8000;
+
+	protected static final AtomicInteger classNumber = new AtomicInteger();
+
+	/** How many bytes of bytecode classify() is */
+	protected int codeSize;
+
+	public abstract int classify(int[] X);
+
+	public int getCodeSize() { return codeSize; }
+
+	/** Compile tree or return null if it is empty or too big */
+	public static CompiledDecisionTree compile(FlatDecisionTree tree) {
+		return compile(tree, MAX_CODE_SIZE);
+	}
+
+	/** Compile tree or return null if it is empty or classify() would be more
+	 *  than maxCodeSize bytes of bytecode; maxCodeSize can't exceed 32767
+	 *  since branch offsets are 16 bits.
+	 */
+	public static CompiledDecisionTree compile(FlatDecisionTree tree, int maxCodeSize) {
+		if ( maxCodeSize<0 || maxCodeSize>Short.MAX_VALUE ) {
+			throw new IllegalArgumentException("max code size must be in 0.."+Short.MAX_VALUE+": "+maxCodeSize);
+		}
+		if ( tree.getNumberOfNodes()==0 ) {
+			return null;
+		}
+		String className = CompiledDecisionTree.class.getPackage().getName()+".GeneratedDecisionTree"+classNumber.incrementAndGet();
+		ClassFile cf = new ClassFile(className.replace('.', '/'),
+		                             CompiledDecisionTree.class.getName().replace('.', '/'));
+		if ( !cf.emit(tree, 0, maxCodeSize) ) {
+			return null;
+		}
+		byte[] bytes = cf.toByteArray();
+		try {
+			Class<?> c = new Loader().define(className, bytes);
+			CompiledDecisionTree compiled = (CompiledDecisionTree)c.getDeclaredConstructor().newInstance();
+			compiled.codeSize = cf.codeSize;
+			return compiled;
+		}
+		catch (ReflectiveOperationException | LinkageError e) {
+			throw new IllegalStateException("can't load compiled tree "+className, e);
+		}
+	}
+
+	protected static class Loader extends ClassLoader {
+		public Loader() { super(CompiledDecisionTree.class.getClassLoader()); }
+
+		public Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	/** Just enough of a class file writer for a constructor and classify() */
+	protected static class ClassFile {
+		// opcodes
+		public static final int ICONST_0 = 0x03;
+		public static final int BIPUSH = 0x10;
+		public static final int SIPUSH = 0x11;
+		public static final int LDC = 0x12;
+		public static final int LDC_W = 0x13;
+		public static final int ALOAD_0 = 0x2a;
+		public static final int ALOAD_1 = 0x2b;
+		public static final int IALOAD = 0x2e;
+		public static final int DUP = 0x59;
+		public static final int ISHR = 0x7a;
+		public static final int IAND = 0x7e;
+		public static final int IXOR = 0x82;
+		public static final int IF_ICMPNE = 0xa0;
+		public static final int IF_ICMPGE = 0xa2;
+		public static final int IRETURN = 0xac;
+		public static final int RETURN = 0xb1;
+		public static final int INVOKESPECIAL = 0xb7;
+
+		// constant pool tags
+		public static final int CONSTANT_Utf8 = 1;
+		public static final int CONSTANT_Integer = 3;
+		public static final int CONSTANT_Class = 7;
+		public static final int CONSTANT_Methodref = 10;
+		public static final int CONSTANT_NameAndType = 12;
+
+		public static final int ACC_PUBLIC = 0x0001;
+		public static final int ACC_FINAL = 0x0010;
+		public static final int ACC_SUPER = 0x0020;
+
+		protected final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		protected final DataOutputStream poolOut = new DataOutputStream(pool);
+		protected final Map<Object, Integer> poolIndexes = new HashMap<>();
+		protected int poolSize = 1; // entry 0 is unused
+
+		/** classify()'s bytecode is code[0..codeSize-1] */
+		protected byte[] code = new byte[256];
+		protected int codeSize;
+
+		protected final int thisClass, superClass;
+
+		public ClassFile(String className, String superClassName) {
+			thisClass = classRef(className);
+			superClass = classRef(superClassName);
+		}
+
+		/** Append the code for subtree i of tree to classify()'s code;
+		 *  return false if the code gets bigger than maxCodeSize.
+		 */
+		public boolean emit(FlatDecisionTree tree, int i, int maxCodeSize) {
+			if ( tree.splitVariable[i]==FlatDecisionTree.LEAF ) {
+				push(tree.value[i]);
+				write(IRETURN);
+				return codeSize<=maxCodeSize;
+			}
+			// X[v] on stack
+			write(ALOAD_1);
+			push(tree.splitVariable[i]);
+			write(IALOAD);
+			if ( tree.splitKind[i]==FlatDecisionTree.NUMERICAL_FLOAT ) {
+				// x ^= (x >> 31) & 0x7fffffff to make float bits sortable
+				write(DUP);
+				push(31);
+				write(ISHR);
+				push(0x7fffffff);
+				write(IAND);
+				write(IXOR);
+			}
+			push(tree.value[i]);
+			// branch to right child if test fails; patch offset once we know it
+			int branch = codeSize;
+			write(tree.splitKind[i]==FlatDecisionTree.CATEGORICAL ? IF_ICMPNE : IF_ICMPGE);
+			write(0);
+			write(0);
+			if ( codeSize>maxCodeSize || !emit(tree, i+1, maxCodeSize) ) {
+				return false;
+			}
+			int offset = codeSize-branch; // fits in 16 bits as maxCodeSize does
+			code[branch+1] = (byte)(offset>>8);
+			code[branch+2] = (byte)offset;
+			return emit(tree, tree.right[i], maxCodeSize);
+		}
+
+		/** Push int constant c with the shortest instruction */
+		protected void push(int c) {
+			if ( c>=-1 && c<=5 ) {
+				write(ICONST_0+c);
+			}
+			else if ( c>=Byte.MIN_VALUE && c<=Byte.MAX_VALUE ) {
+				write(BIPUSH);
+				write(c);
+			}
+			else if ( c>=Short.MIN_VALUE && c<=Short.MAX_VALUE ) {
+				write(SIPUSH);
+				write(c>>8);
+				write(c);
+			}
+			else {
+				int index = constant(c);
+				if ( index<256 ) {
+					write(LDC);
+					write(index);
+				}
+				else {
+					write(LDC_W);
+					write(index>>8);
+					write(index);
+				}
+			}
+		}
+
+		protected void write(int b) {
+			if ( codeSize==code.length ) {
+				code = Arrays.copyOf(code, 2*code.length);
+			}
+			code[codeSize++] = (byte)b;
+		}
+
+		public byte[] toByteArray() {
+			int superInit = methodRef(superClass, "<init>", "()V");
+			int initName = utf8("<init>");
+			int initType = utf8("()V");
+			int classifyName = utf8("classify");
+			int classifyType = utf8("([I)I");
+			int codeName = utf8("Code");
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try ( DataOutputStream out = new DataOutputStream(bytes) ) {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);  // minor version
+				out.writeShort(49); // major version, Java 5
+				poolOut.flush();
+				out.writeShort(poolSize);
+				pool.writeTo(out);
+				out.writeShort(ACC_PUBLIC|ACC_FINAL|ACC_SUPER);
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(0); // interfaces
+				out.writeShort(0); // fields
+				out.writeShort(2); // methods
+
+				// public <init>() { super(); }
+				byte[] init = {(byte)ALOAD_0, (byte)INVOKESPECIAL, (byte)(superInit>>8), (byte)superInit, (byte)RETURN};
+				writeMethod(out, initName, initType, codeName, 1, 1, init);
+
+				// public int classify(int[] X) { ... }
+				writeMethod(out, classifyName, classifyType, codeName, 3, 2, Arrays.copyOf(code, codeSize));
+
+				out.writeShort(0); // attributes
+			}
+			catch (IOException ioe) { // can't happen writing to memory
+				throw new IllegalStateException(ioe);
+			}
+			return bytes.toByteArray();
+		}
+
+		protected void writeMethod(DataOutputStream out, int name, int type, int codeName,
+		                           int maxStack, int maxLocals, byte[] code)
+			throws IOException
+		{
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(name);
+			out.writeShort(type);
+			out.writeShort(1); // attributes
+			out.writeShort(codeName);
+			out.writeInt(12+code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+		}
+
+		protected int utf8(String s) {
+			Integer index = poolIndexes.get(s);
+			if ( index!=null ) return index;
+			try {
+				poolOut.writeByte(CONSTANT_Utf8);
+				poolOut.writeUTF(s);
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException(ioe);
+			}
+			return add(s);
+		}
+
+		protected int constant(int c) {
+			Integer index = poolIndexes.get(c);
+			if ( index!=null ) return index;
+			try {
+				poolOut.writeByte(CONSTANT_Integer);
+				poolOut.writeInt(c);
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException(ioe);
+			}
+			return add(c);
+		}
+
+		protected int classRef(String internalName) {
+			return entry(CONSTANT_Class, utf8(internalName));
+		}
+
+		protected int methodRef(int classIndex, String name, String type) {
+			int nameAndType = entry(CONSTANT_NameAndType, utf8(name), utf8(type));
+			return entry(CONSTANT_Methodref, classIndex, nameAndType);
+		}
+
+		/** Add an entry of tag referring to other entries */
+		protected int entry(int tag, int... refs) {
+			try {
+				poolOut.writeByte(tag);
+				for (int ref : refs) {
+					poolOut.writeShort(ref);
+				}
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException(ioe);
+			}
+			return poolSize++;
+		}
+
+		protected int add(Object key) {
+			poolIndexes.put(key, poolSize);
+			return poolSize++;
+		}
+	}
+}
@@ -30,6 +30,12 @@ public class DecisionLeafNode extends DecisionTreeNode {
 	/** Track how many of each category we have in this leaf */
 	protected CountingSet<Integer> categoryCounts;
 
+	/** categoryProbabilities[c] is the fraction of records in this leaf
+	 *  with category c, computed once when the leaf is created. The array
+	 *  covers all categories of the target variable, not just those seen here.
+	 */
+	protected double[] categoryProbabilities;
+
 	public DecisionLeafNode(DataTable data, CountingSet<Integer> categoryCounts, int targetVariable) {
 		this.targetCategory = categoryCounts.argmax();
 		this.targetVariable = targetVariable;
@@ -37,6 +43,14 @@ public class DecisionLeafNode extends DecisionTreeNode {
 		this.categoryCounts = categoryCounts;
 		this.numRecords = categoryCounts.total();
 		targetCategoryDisplayValue = DataTable.getValue(data, targetCategory, targetVariable);
+		int numCategories = data.getColMax(targetVariable).intValue()+1;
+		for (Integer I : categoryCounts.keySet()) {
+			numCategories = Math.max(numCategories, I+1);
+		}
+		categoryProbabilities = new double[numCategories];
+		for (Integer I : categoryCounts.keySet()) {
+			categoryProbabilities[I] = categoryCounts.count(I) / (double)numRecords;
+		}
 	}
 
 	public int classify(int[] X) {
@@ -47,11 +61,14 @@ public class DecisionLeafNode extends DecisionTreeNode {
 	public Map<Integer, Double> classProbabilities(int[] X) {
 		Map<Integer, Double> categoryProbabilities = new HashMap<>();
 		for (Integer I : categoryCounts.keySet()) {
-			categoryProbabilities.put(I, categoryCounts.count(I) / (double)numRecords);
+			categoryProbabilities.put(I, this.categoryProbabilities[I]);
 		}
 		return categoryProbabilities;
 	}
 
+	/** Return the class distribution indexed by category; don't modify it */
+	public double[] getCategoryProbabilities() { return categoryProbabilities; }
+
 	@Override
 	public JsonObjectBuilder getJSONData() {
 		JsonObjectBuilder builder =  Json.createObjectBuilder();
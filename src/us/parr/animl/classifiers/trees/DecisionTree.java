@@ -6,7 +6,7 @@
 
 package us.parr.animl.classifiers.trees;
 
-import us.parr.animl.classifiers.ClassifierModel;
+import us.parr.animl.classifiers.LeaveOneOutEstimator;
 import us.parr.animl.data.DataPair;
 import us.parr.animl.data.DataTable;
 import us.parr.lib.ParrtStats;
@@ -15,18 +15,19 @@ import us.parr.lib.collections.CountingDenseIntSet;
 import javax.json.Json;
 import javax.json.JsonObject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-
-import static us.parr.lib.ParrtMath.minus;
-import static us.parr.lib.ParrtStats.sum;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /** A classic CART decision tree but this implementation is suitable just for
  *  classification, not regression. I extended it to handle a subset of predictor
  *  variables at each node to support random forest construction.
  */
-public class DecisionTree implements ClassifierModel {
+public class DecisionTree implements LeaveOneOutEstimator {
 	public static final int SEED = 777111333; // need randomness but use same seed to get reproducibility
 	public static final Random random = new Random(SEED);
 	public static final int INVALID_CATEGORY = -1;
@@ -50,6 +51,9 @@ public class DecisionTree implements ClassifierModel {
 
 	protected DecisionTreeNode root;
 
+	/** If not null, classify with this instead of root; see {@link #compile()} */
+	protected CompiledDecisionTree compiled;
+
 	/** 0 implies use all possible vars when searching for a split var */
 	protected int varsPerSplit;
 
@@ -58,6 +62,151 @@ public class DecisionTree implements ClassifierModel {
 	/** How much of data to examine at each node to find split point */
 	protected int nodeSampleSize = 20;
 
+	/** How to measure the impurity of target categories; see {@link SplitCriterion} */
+	protected SplitCriterion criterion = SplitCriterion.ENTROPY;
+
+	/** Sort numeric columns once before building rather than sorting
+	 *  node samples. Pays off when nodeSampleSize is large.
+	 *  See {@link SortedColumnIndex}.
+	 */
+	protected boolean presort = false;
+
+	/** If &gt; 0, quantize numeric columns into at most this many bins
+	 *  before building and search for splits only at bin boundaries.
+	 *  Takes precedence over presort for numeric columns.
+	 *  See {@link BinnedColumns}.
+	 */
+	protected int maxBins = 0;
+
+	/** If not null, each train() draws from its own generator seeded with
+	 *  this, so retraining gives the same tree. If null, use the shared
+	 *  static {@link #random} and ParrtStats' sampling, which is
+	 *  reproducible only if trees are built one at a time.
+	 */
+	protected Long seed = null;
+
+	/** If &gt; 0, build the children of nodes with at least this many rows
+	 *  concurrently and, at nodes whose sample has at least this many rows,
+	 *  evaluate candidate split variables concurrently. Uses the fork-join
+	 *  pool of the calling thread or the common pool.
+	 */
+	protected int forkThreshold = 0;
+
+	/** Build a subtree as a fork-join task; just a closure over the
+	 *  arguments of {@link #build} except that each task gets its own
+	 *  sample space.
+	 */
+	protected static class BuildTask extends RecursiveTask<DecisionTreeNode> {
+		private static final long serialVersionUID = 1L;
+
+		protected final DataTable data;
+		protected final int lo, hi;
+		protected final int varsPerSplit, minLeafSize, nodeSampleSize;
+		protected final SplitCriterion criterion;
+		protected final PresortedRows sorted;
+		protected final int start, end;
+		protected final BinnedColumns bins;
+		protected final Random treeRandom;
+		protected final int forkThreshold;
+
+		public BuildTask(DataTable data, int lo, int hi,
+		                 int varsPerSplit, int minLeafSize, int nodeSampleSize, SplitCriterion criterion,
+		                 PresortedRows sorted, int start, int end,
+		                 BinnedColumns bins, Random treeRandom, int forkThreshold)
+		{
+			this.data = data;
+			this.lo = lo;
+			this.hi = hi;
+			this.varsPerSplit = varsPerSplit;
+			this.minLeafSize = minLeafSize;
+			this.nodeSampleSize = nodeSampleSize;
+			this.criterion = criterion;
+			this.sorted = sorted;
+			this.start = start;
+			this.end = end;
+			this.bins = bins;
+			this.treeRandom = treeRandom;
+			this.forkThreshold = forkThreshold;
+		}
+
+		@Override
+		protected DecisionTreeNode compute() {
+			return build(data, lo, hi, new NodeSample(), varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+			             sorted, start, end, bins, treeRandom, forkThreshold);
+		}
+	}
+
+	/** The sample of a node's rows used to find its split, as physical
+	 *  row indexes into the table's column storage. A tree builder reuses
+	 *  one of these for every node it builds so sampling allocates nothing
+	 *  once the arrays have grown to the largest sample size.
+	 */
+	protected static class NodeSample {
+		/** rows[0..n-1] are the sampled physical rows */
+		protected int[] rows = new int[0];
+		protected int n;
+
+		/** counts[c] is the number of rows in the sample with target category c */
+		protected int[] counts = new int[0];
+
+		/** Fill rows with a sample of nodeSampleSize rows, drawn with
+		 *  replacement, from data rows lo..hi-1; or all of them if
+		 *  nodeSampleSize is 0. Without a treeRandom, draw the same rows
+		 *  as {@link DataTable#randomSubset(int)} would.
+		 */
+		public void draw(DataTable data, int lo, int hi, int nodeSampleSize, Random treeRandom) {
+			int size = hi-lo;
+			n = nodeSampleSize>0 ? Math.min(nodeSampleSize, size) : size;
+			if ( rows.length<n ) {
+				rows = new int[Math.max(n, 2*rows.length)];
+			}
+			if ( nodeSampleSize<=0 ) {
+				for (int i = 0; i<n; i++) {
+					rows[i] = data.getRowIndex(lo+i);
+				}
+			}
+			else if ( treeRandom!=null ) {
+				for (int i = 0; i<n; i++) {
+					rows[i] = data.getRowIndex(lo+treeRandom.nextInt(size));
+				}
+			}
+			else {
+				List<Integer> sample = ParrtStats.bootstrapWithRepl(data.getRowIndexes().subList(lo, hi), n);
+				for (int i = 0; i<n; i++) {
+					rows[i] = sample.get(i);
+				}
+			}
+		}
+
+		/** Count the target categories, column yi, of the sample. Return
+		 *  the number of different categories seen.
+		 */
+		public int countTargets(DataTable data, int yi) {
+			int numCats = data.getColMax(yi).intValue()+1;
+			if ( counts.length!=numCats ) {
+				counts = new int[numCats];
+			}
+			Arrays.fill(counts, 0);
+			int[] col = data.getColumn(yi);
+			int distinct = 0;
+			for (int i = 0; i<n; i++) {
+				if ( counts[col[rows[i]]]++==0 ) distinct++;
+			}
+			return distinct;
+		}
+
+		/** The target category counts as a set, for leaves */
+		public CountingDenseIntSet getTargetCounts() {
+			CountingDenseIntSet set = new CountingDenseIntSet(counts.length-1);
+			for (int c = 0; c<counts.length; c++) {
+				for (int k = 0; k<counts[c]; k++) {
+					set.add(c);
+				}
+			}
+			return set;
+		}
+	}
+
 	public DecisionTree() { this(0, 1, 20); }
 
 	public DecisionTree(int varsPerSplit, int minLeafSize) {
@@ -65,18 +214,129 @@ public class DecisionTree implements ClassifierModel {
 	}
 
 	public DecisionTree(int varsPerSplit, int minLeafSize, int nodeSampleSize) {
+		this(varsPerSplit, minLeafSize, nodeSampleSize, SplitCriterion.ENTROPY);
+	}
+
+	public DecisionTree(int varsPerSplit, int minLeafSize, int nodeSampleSize, SplitCriterion criterion) {
 		this.varsPerSplit = varsPerSplit;
 		this.minLeafSize = minLeafSize;
 		this.nodeSampleSize = Math.max(nodeSampleSize, minLeafSize+1); // can't be smaller than min node or we get a single root node
+		this.criterion = criterion;
+	}
+
+	public int classify(int[] X) {
+		if ( compiled!=null ) {
+			return compiled.classify(X);
+		}
+		if ( root==null ) { // trained on no rows
+			return INVALID_CATEGORY;
+		}
+		return root.classify(X);
+	}
+
+	/** Compile this tree to arrays for fast, allocation-free classification */
+	public FlatDecisionTree flatten() { return new FlatDecisionTree(this); }
+
+	/** Compile this tree to JVM bytecode and use that for {@link #classify(int[])}
+	 *  from now on. Return false, leaving the tree interpreted, if the tree is
+	 *  too big; see {@link CompiledDecisionTree#MAX_CODE_SIZE}.
+	 */
+	public boolean compile() {
+		compiled = CompiledDecisionTree.compile(flatten());
+		return compiled!=null;
 	}
 
-	public int classify(int[] X) { return root.classify(X); };
+	public boolean isCompiled() { return compiled!=null; }
+
+	/** Save this tree for scoring, with the column metadata of data, the
+	 *  table it was trained on; see {@link BinaryForestFormat}. Load it with
+	 *  {@link MappedRandomForest#load(String)}.
+	 */
+	public void saveBinary(String fileName, DataTable data) {
+		FlatDecisionTree flat = flatten();
+		int numCategories = 0;
+		for (int i = 0; i<flat.getNumberOfNodes(); i++) {
+			if ( flat.getLeaf(i)!=null ) {
+				numCategories = Math.max(numCategories, flat.getLeafProbabilities(i).length);
+			}
+		}
+		BinaryForestFormat.save(new FlatDecisionTree[] {flat}, numCategories, data, fileName);
+	}
 
 	@Override
 	public Map<Integer, Double> classProbabilities(int[] X) {
 		return root.classProbabilities(X);
 	}
 
+	/** Approximate leave-one-out without retraining: take each row out of
+	 *  the category counts of the training rows in the leaf it lands in and
+	 *  predict the most common category left, the smallest if tied. If the
+	 *  row was alone in its leaf, use the counts of the smallest subtree
+	 *  above it with other rows, as if that leaf's split hadn't been made.
+	 *  Counts come from running data through the tree, not from the leaves,
+	 *  which only saw a node sample. Ignores that splits chosen with the row
+	 *  might change without it, so this is optimistic for deep trees.
+	 */
+	@Override
+	public int[] getLeaveOneOutPredictions(DataTable data) {
+		int[] out = new int[data.size()];
+		FlatDecisionTree flat = flatten();
+		int n = flat.getNumberOfNodes();
+		if ( n==0 ) {
+			Arrays.fill(out, INVALID_CATEGORY);
+			return out;
+		}
+		int yi = data.getPredictedCol();
+		int numCategories = data.getColMax(yi).intValue()+1;
+		int[][] columns = new int[data.getNumberOfColumns()][];
+		for (int j = 0; j<columns.length; j++) {
+			columns[j] = data.getColumn(j);
+		}
+		// counts[i][c] is how many training rows of category c reached node i
+		int[][] counts = new int[n][numCategories];
+		int[] leaves = new int[out.length];
+		for (int i = 0; i<out.length; i++) {
+			int r = data.getRowIndex(i);
+			leaves[i] = flat.leafIndex(columns, r);
+			counts[leaves[i]][columns[yi][r]]++;
+		}
+		int[] parent = new int[n];
+		parent[0] = -1;
+		for (int i = n-1; i>=0; i--) { // children follow their parent in preorder
+			if ( flat.splitVariable[i]!=FlatDecisionTree.LEAF ) {
+				parent[i+1] = i;
+				parent[flat.right[i]] = i;
+				for (int c = 0; c<numCategories; c++) {
+					counts[i][c] = counts[i+1][c]+counts[flat.right[i]][c];
+				}
+			}
+		}
+		int[] total = new int[n];
+		for (int i = 0; i<n; i++) {
+			for (int c = 0; c<numCategories; c++) {
+				total[i] += counts[i][c];
+			}
+		}
+		for (int i = 0; i<out.length; i++) {
+			int y = columns[yi][data.getRowIndex(i)];
+			int node = leaves[i];
+			while ( total[node]<=1 && parent[node]>=0 ) {
+				node = parent[node];
+			}
+			int best = INVALID_CATEGORY;
+			int bestCount = 0;
+			for (int c = 0; c<numCategories; c++) {
+				int count = c==y ? counts[node][c]-1 : counts[node][c];
+				if ( count>bestCount ) {
+					best = c;
+					bestCount = count;
+				}
+			}
+			out[i] = best;
+		}
+		return out;
+	}
+
 	/** Build a decision tree starting with arg data and recursively
 	 *  build up children. data_i is the ith observation and the (usually) last column of
 	 *  data is the predicted (dependent) variable.  Keeping the data together
@@ -86,200 +346,485 @@ public class DecisionTree implements ClassifierModel {
 	 *  If varsPerSplit>0, select split var from random subset of size m from all variable set.
 	 */
 	public void train(DataTable data) {
-		root = build(data, varsPerSplit, minLeafSize, nodeSampleSize);
+		SortedColumnIndex index = null;
+		BinnedColumns bins = null;
+		if ( data!=null && data.size()>0 ) {
+			if ( maxBins>0 ) {
+				bins = new BinnedColumns(data, maxBins);
+			}
+			else if ( presort ) {
+				index = new SortedColumnIndex(data);
+			}
+		}
+		train(data, index, bins);
 	}
 
-	protected static DecisionTreeNode build(DataTable data, int varsPerSplit, int minLeafSize, int nodeSampleSize) {
-		if ( data==null || data.size()==0 ) { return null; }
+	/** Train using a previously-computed index, which must have been built
+	 *  from data or from a table whose rows include all of data's rows.
+	 *  This lets a random forest sort columns once for all of its trees.
+	 *  A null index means sort node samples as usual.
+	 */
+	public void train(DataTable data, SortedColumnIndex index) {
+		train(data, index, null);
+	}
+
+	/** Train using a previously-computed index and/or bins, either of
+	 *  which can be null. bins must have been built from data or from a
+	 *  table sharing its column storage. If bins is not null, index is not used.
+	 */
+	public void train(DataTable data, SortedColumnIndex index, BinnedColumns bins) {
+		compiled = null;
+		PresortedRows sorted = null;
+		int end = 0;
+		if ( bins==null && index!=null && data!=null && data.size()>0 ) {
+			sorted = new PresortedRows(index, data);
+			end = sorted.size;
+		}
+		int n = data!=null ? data.size() : 0;
+		Random treeRandom = seed!=null ? new Random(seed) : null;
+		if ( forkThreshold<=0 ) {
+			root = build(data, 0, n, new NodeSample(), varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+			             sorted, 0, end, bins, treeRandom, 0);
+			return;
+		}
+		// concurrent builds must not share a generator; default to a fixed seed
+		Random random = treeRandom!=null ? treeRandom : new Random(SEED);
+		BuildTask task = new BuildTask(data, 0, n, varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+		                               sorted, 0, end, bins, random, forkThreshold);
+		root = ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+	}
+
+	public void setPresort(boolean presort) { this.presort = presort; }
 
-		// sample from data to get subset for finding best split at this node;
-		// track original though as that is what we split and use to build
-		// the left/right children.
-		DataTable original = data;
-		if ( nodeSampleSize>0 ) {
-//			List<int[]> out = new ArrayList<>(nodeSampleSize);
-//			ParrtStats.bootstrapWithRepl(data.getRows(), out, null);
-//			data = new DataTable(data, );
-			data = data.randomSubset(Math.min(nodeSampleSize, data.size()));
+	/** Set to 0 to split on raw values (the default) or 2..256 to use bins */
+	public void setMaxBins(int maxBins) {
+		if ( maxBins!=0 && (maxBins<2 || maxBins>BinnedColumns.MAX_BINS) ) {
+			throw new IllegalArgumentException("max bins must be 0 or in 2.."+BinnedColumns.MAX_BINS+": "+maxBins);
 		}
+		this.maxBins = maxBins;
+	}
+
+	/** Give this tree its own random number generator so that building it
+	 *  is reproducible no matter what other trees are built concurrently.
+	 */
+	public void setSeed(long seed) { this.seed = seed; }
+
+	/** Build in parallel at nodes with at least n rows; 0 (the default)
+	 *  builds serially. The tree depends on n but not on the number of
+	 *  threads. Without a seed, the tree is seeded with {@link #SEED}.
+	 */
+	public void setForkThreshold(int n) {
+		if ( n<0 ) {
+			throw new IllegalArgumentException("fork threshold can't be negative: "+n);
+		}
+		this.forkThreshold = n;
+	}
+
+	protected static DecisionTreeNode build(DataTable data, int varsPerSplit, int minLeafSize, int nodeSampleSize) {
+		int n = data!=null ? data.size() : 0;
+		return build(data, 0, n, new NodeSample(), varsPerSplit, minLeafSize, nodeSampleSize,
+		             SplitCriterion.ENTROPY, null, 0, 0, null, null, 0);
+	}
 
-		int N = data.size();
+	/** Build a subtree for rows lo..hi-1 of data. Splitting a node
+	 *  partitions its rows of data in place so each node is just a range of
+	 *  data's rows; no tables are created. sample is scratch space for the
+	 *  node's sample, reused by all nodes built on the same thread.
+	 *
+	 *  If sorted is not null, sorted.rows[j][start..end-1] holds the distinct
+	 *  rows of the node sorted by numeric column j. If bins is not null, search
+	 *  for numeric splits with per-bin category counts. If treeRandom is not
+	 *  null, use it for all sampling instead of the shared generators.
+	 *  If forkThreshold &gt; 0, we must be running in a fork-join pool.
+	 */
+	protected static DecisionTreeNode build(DataTable data, int lo, int hi, NodeSample sample,
+	                                        int varsPerSplit, int minLeafSize, int nodeSampleSize,
+	                                        SplitCriterion criterion,
+	                                        PresortedRows sorted, int start, int end,
+	                                        BinnedColumns bins, Random treeRandom, int forkThreshold)
+	{
+		if ( data==null || hi<=lo ) { return null; }
+
+		// sample rows lo..hi-1 to find best split at this node; we split
+		// and build the children from all rows though.
+		sample.draw(data, lo, hi, nodeSampleSize, treeRandom);
+
+		int N = sample.n;
 		int yi = data.getPredictedCol(); // last index is usually the target variable
 
 		// if all predict same category or only one row of data,
 		// create leaf predicting that
-		// TODO: valueCountsInColumn() is another O(n) walk of all data rows! try to remove
-		CountingDenseIntSet completeCategoryCounts = (CountingDenseIntSet)data.valueCountsInColumn(yi);
-		if ( completeCategoryCounts.size()==1 || data.size()<=minLeafSize ) {
-			DecisionTreeNode t = new DecisionLeafNode(data, completeCategoryCounts, yi);
+		int numCategoriesSeen = sample.countTargets(data, yi);
+		if ( numCategoriesSeen==1 || N<=minLeafSize ) {
+			DecisionTreeNode t = new DecisionLeafNode(data, sample.getTargetCounts(), yi);
 			return t;
 		}
+		int[] allCounts = sample.counts;
 
 		// When subsetting, make sure that we compare gains in bestCategoricalSplit()
 		// and bestNumericSplit() to the same overall entropy.
-		double complete_entropy = completeCategoryCounts.entropy();
+		double complete_entropy = criterion.impurity(allCounts, N);
 
 		if ( debug ) System.out.printf("entropy of all %d values = %.2f\n", N, complete_entropy);
 		BestInfo best = new BestInfo();
 		// Non-random forest decision trees do just: for (int i=0; i<M; i++) {
 		// but RF must use a subset m << M of predictor variables so this is
 		// a generalization
-		List<Integer> indexes = data.getSubsetOfVarIndexes(varsPerSplit, random); // consider all or a subset of M variables
-		for (Integer j : indexes) { // for each variable i
-			// The goal is to find the lowest expected entropy for all possible
-			// values of predictor variable j.  Then we compare best for j against
-			// best for any variable
-			DataTable.VariableType colType = data.getColTypes()[j];
-			BestInfo bestj;
-			if ( DataTable.isCategoricalVar(colType) ) {
-				// TODO: only do if <= 5 levels else treat as numeric int
-				bestCategoricalSplit(data, j, yi, completeCategoryCounts, complete_entropy, best);
-			}
-			else {
-				bestNumericSplit(data, j, yi, completeCategoryCounts, complete_entropy, best);
+		List<Integer> indexes = // consider all or a subset of M variables
+			data.getSubsetOfVarIndexes(varsPerSplit, treeRandom!=null ? treeRandom : random);
+		// A linear scan of the node's presorted rows beats sorting the
+		// sample unless the sample is much smaller than the node.
+		boolean scanPresorted = sorted!=null && end-start <= N * (32-Integer.numberOfLeadingZeros(N));
+		if ( scanPresorted ) {
+			sorted.addSample(sample.rows, N);
+		}
+		if ( forkThreshold>0 && N>=forkThreshold && indexes.size()>1 ) {
+			best = bestSplitInParallel(data, sample, indexes, yi, allCounts, complete_entropy, criterion,
+			                           sorted, start, end, scanPresorted, bins);
+		}
+		else {
+			for (Integer j : indexes) { // for each variable i
+				// The goal is to find the lowest expected entropy for all possible
+				// values of predictor variable j.  Then we compare best for j against
+				// best for any variable
+				bestSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, best,
+				          sorted, start, end, scanPresorted, bins);
 			}
 		}
+		if ( scanPresorted ) {
+			sorted.removeSample(sample.rows, N);
+		}
 		if ( best.gain>0.0 ) {
 			if ( debug ) {
 				System.out.printf("FINAL best is var %s val %s gain=%.2f\n",
-				                  original.getColNames()[best.var], best.val, best.gain);
+				                  data.getColNames()[best.var], best.val, best.gain);
 			}
-			DataPair split;
+			// split is expensive, do it only after we get best var/val
+			int mid;
 			DecisionSplitNode t;
-			DataTable.VariableType colType = original.getColTypes()[best.var];
+			DataTable.VariableType colType = data.getColTypes()[best.var];
 			if ( DataTable.isCategoricalVar(colType) ) {
-				// split is expensive, do it only after we get best var/val
-				split = categoricalSplit(original, best.var, best.cat);
-				t = new DecisionCategoricalSplitNode(original, best.var, colType, best.cat);
+				mid = data.categoricalPartition(best.var, best.cat, lo, hi-1);
+				t = new DecisionCategoricalSplitNode(data, best.var, colType, best.cat);
 			}
 			else {
 				if ( colType==DataTable.VariableType.NUMERICAL_FLOAT ) {
-					split = numericalFloatSplit(original, best.var, best.val);
+					mid = data.numericalFloatPartition(best.var, best.val, lo, hi-1);
 				}
 				else {
-					split = numericalIntSplit(original, best.var, best.val);
+					mid = data.numericalIntPartition(best.var, best.val, lo, hi-1);
 				}
-				t = new DecisionNumericalSplitNode(original, best.var, colType, best.val);
+				t = new DecisionNumericalSplitNode(data, best.var, colType, best.val);
 			}
 			t.numRecords = N;
 			t.entropy = (float)complete_entropy;
-			if ( split.region2.size()==0 ) {
-				System.out.println("what?");
+			// the sample has rows on both sides and came from lo..hi-1
+			assert mid>lo && mid<hi : "split of rows "+lo+".."+(hi-1)+" left one side empty";
+			int sortedMid = start;
+			if ( sorted!=null ) {
+				sortedMid = sorted.partition(start, end, data, best.var, colType, best.val, best.cat);
+			}
+			if ( forkThreshold>0 && hi-lo>=forkThreshold ) {
+				// Children sample independently so give each its own generator.
+				// Their rows are disjoint ranges of data and sorted so they
+				// can partition in place without interfering.
+				Random leftRandom = new Random(treeRandom.nextLong());
+				Random rightRandom = new Random(treeRandom.nextLong());
+				BuildTask left = new BuildTask(data, lo, mid, varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+				                               sorted, start, sortedMid, bins, leftRandom, forkThreshold);
+				BuildTask right = new BuildTask(data, mid, hi, varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+				                                sorted, sortedMid, end, bins, rightRandom, forkThreshold);
+				left.fork();
+				t.right = right.compute();
+				t.left = left.join();
+			}
+			else {
+				t.left = build(data, lo, mid, sample, varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+				               sorted, start, sortedMid, bins, treeRandom, forkThreshold);
+				t.right = build(data, mid, hi, sample, varsPerSplit, minLeafSize, nodeSampleSize, criterion,
+				                sorted, sortedMid, end, bins, treeRandom, forkThreshold);
 			}
-			t.left = build(split.region1,  varsPerSplit, minLeafSize, nodeSampleSize);
-			t.right = build(split.region2, varsPerSplit, minLeafSize, nodeSampleSize);
 			return t;
 		}
 		// we would gain nothing by splitting, make a leaf predicting majority vote
+		CountingDenseIntSet completeCategoryCounts = sample.getTargetCounts();
 		int majorityVote = completeCategoryCounts.argmax();
 		if ( debug ) {
 			System.out.printf("FINAL no improvement; make leaf predicting %s\n",
-			                  DataTable.getValue(original,majorityVote,yi));
+			                  DataTable.getValue(data,majorityVote,yi));
 		}
-		DecisionTreeNode t = new DecisionLeafNode(original, completeCategoryCounts, yi);
+		DecisionTreeNode t = new DecisionLeafNode(data, completeCategoryCounts, yi);
 		return t;
 	}
 
-	protected static BestInfo bestNumericSplit(DataTable data, int j, int yi,
-	                                           CountingDenseIntSet completePredictionCounts,
+	/** Find the best split for variable j and update best if it's better.
+	 *  allCounts[c] is the number of sample rows with target category c.
+	 */
+	protected static BestInfo bestSplit(DataTable data, NodeSample sample, int j, int yi,
+	                                    int[] allCounts,
+	                                    double complete_entropy,
+	                                    SplitCriterion criterion,
+	                                    BestInfo best,
+	                                    PresortedRows sorted, int start, int end, boolean scanPresorted,
+	                                    BinnedColumns bins)
+	{
+		DataTable.VariableType colType = data.getColTypes()[j];
+		SplitBuffers buffers = SplitBuffers.get();
+		if ( DataTable.isCategoricalVar(colType) ) {
+			// TODO: only do if <= 5 levels else treat as numeric int
+			return bestCategoricalSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, best, buffers);
+		}
+		else if ( bins!=null ) {
+			return bestBinnedSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, best, buffers, bins);
+		}
+		else if ( scanPresorted ) {
+			return bestNumericSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, best, buffers,
+			                        sorted, start, end);
+		}
+		return bestNumericSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, best, buffers);
+	}
+
+	/** Evaluate each variable in a separate task with its own BestInfo.
+	 *  Combine the results in variable order so we pick the same split
+	 *  as the serial loop.
+	 */
+	protected static BestInfo bestSplitInParallel(DataTable data, NodeSample sample, List<Integer> indexes, int yi,
+	                                              int[] allCounts,
+	                                              double complete_entropy,
+	                                              SplitCriterion criterion,
+	                                              PresortedRows sorted, int start, int end, boolean scanPresorted,
+	                                              BinnedColumns bins)
+	{
+		List<RecursiveTask<BestInfo>> tasks = new ArrayList<>(indexes.size());
+		for (Integer j : indexes) {
+			tasks.add(new RecursiveTask<BestInfo>() {
+				@Override
+				protected BestInfo compute() {
+					return bestSplit(data, sample, j, yi, allCounts, complete_entropy, criterion, new BestInfo(),
+					                 sorted, start, end, scanPresorted, bins);
+				}
+			});
+		}
+		BestInfo best = new BestInfo();
+		for (RecursiveTask<BestInfo> task : ForkJoinTask.invokeAll(tasks)) {
+			BestInfo bestj = task.join();
+			if ( bestj.gain>best.gain ) {
+				best = bestj;
+			}
+		}
+		return best;
+	}
+
+	protected static BestInfo bestNumericSplit(DataTable data, NodeSample sample, int j, int yi,
+	                                           int[] allCounts,
 	                                           double complete_entropy,
-	                                           BestInfo best)
+	                                           SplitCriterion criterion,
+	                                           BestInfo best,
+	                                           SplitBuffers buffers)
 	{
-		int n = data.size();
+		int n = sample.n;
 		// Rather than splitting the data table for each unique value of this variable
 		// (which would be O(n^2)), we sort on this variable and then
-		// walk the data records, keeping track of the predicted category counts.
-		// We keep a snapshot of the category counts every time the predictor variable
-		// changes in the sorted list.
-		data.sortBy(j);
-
-		int[] allCounts = completePredictionCounts.toDenseArray();
+		// walk the data records, moving each record's target category from the
+		// greater-than counts to the less-than counts. At every change in the
+		// predictor variable, the counts describe splitting there.
+		long[] keys = buffers.sortBy(sample, data, j);
 
 		// look for discontinuities (transitions) in predictor var values,
 		// computing less than, greater than entropy for each from target cat counts;
 		// track best split
 		DataTable.VariableType colType = data.getColTypes()[j];
-		int targetCatMaxValue = (Integer) data.getColMax(yi);
-		int[] currentCounts = new int[targetCatMaxValue+1];
-		int[] greaterThanCounts = new int[targetCatMaxValue+1]; // allocate this just once
-		for (int i = 0; i<n; i++) { // walk all records, updating currentCounts
+		buffers.startCounts(allCounts, allCounts.length);
+		int[] col = data.getColumn(j);
+		int[] targetCol = data.getColumn(yi);
+		for (int i = 0; i<n; i++) { // walk all records, updating counts
+			int r = SplitBuffers.rowOf(keys[i]);
 			// note; if all values in col j are the same, then we don't enter this IF and return zeroed best
-			if ( i>0 && data.compare(i-1, i, j)<0 ) { // if row i-1 < row i, discontinuity in predictor var
+			if ( i>0 && SplitBuffers.keyOf(keys[i-1])<SplitBuffers.keyOf(keys[i]) ) { // discontinuity in predictor var
+				int prev = SplitBuffers.rowOf(keys[i-1]);
 				double splitValue; // midpoint between new value and previous
 				if ( colType==DataTable.VariableType.NUMERICAL_INT ) {
-					splitValue = (data.getAsInt(i, j)+data.getAsInt(i-1, j))/2.0; // assumes col j sorted!
+					splitValue = (col[r]+col[prev])/2.0;
 				}
 				else {
-					splitValue = (data.getAsFloat(i, j)+data.getAsFloat(i-1, j))/2.0;
+					splitValue = (DataTable.getAsFloat(col[r])+DataTable.getAsFloat(col[prev]))/2.0;
 				}
-				int[] lessThanCounts = currentCounts;
 				int n1 = i; // how many observations less than current discontinuity value
-				int n2 = n - i;
-				minus(allCounts, lessThanCounts, greaterThanCounts);
-				double expectedEntropyValue = expectedEntropy(lessThanCounts, n1, greaterThanCounts, n2);
-				double gain = complete_entropy - expectedEntropyValue;
-				if ( gain>best.gain ) {
-					best.gain = gain;
-					best.var = j;
-					best.val = splitValue;
+				considerNumericSplit(data, j, splitValue, buffers.lessThanCounts, n1,
+				                     buffers.greaterThanCounts, n-n1, complete_entropy, criterion, best);
+			}
+			buffers.moveLeft(targetCol[r], 1);
+		}
+
+		return best;
+	}
+
+	/** Same as {@link #bestNumericSplit(DataTable, NodeSample, int, int, int[], double, SplitCriterion, BestInfo, SplitBuffers)}
+	 *  but walk the node's presorted rows instead of sorting the sample.
+	 *  Each row counts as many times as it appears in the sample so we
+	 *  see the same discontinuities and category counts, and so find the same split.
+	 */
+	protected static BestInfo bestNumericSplit(DataTable data, NodeSample sample, int j, int yi,
+	                                           int[] allCounts,
+	                                           double complete_entropy,
+	                                           SplitCriterion criterion,
+	                                           BestInfo best,
+	                                           SplitBuffers buffers,
+	                                           PresortedRows sorted, int start, int end)
+	{
+		int n = sample.n;
+		DataTable.VariableType colType = data.getColTypes()[j];
+		buffers.startCounts(allCounts, allCounts.length);
+		int[] rows = sorted.rows[j];
+		int[] weights = sorted.weights;
+		int[] col = data.getColumn(j);
+		int[] targetCol = data.getColumn(yi);
+		int n1 = 0;      // how many sample observations seen so far
+		int prev = -1;   // physical row of previous sampled observation
+		for (int k = start; k<end; k++) {
+			int r = rows[k];
+			int w = weights[r];
+			if ( w==0 ) continue; // not in the sample
+			if ( prev>=0 && data.compare(col[prev], col[r], colType)<0 ) {
+				double splitValue; // midpoint between new value and previous
+				if ( colType==DataTable.VariableType.NUMERICAL_INT ) {
+					splitValue = (col[r]+col[prev])/2.0;
 				}
-				String var = data.getColNames()[j];
-				if ( debug ) {
-					double r1_entropy = ParrtStats.entropy(lessThanCounts);
-					double r2_entropy = ParrtStats.entropy(greaterThanCounts);
-					System.out.printf("Entropies var=%13s val=%.2f r1=%d/%d*%.2f r2=%d/%d*%.2f, ExpEntropy=%.2f gain=%.2f\n",
-					                  var, splitValue, n1, n1+n2, r1_entropy, n2, n1+n2, r2_entropy, expectedEntropyValue, gain);
+				else {
+					splitValue = (DataTable.getAsFloat(col[r])+DataTable.getAsFloat(col[prev]))/2.0;
 				}
+				considerNumericSplit(data, j, splitValue, buffers.lessThanCounts, n1,
+				                     buffers.greaterThanCounts, n-n1, complete_entropy, criterion, best);
+			}
+			buffers.moveLeft(targetCol[r], w);
+			n1 += w;
+			prev = r;
+		}
+
+		return best;
+	}
+
+	/** Like {@link #bestNumericSplit(DataTable, NodeSample, int, int, int[], double, SplitCriterion, BestInfo, SplitBuffers)}
+	 *  but count target categories per bin of column j rather than sorting
+	 *  the sample. Between two non-empty bins, split at the bin boundary
+	 *  halfway across any empty bins in between.
+	 */
+	protected static BestInfo bestBinnedSplit(DataTable data, NodeSample sample, int j, int yi,
+	                                          int[] allCounts,
+	                                          double complete_entropy,
+	                                          SplitCriterion criterion,
+	                                          BestInfo best,
+	                                          SplitBuffers buffers,
+	                                          BinnedColumns bins)
+	{
+		int n = sample.n;
+		int numCats = allCounts.length;
+		int numBins = bins.getNumberOfBins(j);
+		byte[] binnedCol = bins.getBinnedColumn(j);
+		int[] targetCol = data.getColumn(yi);
+		int[] histogram = buffers.table(numBins*numCats); // category counts for bin b at b*numCats
+		int[] binSizes = buffers.sizes(numBins);
+		for (int i = 0; i<n; i++) {
+			int r = sample.rows[i];
+			int b = binnedCol[r] & 0xFF;
+			histogram[b*numCats+targetCol[r]]++;
+			binSizes[b]++;
+		}
+		buffers.startCounts(allCounts, numCats);
+		int n1 = 0;
+		int prevBin = -1;
+		for (int b = 0; b<numBins; b++) {
+			if ( binSizes[b]==0 ) continue;
+			if ( prevBin>=0 ) {
+				double splitValue = bins.getSplitValue(j, (prevBin+b-1)/2);
+				considerNumericSplit(data, j, splitValue, buffers.lessThanCounts, n1,
+				                     buffers.greaterThanCounts, n-n1, complete_entropy, criterion, best);
+			}
+			for (int c = 0; c<numCats; c++) {
+				buffers.moveLeft(c, histogram[b*numCats+c]);
 			}
-			int targetCat = data.getAsInt(i, yi);
-			currentCounts[targetCat]++;
+			n1 += binSizes[b];
+			prevBin = b;
 		}
 
 		return best;
 	}
 
-//	static int[][] catCounts = new int[20][20]; // seems to help but not by much
+	/** Compute the gain from splitting at splitValue, where lessThanCounts
+	 *  and greaterThanCounts hold target category counts for the n1
+	 *  observations below the split and the n2 above it, and update best
+	 *  if it's an improvement.
+	 */
+	protected static void considerNumericSplit(DataTable data, int j, double splitValue,
+	                                           int[] lessThanCounts, int n1,
+	                                           int[] greaterThanCounts, int n2,
+	                                           double complete_entropy,
+	                                           SplitCriterion criterion,
+	                                           BestInfo best)
+	{
+		double expectedEntropyValue = criterion.expectedImpurity(lessThanCounts, n1, greaterThanCounts, n2);
+		double gain = criterion.gain(complete_entropy, expectedEntropyValue);
+		if ( gain>best.gain ) {
+			best.gain = gain;
+			best.var = j;
+			best.val = splitValue;
+		}
+		if ( debug ) {
+			String var = data.getColNames()[j];
+			double r1_entropy = ParrtStats.entropy(lessThanCounts);
+			double r2_entropy = ParrtStats.entropy(greaterThanCounts);
+			System.out.printf("Entropies var=%13s val=%.2f r1=%d/%d*%.2f r2=%d/%d*%.2f, ExpEntropy=%.2f gain=%.2f\n",
+			                  var, splitValue, n1, n1+n2, r1_entropy, n2, n1+n2, r2_entropy, expectedEntropyValue, gain);
+		}
+	}
 
-	protected static BestInfo bestCategoricalSplit(DataTable data, int j, int yi,
-	                                               CountingDenseIntSet completePredictionCounts,
+	protected static BestInfo bestCategoricalSplit(DataTable data, NodeSample sample, int j, int yi,
+	                                               int[] allCounts,
 	                                               double complete_entropy,
-	                                               BestInfo best)
+	                                               SplitCriterion criterion,
+	                                               BestInfo best,
+	                                               SplitBuffers buffers)
 	{
-		int n = data.size();
-		Integer targetCatMaxValue = (Integer) data.getColMax(yi);
-		Integer colCatMaxValue = (Integer) data.getColMax(j);
-//		for (int i = 0; i<20; i++) { // walk all records, counting dep categories in two groups: indep cat equal and not-equal to splitCat
-//			Arrays.fill(catCounts[i], 0);
-//		}
-		int[][] catCounts = new int[colCatMaxValue+1][targetCatMaxValue+1];
-		for (int i = 0; i<n; i++) { // walk all records, counting dep categories in two groups: indep cat equal and not-equal to splitCat
-			int currentColCat = data.getAsInt(i, j);
-			int currentTargetCat = data.getAsInt(i, yi);
-			catCounts[currentColCat][currentTargetCat]++;
-		}
-		int[] notEqCounts = new int[targetCatMaxValue+1];
-		int[] allCounts = completePredictionCounts.toDenseArray();
-		for (int colCat = 0; colCat<catCounts.length; colCat++) {
-			int[] currentCatCounts = catCounts[colCat];
-			int n1 = sum(currentCatCounts);
+		int n = sample.n;
+		int numCats = allCounts.length;
+		int numColCats = data.getColMax(j).intValue()+1;
+		// walk all records, counting dep categories per indep category; catCounts
+		// for indep category colCat are at colCat*numCats
+		int[] catCounts = buffers.table(numColCats*numCats);
+		int[] col = data.getColumn(j);
+		int[] targetCol = data.getColumn(yi);
+		for (int i = 0; i<n; i++) {
+			int r = sample.rows[i];
+			catCounts[col[r]*numCats+targetCol[r]]++;
+		}
+		// split into two groups: indep cat equal and not-equal to colCat
+		for (int colCat = 0; colCat<numColCats; colCat++) {
+			int n1 = 0; // cheaper than counting sizes row by row
+			for (int c = 0; c<numCats; c++) {
+				n1 += catCounts[colCat*numCats+c];
+			}
 			// category values are not necessarily contiguous; ignore col category values w/o observations
 			if ( n1==0 ) continue;
-			minus(allCounts, currentCatCounts, notEqCounts);
-			int n2 = sum(notEqCounts);
-			double expectedEntropyValue = expectedEntropy(currentCatCounts, n1, notEqCounts, n2);
-			double gain = complete_entropy-expectedEntropyValue;
+			buffers.startCounts(allCounts, numCats);
+			int[] eqCounts = buffers.lessThanCounts;
+			int[] notEqCounts = buffers.greaterThanCounts;
+			for (int c = 0; c<numCats; c++) {
+				buffers.moveLeft(c, catCounts[colCat*numCats+c]);
+			}
+			int n2 = n-n1;
+			double expectedEntropyValue = criterion.expectedImpurity(eqCounts, n1, notEqCounts, n2);
+			double gain = criterion.gain(complete_entropy, expectedEntropyValue);
 			// It's possible that all values in col j are the same, which would
 			// leave n2 as 0 (and n1 should be data.size()). That would imply
 			// that all catCounts[*] but this one are empty
 			// We don't want to split on this data for col j so don't set a best
 			if ( gain>best.gain && n2>0 ) {
-//				System.out.println("set best "+gain+" n1 "+n1+", n2 "+n2);
 				best.gain = gain;
 				best.var = j;
 				best.cat = colCat;
 			}
 			if ( debug ) {
-				double r1_entropy = ParrtStats.entropy(currentCatCounts);
+				double r1_entropy = ParrtStats.entropy(eqCounts);
 				double r2_entropy = ParrtStats.entropy(notEqCounts);
 				String var = data.getColNames()[j];
 				Object p = DataTable.getValue(data, colCat, j);
@@ -334,27 +879,18 @@ public class DecisionTree implements ClassifierModel {
 	}
 
 	public static DataPair numericalIntSplit(DataTable X, int splitVariable, double splitValue) {
-		List<int[]> rows = X.getRows();
-		int splitIndex = DataTable.numericalIntPartition(rows, splitVariable, splitValue, 0, X.size()-1);
-		List<int[]> less = rows.subList(0, splitIndex);
-		List<int[]> greater = rows.subList(splitIndex, rows.size());
-		return new DataPair(new DataTable(X, less), new DataTable(X, greater));
+		int splitIndex = X.numericalIntPartition(splitVariable, splitValue, 0, X.size()-1);
+		return new DataPair(X.subset(0, splitIndex-1), X.subset(splitIndex, X.size()-1));
 	}
 
 	public static DataPair numericalFloatSplit(DataTable X, int splitVariable, double splitValue) {
-		List<int[]> rows = X.getRows();
-		int splitIndex = DataTable.numericalFloatPartition(rows, splitVariable, splitValue, 0, X.size()-1);
-		List<int[]> less = rows.subList(0, splitIndex);
-		List<int[]> greater = rows.subList(splitIndex, rows.size());
-		return new DataPair(new DataTable(X, less), new DataTable(X, greater));
+		int splitIndex = X.numericalFloatPartition(splitVariable, splitValue, 0, X.size()-1);
+		return new DataPair(X.subset(0, splitIndex-1), X.subset(splitIndex, X.size()-1));
 	}
 
 	public static DataPair categoricalSplit(DataTable X, int splitVariable, int splitCategory) {
-		List<int[]> rows = X.getRows();
-		int splitIndex = DataTable.categoricalPartition(rows, splitVariable, splitCategory, 0, X.size()-1);
-		List<int[]> eq = rows.subList(0, splitIndex);
-		List<int[]> notEq = rows.subList(splitIndex, rows.size());
-		return new DataPair(new DataTable(X, eq), new DataTable(X, notEq));
+		int splitIndex = X.categoricalPartition(splitVariable, splitCategory, 0, X.size()-1);
+		return new DataPair(X.subset(0, splitIndex-1), X.subset(splitIndex, X.size()-1));
 	}
 
 	public JsonObject toJSON() { return root!=null ? root.toJSON() : Json.createObjectBuilder().build(); }
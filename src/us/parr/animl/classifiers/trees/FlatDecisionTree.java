@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.DataTable;
+
+import static us.parr.animl.classifiers.trees.DecisionTree.INVALID_CATEGORY;
+
+/** A trained decision tree compiled to parallel arrays for fast inference.
+ *  Nodes are stored in preorder so a split's left child immediately
+ *  follows it; classify() walks the arrays in a loop without recursion,
+ *  virtual calls, or allocation.
+ *
+ *  Split values are converted once so that comparisons are between ints:
+ *  an int column test v &lt; 2.5 becomes v &lt; 3 and a float column
+ *  test compares the bits of the value, made sortable, with the bits of
+ *  the smallest float not less than the split value. The result is the
+ *  same as the node tree's double comparison for all floats except NaNs
+ *  with the sign bit set, which DataTable never creates.
+ */
+public class FlatDecisionTree {
+	public static final int LEAF = -1;
+
+	public static final byte NUMERICAL_INT = 0;
+	public static final byte NUMERICAL_FLOAT = 1;
+	public static final byte CATEGORICAL = 2;
+
+	/** Which variable node i tests or LEAF if i is a leaf */
+	protected final int[] splitVariable;
+
+	/** What kind of test node i does: NUMERICAL_INT, NUMERICAL_FLOAT, or CATEGORICAL */
+	protected final byte[] splitKind;
+
+	/** For numeric splits, go left if the (sortable) value is less than
+	 *  this. For categorical splits, go left if the value equals this.
+	 *  For leaves, the predicted category.
+	 */
+	protected final int[] value;
+
+	/** Index of node i's right child; left child is i+1 */
+	protected final int[] right;
+
+	/** The original leaf nodes, indexed by node, for probabilities etc... */
+	protected final DecisionLeafNode[] leaves;
+
+	public FlatDecisionTree(DecisionTree tree) {
+		int n = countNodes(tree.root);
+		splitVariable = new int[n];
+		splitKind = new byte[n];
+		value = new int[n];
+		right = new int[n];
+		leaves = new DecisionLeafNode[n];
+		if ( tree.root!=null ) {
+			flatten(tree.root, 0);
+		}
+	}
+
+	public int classify(int[] X) {
+		if ( splitVariable.length==0 ) {
+			return INVALID_CATEGORY;
+		}
+		return value[leafIndex(X)];
+	}
+
+	/** Return the index of the leaf that X ends up in */
+	public int leafIndex(int[] X) {
+		int i = 0;
+		int v;
+		while ( (v = splitVariable[i])!=LEAF ) {
+			int x = X[v];
+			boolean goLeft;
+			if ( splitKind[i]==CATEGORICAL ) {
+				goLeft = x==value[i];
+			}
+			else {
+				if ( splitKind[i]==NUMERICAL_FLOAT ) {
+					x ^= (x >> 31) & 0x7fffffff; // same as DataTable.toSortableInt() for non-NaN
+				}
+				goLeft = x<value[i];
+			}
+			i = goLeft ? i+1 : right[i];
+		}
+		return i;
+	}
+
+	/** Classify row r of a table stored by column, such as DataTable's */
+	public int classify(int[][] columns, int r) {
+		if ( splitVariable.length==0 ) {
+			return INVALID_CATEGORY;
+		}
+		return value[leafIndex(columns, r)];
+	}
+
+	/** Return the index of the leaf that row r of a table stored by column ends up in */
+	public int leafIndex(int[][] columns, int r) {
+		int i = 0;
+		int v;
+		while ( (v = splitVariable[i])!=LEAF ) {
+			int x = columns[v][r];
+			boolean goLeft;
+			if ( splitKind[i]==CATEGORICAL ) {
+				goLeft = x==value[i];
+			}
+			else {
+				if ( splitKind[i]==NUMERICAL_FLOAT ) {
+					x ^= (x >> 31) & 0x7fffffff;
+				}
+				goLeft = x<value[i];
+			}
+			i = goLeft ? i+1 : right[i];
+		}
+		return i;
+	}
+
+	/** The category predicted by the leaf at index i */
+	public int getLeafCategory(int i) { return value[i]; }
+
+	public int getNumberOfNodes() { return splitVariable.length; }
+
+	/** Return the class distribution of leaf i, indexed by category */
+	public double[] getLeafProbabilities(int i) { return leaves[i].categoryProbabilities; }
+
+	/** Return the leaf node of the original tree at index i or null */
+	public DecisionLeafNode getLeaf(int i) { return leaves[i]; }
+
+	/** Lay out subtree t starting at index i; return index after t */
+	protected int flatten(DecisionTreeNode t, int i) {
+		if ( t instanceof DecisionLeafNode ) {
+			DecisionLeafNode leaf = (DecisionLeafNode)t;
+			splitVariable[i] = LEAF;
+			value[i] = leaf.targetCategory;
+			leaves[i] = leaf;
+			return i+1;
+		}
+		DecisionSplitNode s = (DecisionSplitNode)t;
+		splitVariable[i] = s.splitVariable;
+		if ( s instanceof DecisionCategoricalSplitNode ) {
+			splitKind[i] = CATEGORICAL;
+			value[i] = ((DecisionCategoricalSplitNode)s).splitCategory;
+		}
+		else {
+			double splitValue = ((DecisionNumericalSplitNode)s).splitValue;
+			if ( s.colType==DataTable.VariableType.NUMERICAL_INT ) {
+				splitKind[i] = NUMERICAL_INT;
+				value[i] = intThreshold(splitValue);
+			}
+			else {
+				splitKind[i] = NUMERICAL_FLOAT;
+				value[i] = floatThreshold(splitValue);
+			}
+		}
+		int next = flatten(s.left, i+1);
+		right[i] = next;
+		return flatten(s.right, next);
+	}
+
+	/** For int x, x &lt; splitValue iff x &lt; ceil(splitValue). Split values
+	 *  are midpoints between ints so the ceiling is always an int.
+	 */
+	public static int intThreshold(double splitValue) {
+		return (int)Math.ceil(splitValue);
+	}
+
+	/** For float x, x &lt; splitValue iff x &lt; f where f is the smallest
+	 *  float &gt;= splitValue. Comparing the sortable bits of x and f gives the
+	 *  same answer except that -0.0 sorts below 0.0, so a zero threshold
+	 *  must be the sortable bits of -0.0 to send -0.0 right.
+	 */
+	public static int floatThreshold(double splitValue) {
+		float f = (float)splitValue;
+		if ( f<splitValue ) {
+			f = Math.nextUp(f);
+		}
+		if ( f==0.0f ) {
+			f = -0.0f;
+		}
+		return DataTable.toSortableInt(Float.floatToIntBits(f), DataTable.VariableType.NUMERICAL_FLOAT);
+	}
+
+	protected static int countNodes(DecisionTreeNode t) {
+		if ( t==null ) return 0;
+		if ( t instanceof DecisionSplitNode ) {
+			DecisionSplitNode s = (DecisionSplitNode)t;
+			return 1+countNodes(s.left)+countNodes(s.right);
+		}
+		return 1;
+	}
+}
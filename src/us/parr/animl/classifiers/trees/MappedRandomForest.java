@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.classifiers.Classifier;
+import us.parr.animl.data.DataTable;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static us.parr.animl.classifiers.trees.DecisionTree.INVALID_CATEGORY;
+import static us.parr.lib.ParrtStats.majorityVote;
+
+/** A forest (or tree) loaded from a {@link BinaryForestFormat} file for
+ *  scoring. Nodes and leaf distributions stay in the memory-mapped file;
+ *  we walk them in place like {@link FlatDecisionTree} walks its arrays.
+ *  Classifies the same as the forest that was saved. Safe to use from
+ *  multiple threads.
+ */
+public class MappedRandomForest implements Classifier {
+	/** Keep the mapping alive as long as we are */
+	protected final MappedByteBuffer file;
+
+	/** The columns the forest was trained on, without any rows */
+	protected final DataTable schema;
+
+	protected final int numTrees;
+	protected final int numCategories;
+
+	/** Layout as described in {@link BinaryForestFormat} */
+	protected final IntBuffer treeStart;
+	protected final IntBuffer nodes;
+	protected final DoubleBuffer probabilities;
+
+	public MappedRandomForest(MappedByteBuffer file, DataTable schema, int numTrees, int numCategories,
+	                          IntBuffer treeStart, IntBuffer nodes, DoubleBuffer probabilities)
+	{
+		this.file = file;
+		this.schema = schema;
+		this.numTrees = numTrees;
+		this.numCategories = numCategories;
+		this.treeStart = treeStart;
+		this.nodes = nodes;
+		this.probabilities = probabilities;
+	}
+
+	public static MappedRandomForest load(String fileName) {
+		return BinaryForestFormat.load(fileName);
+	}
+
+	@Override
+	public int classify(int[] X) {
+		int[] votes = new int[numCategories];
+		int n = 0;
+		for (int t = 0; t<numTrees; t++) {
+			if ( treeStart.get(t)==treeStart.get(t+1) ) continue;
+			votes[nodes.get(BinaryForestFormat.NODE_SIZE*leaf(t, X)+1)]++;
+			n++;
+		}
+		if ( n==0 ) {
+			return INVALID_CATEGORY;
+		}
+		int best = 0;
+		boolean tie = false;
+		for (int c = 1; c<numCategories; c++) {
+			if ( votes[c]>votes[best] ) {
+				best = c;
+				tie = false;
+			}
+			else if ( votes[c]==votes[best] ) {
+				tie = true;
+			}
+		}
+		if ( !tie ) {
+			return best;
+		}
+		// break ties exactly as RandomForest does
+		List<Integer> predictions = new ArrayList<>();
+		for (int t = 0; t<numTrees; t++) {
+			if ( treeStart.get(t)==treeStart.get(t+1) ) continue;
+			predictions.add(nodes.get(BinaryForestFormat.NODE_SIZE*leaf(t, X)+1));
+		}
+		return majorityVote(predictions);
+	}
+
+	/** Average the class distributions of the leaves X lands in, as
+	 *  {@link RandomForest#classProbabilities(int[])} does.
+	 */
+	@Override
+	public Map<Integer, Double> classProbabilities(int[] X) {
+		double[] sums = new double[numCategories];
+		int n = 0;
+		for (int t = 0; t<numTrees; t++) {
+			if ( treeStart.get(t)==treeStart.get(t+1) ) continue;
+			int offset = nodes.get(BinaryForestFormat.NODE_SIZE*leaf(t, X)+2)*numCategories;
+			for (int c = 0; c<numCategories; c++) {
+				sums[c] += probabilities.get(offset+c);
+			}
+			n++;
+		}
+		Map<Integer, Double> categoryProbabilities = new HashMap<>();
+		for (int c = 0; c<numCategories; c++) {
+			if ( sums[c]>0.0 ) {
+				categoryProbabilities.put(c, sums[c]/n);
+			}
+		}
+		return categoryProbabilities;
+	}
+
+	/** Return the index of the node where X ends up in tree t */
+	protected int leaf(int t, int[] X) {
+		int i = treeStart.get(t);
+		int vk;
+		while ( (vk = nodes.get(BinaryForestFormat.NODE_SIZE*i))!=FlatDecisionTree.LEAF ) {
+			int x = X[vk>>2];
+			int kind = vk & 3;
+			int value = nodes.get(BinaryForestFormat.NODE_SIZE*i+1);
+			boolean goLeft;
+			if ( kind==FlatDecisionTree.CATEGORICAL ) {
+				goLeft = x==value;
+			}
+			else {
+				if ( kind==FlatDecisionTree.NUMERICAL_FLOAT ) {
+					x ^= (x >> 31) & 0x7fffffff; // same as FlatDecisionTree
+				}
+				goLeft = x<value;
+			}
+			i = goLeft ? i+1 : nodes.get(BinaryForestFormat.NODE_SIZE*i+2);
+		}
+		return i;
+	}
+
+	/** The columns the forest was trained on, with their names, types and
+	 *  string dictionaries, for turning raw values into rows to classify.
+	 */
+	public DataTable getSchema() { return schema; }
+
+	public int getNumberOfTrees() { return numTrees; }
+
+	public int getNumberOfCategories() { return numCategories; }
+}
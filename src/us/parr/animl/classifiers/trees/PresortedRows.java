@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.DataTable;
+
+/** The per-tree working copy of a {@link SortedColumnIndex}. For each
+ *  numeric predictor column j, rows[j][start..end-1] holds the distinct
+ *  physical rows of a tree node sorted by column j. All columns use
+ *  the same [start,end) range for a node and splitting a node partitions
+ *  each range stably so the children's rows stay sorted.
+ */
+class PresortedRows {
+	protected final int[][] rows;
+
+	/** How many times each physical row appears in the current node sample */
+	protected final int[] weights;
+
+	/** Scratch space for stable partitioning; a node with rows [start,end)
+	 *  uses only buffer[start..end-1] so sibling subtrees can be built concurrently.
+	 */
+	protected final int[] buffer;
+
+	/** Number of distinct physical rows in the tree's training table */
+	protected final int size;
+
+	/** Derive the sorted rows for table data, which must only use rows
+	 *  from the table that index was built from.
+	 */
+	public PresortedRows(SortedColumnIndex index, DataTable data) {
+		int numPhysicalRows = data.getNumberOfPhysicalRows();
+		if ( index.getNumberOfPhysicalRows()!=numPhysicalRows ) {
+			throw new IllegalArgumentException("sorted column index was built for another table");
+		}
+		weights = new int[numPhysicalRows];
+		boolean[] inTable = new boolean[numPhysicalRows];
+		int n = 0;
+		for (int i = 0; i<data.size(); i++) {
+			int r = data.getRowIndex(i);
+			if ( !inTable[r] ) {
+				inTable[r] = true;
+				n++;
+			}
+		}
+		size = n;
+		buffer = new int[n];
+		rows = new int[data.getNumberOfColumns()][];
+		for (int j = 0; j<rows.length; j++) {
+			int[] sorted = index.getSortedRows(j);
+			if ( sorted==null ) continue;
+			int[] mine = new int[n];
+			int k = 0;
+			for (int r : sorted) { // filtering keeps sort order; no need to sort again
+				if ( inTable[r] ) {
+					mine[k++] = r;
+				}
+			}
+			if ( k!=n ) {
+				throw new IllegalArgumentException("table has rows not in the sorted column index");
+			}
+			rows[j] = mine;
+		}
+	}
+
+	/** Count the sampled physical rows sample[0..n-1] */
+	public void addSample(int[] sample, int n) {
+		for (int i = 0; i<n; i++) {
+			weights[sample[i]]++;
+		}
+	}
+
+	public void removeSample(int[] sample, int n) {
+		for (int i = 0; i<n; i++) {
+			weights[sample[i]] = 0;
+		}
+	}
+
+	/** Stably partition every sorted column range [start,end) so rows
+	 *  going to the left child precede those going right. Return the
+	 *  index of the first right-child row, the same for all columns.
+	 */
+	public int partition(int start, int end, DataTable data,
+	                     int splitVariable, DataTable.VariableType colType,
+	                     double splitValue, int splitCategory)
+	{
+		int[] splitCol = data.getColumn(splitVariable);
+		int mid = start;
+		for (int[] sorted : rows) {
+			if ( sorted==null ) continue;
+			int left = start;
+			int right = start;
+			for (int k = start; k<end; k++) {
+				int r = sorted[k];
+				if ( goesLeft(splitCol[r], colType, splitValue, splitCategory) ) {
+					sorted[left++] = r;
+				}
+				else {
+					buffer[right++] = r;
+				}
+			}
+			System.arraycopy(buffer, start, sorted, left, right-start);
+			mid = left;
+		}
+		return mid;
+	}
+
+	/** Same decision as the DataTable partition methods and split nodes */
+	public static boolean goesLeft(int value, DataTable.VariableType colType,
+	                               double splitValue, int splitCategory)
+	{
+		if ( DataTable.isCategoricalVar(colType) ) {
+			return value==splitCategory;
+		}
+		if ( colType==DataTable.VariableType.NUMERICAL_FLOAT ) {
+			return Float.intBitsToFloat(value)<splitValue;
+		}
+		return value<splitValue;
+	}
+}
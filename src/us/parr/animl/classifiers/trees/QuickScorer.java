@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Score rows against a whole forest at once with the QuickScorer
+ *  algorithm (Lucchese et al, SIGIR 2015) rather than walking each tree.
+ *
+ *  Number each tree's leaves from left to right. A row ends up in the
+ *  leftmost leaf not in the left subtree of any node whose test the row
+ *  fails. So we start with a bitvector per tree with all leaves on, clear
+ *  the left subtree of each failed node, and take the lowest bit left on.
+ *  Left subtrees are ranges of leaves so clearing one is an AND with a
+ *  precomputed mask for each word of the range, usually just one.
+ *
+ *  Finding the failed nodes is what makes this fast. We group all nodes
+ *  of the forest by variable and sort them by threshold; for a row, the
+ *  failed numeric nodes testing variable j are a prefix of j's nodes, those
+ *  with a threshold &lt;= X[j]. We stop at the first node the row passes
+ *  so there are no unpredictable branches per node. A categorical test
+ *  X[j]==c fails if X[j]&gt;=c+1, which goes in the same list, or if
+ *  X[j]&lt;c, which goes in a second list scanned from the top.
+ *
+ *  Trees can have any number of leaves, using as many 64-bit words as
+ *  they need, but this pays off for forests of many small trees on
+ *  numeric data. Rows fail about half the nodes they're tested against so
+ *  with big trees, or variables with few values, scoring in batch with
+ *  {@link RandomForest#classify(int[][], int[])} can be faster.
+ */
+public class QuickScorer {
+	protected final RandomForest forest;
+
+	/** Scores trees[0..numTrees-1], non-empty flat trees of the forest */
+	protected final FlatDecisionTree[] trees;
+	protected final int numTrees;
+
+	protected final int numCategories;
+
+	/** Tree t's leaves are bits of words wordOffset[t]..wordOffset[t+1]-1 */
+	protected final int[] wordOffset;
+
+	/** Bitvectors with all leaves of all trees on */
+	protected final long[] allLeaves;
+
+	/** Tree t's ith leaf from the left predicts category leafCategory[leafOffset[t]+i] */
+	protected final int[] leafOffset;
+	protected final int[] leafCategory;
+
+	/** Make float variables' bits sortable before comparing, as flat trees do */
+	protected final boolean[] floatVariable;
+
+	/** Nodes that fail if X[j] &gt;= threshold are entries
+	 *  geStart[j]..geStart[j+1]-1 of the ge* arrays, sorted by threshold.
+	 *  Failing means leaves[geWord[k]] &amp;= geMask[k]; a node whose left
+	 *  subtree spans words has an entry per word.
+	 */
+	protected final int[] geStart;
+	protected final int[] geThreshold, geWord;
+	protected final long[] geMask;
+
+	/** Nodes that fail if X[j] &lt; threshold (categorical tests only),
+	 *  laid out like the ge* arrays.
+	 */
+	protected final int[] ltStart;
+	protected final int[] ltThreshold, ltWord;
+	protected final long[] ltMask;
+
+	/** Score with the trees forest has now; trees added later aren't seen */
+	public QuickScorer(RandomForest forest) {
+		this.forest = forest;
+		this.numCategories = forest.numCategories;
+		List<FlatDecisionTree> nonEmpty = new ArrayList<>();
+		int numVariables = 0;
+		for (FlatDecisionTree tree : forest.flatTrees) {
+			if ( tree.getNumberOfNodes()==0 ) continue;
+			nonEmpty.add(tree);
+			for (int v : tree.splitVariable) {
+				numVariables = Math.max(numVariables, v+1);
+			}
+		}
+		trees = nonEmpty.toArray(new FlatDecisionTree[0]);
+		numTrees = trees.length;
+
+		// number leaves and collect nodes by how they can fail
+		wordOffset = new int[numTrees+1];
+		leafOffset = new int[numTrees+1];
+		floatVariable = new boolean[numVariables];
+		Nodes ge = new Nodes(numVariables);
+		Nodes lt = new Nodes(numVariables);
+		List<Integer> categories = new ArrayList<>();
+		for (int t = 0; t<numTrees; t++) {
+			FlatDecisionTree tree = trees[t];
+			int n = tree.getNumberOfNodes();
+			int[] leafNumber = new int[n+1]; // leaf number of leftmost leaf at or after node i
+			int leaves = 0;
+			for (int i = 0; i<n; i++) {
+				leafNumber[i] = leaves;
+				if ( tree.splitVariable[i]==FlatDecisionTree.LEAF ) {
+					categories.add(tree.value[i]);
+					leaves++;
+				}
+			}
+			leafNumber[n] = leaves;
+			for (int i = 0; i<n; i++) {
+				int j = tree.splitVariable[i];
+				if ( j==FlatDecisionTree.LEAF ) continue;
+				int lo = leafNumber[i+1];          // left subtree is nodes i+1..right[i]-1
+				int hi = leafNumber[tree.right[i]];
+				for (int w = lo>>>6; w<=(hi-1)>>>6; w++) {
+					long mask = ~bits(w, lo, hi);
+					if ( tree.splitKind[i]==FlatDecisionTree.CATEGORICAL ) {
+						ge.add(j, tree.value[i]+1, wordOffset[t]+w, mask);
+						lt.add(j, tree.value[i], wordOffset[t]+w, mask);
+					}
+					else {
+						floatVariable[j] |= tree.splitKind[i]==FlatDecisionTree.NUMERICAL_FLOAT;
+						ge.add(j, tree.value[i], wordOffset[t]+w, mask);
+					}
+				}
+			}
+			leafOffset[t+1] = leafOffset[t]+leaves;
+			wordOffset[t+1] = wordOffset[t]+(leaves+63)/64;
+		}
+		leafCategory = new int[categories.size()];
+		for (int i = 0; i<leafCategory.length; i++) {
+			leafCategory[i] = categories.get(i);
+		}
+		allLeaves = new long[wordOffset[numTrees]];
+		for (int t = 0; t<numTrees; t++) {
+			int leaves = leafOffset[t+1]-leafOffset[t];
+			for (int w = 0; w<wordOffset[t+1]-wordOffset[t]; w++) {
+				allLeaves[wordOffset[t]+w] = bits(w, 0, leaves);
+			}
+		}
+
+		geStart = ge.start();
+		geThreshold = ge.threshold;
+		geWord = ge.word;
+		geMask = ge.mask;
+		ltStart = lt.start();
+		ltThreshold = lt.threshold;
+		ltWord = lt.word;
+		ltMask = lt.mask;
+	}
+
+	/** Classify X, same as {@link RandomForest#classify(int[])} */
+	public int classify(int[] X) {
+		long[] leaves = new long[allLeaves.length];
+		int[] votes = new int[numCategories];
+		int category = classify(X, leaves, votes);
+		return category!=RandomForest.TIE ? category : forest.classify(X);
+	}
+
+	/** Classify each rows[i], putting the predicted category in out[i].
+	 *  Allocates nothing per row.
+	 */
+	public void classify(int[][] rows, int[] out) {
+		long[] leaves = new long[allLeaves.length];
+		int[] votes = new int[numCategories];
+		for (int i = 0; i<rows.length; i++) {
+			int category = classify(rows[i], leaves, votes);
+			out[i] = category!=RandomForest.TIE ? category : forest.classify(rows[i]);
+		}
+	}
+
+	/** Put the leaf number X lands in, for each tree, in exitLeaves using
+	 *  leaves as scratch space; see {@link #getNumberOfWords()}.
+	 */
+	public void exitLeaves(int[] X, long[] leaves, int[] exitLeaves) {
+		findExitLeaves(X, leaves);
+		for (int t = 0; t<numTrees; t++) {
+			exitLeaves[t] = exitLeaf(leaves, t);
+		}
+	}
+
+	/** How many longs of scratch space scoring a row needs */
+	public int getNumberOfWords() { return allLeaves.length; }
+
+	public int getNumberOfTrees() { return numTrees; }
+
+	/** Return the category with the most votes or TIE */
+	protected int classify(int[] X, long[] leaves, int[] votes) {
+		if ( numTrees==0 ) {
+			return DecisionTree.INVALID_CATEGORY;
+		}
+		findExitLeaves(X, leaves);
+		Arrays.fill(votes, 0);
+		for (int t = 0; t<numTrees; t++) {
+			votes[leafCategory[leafOffset[t]+exitLeaf(leaves, t)]]++;
+		}
+		return forest.mostVotes(votes, 0);
+	}
+
+	/** Clear the leaves ruled out by every test X fails */
+	protected void findExitLeaves(int[] X, long[] leaves) {
+		System.arraycopy(allLeaves, 0, leaves, 0, allLeaves.length);
+		for (int j = 0; j<floatVariable.length; j++) {
+			int x = X[j];
+			if ( floatVariable[j] ) {
+				x ^= (x >> 31) & 0x7fffffff; // same as FlatDecisionTree
+			}
+			int stop = geStart[j+1];
+			for (int k = geStart[j]; k<stop && geThreshold[k]<=x; k++) {
+				leaves[geWord[k]] &= geMask[k];
+			}
+			stop = ltStart[j];
+			for (int k = ltStart[j+1]-1; k>=stop && ltThreshold[k]>x; k--) {
+				leaves[ltWord[k]] &= ltMask[k];
+			}
+		}
+	}
+
+	protected int exitLeaf(long[] leaves, int t) {
+		int w = wordOffset[t];
+		while ( leaves[w]==0 ) { // some leaf is always on
+			w++;
+		}
+		return (w-wordOffset[t])*64+Long.numberOfTrailingZeros(leaves[w]);
+	}
+
+	/** The bits of word w of a tree's bitvector for its leaves lo..hi-1 */
+	protected static long bits(int w, int lo, int hi) {
+		long mask = -1L;
+		if ( w==lo>>>6 ) mask &= -1L<<(lo&63);
+		if ( w==(hi-1)>>>6 ) mask &= -1L>>>(63-((hi-1)&63));
+		return mask;
+	}
+
+	/** Nodes collected by variable, then sorted by threshold within variable */
+	protected static class Nodes {
+		protected final List<List<long[]>> byVariable = new ArrayList<>();
+		protected int[] threshold, word;
+		protected long[] mask;
+
+		public Nodes(int numVariables) {
+			for (int j = 0; j<numVariables; j++) {
+				byVariable.add(new ArrayList<>());
+			}
+		}
+
+		public void add(int j, int threshold, int word, long mask) {
+			byVariable.get(j).add(new long[] {threshold, word, mask});
+		}
+
+		/** Fill the arrays and return where each variable's nodes start */
+		public int[] start() {
+			int n = 0;
+			for (List<long[]> nodes : byVariable) {
+				n += nodes.size();
+			}
+			threshold = new int[n];
+			word = new int[n];
+			mask = new long[n];
+			int[] start = new int[byVariable.size()+1];
+			int k = 0;
+			for (int j = 0; j<byVariable.size(); j++) {
+				start[j] = k;
+				List<long[]> nodes = byVariable.get(j);
+				nodes.sort((a, b) -> Long.compare(a[0], b[0]));
+				for (long[] node : nodes) {
+					threshold[k] = (int)node[0];
+					word[k] = (int)node[1];
+					mask[k] = node[2];
+					k++;
+				}
+			}
+			start[byVariable.size()] = k;
+			return start;
+		}
+	}
+}
@@ -6,16 +6,24 @@
 
 package us.parr.animl.classifiers.trees;
 
-import us.parr.animl.classifiers.ClassifierModel;
+import us.parr.animl.classifiers.LeaveOneOutEstimator;
 import us.parr.animl.data.DataTable;
 import us.parr.lib.ParrtStats;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static us.parr.lib.ParrtStats.majorityVote;
 
@@ -24,7 +32,18 @@ import static us.parr.lib.ParrtStats.majorityVote;
  *  values. Predicts integer categories only. -1 is an invalid predicted
  *  category value.
  */
-public class RandomForest implements ClassifierModel {
+public class RandomForest implements LeaveOneOutEstimator {
+	/** How many rows to score at once in batch classification */
+	public static final int BATCH_SIZE = 1024;
+
+	protected static final int TIE = -2;
+
+	/** Stop compiling trees to bytecode once the forest has this many bytes
+	 *  of it; later trees stay interpreted. Native code is several times
+	 *  bigger than bytecode and must fit in the JIT's code cache.
+	 */
+	public static final int MAX_FOREST_CODE_SIZE = 8*1024*1024;
+
 	/** How many trees to create in the forest */
 	protected int numEstimators;
 
@@ -38,20 +57,90 @@ public class RandomForest implements ClassifierModel {
 	 */
 	protected double bootstrapSampleRate = 1.0;
 
+	/** How trees measure the impurity of target categories; see {@link SplitCriterion} */
+	protected SplitCriterion criterion = SplitCriterion.ENTROPY;
+
+	/** Sort numeric columns once for all trees; see {@link SortedColumnIndex} */
+	protected boolean presort = false;
+
+	/** If &gt; 0, bin numeric columns once for all trees; see {@link BinnedColumns} */
+	protected int maxBins = 0;
+
+	/** If not null, give each tree its own generator seeded from this
+	 *  master seed, which makes the forest independent of how many threads
+	 *  build it. If null and not training in parallel, all trees share
+	 *  the static generators as before.
+	 */
+	protected Long seed = null;
+
+	/** How many trees to build at once if no executor is provided */
+	protected int numThreads = 1;
+
+	/** Build trees with this instead of a pool of numThreads threads */
+	protected ExecutorService executor = null;
+
+	/** Passed to each tree; see {@link DecisionTree#setForkThreshold(int)} */
+	protected int treeForkThreshold = 0;
+
+	/** If &gt; 0, stop adding trees once the out-of-bag error changes by no
+	 *  more than this between checks; see {@link #setEarlyStopping(double, int)}.
+	 */
+	protected double earlyStoppingTolerance = 0.0;
+
+	/** How many trees to add between out-of-bag error checks */
+	protected int earlyStoppingInterval = 10;
+
+	/** Compile each tree to bytecode for {@link #classify(int[])}; see {@link CompiledDecisionTree} */
+	protected boolean generateBytecode = false;
+
+	/** How many bytes of bytecode the forest's compiled trees have */
+	protected long codeSize;
+
 	/** The forest of trees */
 	protected List<DecisionTree> trees;
 
-	/** Which observations (indexes) were out-of-bag for each tree trained on data? */
-	protected List<Set<Integer>> treeOutOfBagSampleIndexes;
+	/** The trees compiled for fast batch scoring; see {@link FlatDecisionTree} */
+	protected FlatDecisionTree[] flatTrees;
+
+	/** How many categories the target variable has; one more than the largest */
+	protected int numCategories;
+
+	/** Which rows of the training data went into the bootstrap sample of
+	 *  each tree; bit i of the kth set is on if row i was in-bag for tree k.
+	 *  Rows are positions in the training table, 0..numTrainingRows-1.
+	 */
+	protected List<BitSet> treeInBagRows;
+
+	/** How many rows the forest was trained on */
+	protected int numTrainingRows;
+
+	/** What we need to add trees to those trained on the data so far. The
+	 *  shared column index and bins are kept so more trees can use them,
+	 *  and trees are seeded from the same master generator, so a forest
+	 *  grown in steps has the same trees as one trained all at once.
+	 */
+	protected SortedColumnIndex index;
+	protected BinnedColumns bins;
+	protected Random master;
+
+	/** Running out-of-bag votes of all trees if stopping early */
+	protected OutOfBagVotes oobVotes;
 
 	/** Constructors for classifiers / regressors should capture all parameters
 	 *  needed to train except for the actual data, which could vary.
 	 */
 	public RandomForest(int numEstimators, int minLeafSize, int nodeSampleSize, double bootstrapSampleRate) {
+		this(numEstimators, minLeafSize, nodeSampleSize, bootstrapSampleRate, SplitCriterion.ENTROPY);
+	}
+
+	public RandomForest(int numEstimators, int minLeafSize, int nodeSampleSize, double bootstrapSampleRate,
+	                    SplitCriterion criterion)
+	{
 		this.numEstimators = numEstimators;
 		this.minLeafSize = minLeafSize;
 		this.nodeSampleSize = Math.max(nodeSampleSize, minLeafSize+1); // can't be smaller than min node or we get a single root node
 		this.bootstrapSampleRate = bootstrapSampleRate;
+		this.criterion = criterion;
 	}
 
 	public RandomForest(int numEstimators, int minLeafSize) {
@@ -61,32 +150,436 @@ public class RandomForest implements ClassifierModel {
 
 	/** Train on this data. Wipe out any existing trees etc... */
 	public void train(DataTable data) {
+		SortedColumnIndex index = null;
+		BinnedColumns bins = null;
+		if ( data!=null && data.size()>0 ) {
+			bins = maxBins>0 ? new BinnedColumns(data, maxBins) : null;
+			index = presort && bins==null ? new SortedColumnIndex(data) : null;
+		}
+		train(data, index, bins);
+	}
+
+	/** Train using a previously-computed index and/or bins, either of which
+	 *  can be null, shared by all trees; see
+	 *  {@link DecisionTree#train(DataTable, SortedColumnIndex, BinnedColumns)}.
+	 *  This lets many forests trained on the same data, or subsets of it,
+	 *  sort or bin columns once. If bins is not null, index is not used.
+	 */
+	public void train(DataTable data, SortedColumnIndex index, BinnedColumns bins) {
 		this.trees = new ArrayList<>(numEstimators);
-		this.treeOutOfBagSampleIndexes = new ArrayList<>(numEstimators);
-		if ( data==null || data.size()==0 || numEstimators==0 ) return;
+		this.treeInBagRows = new ArrayList<>(numEstimators);
+		this.flatTrees = new FlatDecisionTree[0];
+		this.codeSize = 0;
+		this.numCategories = 0;
+		this.numTrainingRows = data!=null ? data.size() : 0;
+		this.oobVotes = null;
+		this.index = null;
+		this.bins = null;
+		// Derive tree seeds in order, so tree i is the same no matter
+		// which thread builds it or when
+		this.master = isLegacySerial() ? null : new Random(seed!=null ? seed : DecisionTree.SEED);
+		if ( data==null || data.size()==0 ) return;
+		// shared by all trees
+		this.bins = bins;
+		this.index = bins==null ? index : null;
+		addTrees(data, numEstimators);
+	}
+
+	/** Add k trees to those already trained on data, keeping the existing
+	 *  trees, so sweeping the number of trees costs one forest's worth of
+	 *  training. With early stopping on, stop adding trees once the
+	 *  out-of-bag error converges. Return how many trees were added.
+	 *  Data must be the table passed to {@link #train(DataTable)}.
+	 */
+	public int addTrees(DataTable data, int k) {
+		if ( k<0 ) {
+			throw new IllegalArgumentException("can't add a negative number of trees: "+k);
+		}
+		if ( trees==null ) {
+			throw new IllegalArgumentException("train the forest before adding trees");
+		}
+		checkTrainingData(data);
+		if ( data.size()==0 ) return 0;
+		ExecutorService pool = acquirePool();
+		try {
+			return addTrees(pool, data, k);
+		}
+		finally {
+			releasePool(pool);
+		}
+	}
+
+	/** Add trees as {@link #addTrees(DataTable, int)} does, running all
+	 *  training and out-of-bag scoring in pool, or this thread if null.
+	 */
+	protected int addTrees(ExecutorService pool, DataTable data, int k) {
+		if ( earlyStoppingTolerance<=0.0 ) {
+			trainTrees(pool, data, k);
+			return k;
+		}
+		if ( oobVotes==null ) {
+			oobVotes = new OutOfBagVotes(data);
+			oobVotes.addTrees(pool, 0, flatTrees.length);
+		}
+		double error = oobVotes.error();
+		int added = 0;
+		while ( added<k ) {
+			int n = Math.min(earlyStoppingInterval, k-added);
+			int from = trees.size();
+			trainTrees(pool, data, n);
+			oobVotes.addTrees(pool, from, trees.size());
+			added += n;
+			double previous = error;
+			error = oobVotes.error();
+			if ( Math.abs(error-previous)<=earlyStoppingTolerance ) break; // false if either is NaN
+		}
+		return added;
+	}
+
+	/** Train k more trees on data, in pool if not null, and compile them */
+	protected void trainTrees(ExecutorService pool, DataTable data, int k) {
+		int from = trees.size();
 		int M = data.getNumberOfPredictorVar();
 		// Number of variables to select at random at each decision node to find best split
 		int m = (int)Math.round(Math.sqrt(M));
-		List<int[]> bootstrap = new ArrayList<>(data.size()); // reuse for each tree
-		for (int i = 1; i<=numEstimators; i++) {
+		if ( master==null ) {
+			trainSerially(data, m, k);
+		}
+		else {
+			List<Callable<DecisionTree>> tasks = new ArrayList<>(k);
+			BitSet[] inBag = new BitSet[k];
+			for (int i = 0; i<k; i++) {
+				long treeSeed = master.nextLong();
+				BitSet treeInBag = inBag[i] = new BitSet(data.size());
+				tasks.add(() -> trainTree(data, m, treeSeed, index, bins, treeInBag));
+			}
+			List<DecisionTree> trained = invokeAll(pool, tasks);
+			for (int i = 0; i<k; i++) {
+				addTree(trained.get(i), inBag[i]);
+			}
+		}
+		compileTrees(from);
+	}
+
+	/** Without a seed or parallelism, trees share the static generators as always */
+	protected boolean isLegacySerial() {
+		return seed==null && numThreads<=1 && executor==null && treeForkThreshold==0;
+	}
+
+	/** Get the pool to run the tasks of one public operation in: the
+	 *  executor if set, null to run them in this thread if numThreads is 1,
+	 *  or a pool of numThreads threads, the common pool if it's that big.
+	 *  Pass it to {@link #releasePool(ExecutorService)} when done.
+	 */
+	protected ExecutorService acquirePool() {
+		if ( executor!=null ) return executor;
+		if ( numThreads<=1 ) return null;
+		if ( numThreads==ForkJoinPool.getCommonPoolParallelism() ) return ForkJoinPool.commonPool();
+		return new ForkJoinPool(numThreads);
+	}
+
+	/** Shut down pool if {@link #acquirePool()} made it */
+	protected void releasePool(ExecutorService pool) {
+		if ( pool!=null && pool!=executor && pool!=ForkJoinPool.commonPool() ) {
+			pool.shutdown();
+		}
+	}
+
+	/** Run tasks in pool, or one after the other in this thread if pool
+	 *  is null, and return their results in order.
+	 */
+	protected static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<>(tasks.size());
+		if ( pool==null ) {
+			for (Callable<T> task : tasks) {
+				try {
+					results.add(task.call());
+				}
+				catch (RuntimeException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return results;
+		}
+		try {
+			for (Future<T> f : pool.invokeAll(tasks)) {
+				results.add(get(f));
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while running forest tasks", ie);
+		}
+		return results;
+	}
+
+	/** Compile trees from..trees.size()-1, keeping those already compiled */
+	protected void compileTrees(int from) {
+		flatTrees = Arrays.copyOf(flatTrees, trees.size());
+		for (int k = from; k<flatTrees.length; k++) {
+			FlatDecisionTree flat = trees.get(k).flatten();
+			for (int i = 0; i<flat.getNumberOfNodes(); i++) {
+				if ( flat.getLeaf(i)!=null ) {
+					numCategories = Math.max(numCategories, flat.getLeafProbabilities(i).length);
+				}
+			}
+			flatTrees[k] = flat;
+			if ( generateBytecode && codeSize<MAX_FOREST_CODE_SIZE ) {
+				DecisionTree tree = trees.get(k);
+				tree.compiled = CompiledDecisionTree.compile(flat);
+				if ( tree.compiled!=null ) {
+					codeSize += tree.compiled.getCodeSize();
+				}
+			}
+		}
+	}
+
+	/** Build k trees one after the other, sharing the static generators */
+	protected void trainSerially(DataTable data, int m, int k) {
+		List<Integer> bootstrap = new ArrayList<>(data.size()); // reuse for each tree
+		List<Integer> positions = positions(data.size());
+		int first = trees.size();
+		for (int i = first+1; i<=first+k; i++) {
 			if ( DecisionTree.debug ) System.out.println("Estimator "+i+" ------------------");
-			Set<Integer> outOfBagSamples = new HashSet<>(); // gets filled in
 			int sampleSize = (int)(bootstrapSampleRate * data.size());
-//			List<int[]> bootstrap = ParrtStats.bootstrapWithRepl(data.getRows(), sampleSize, outOfBagSamples);
-			ParrtStats.bootstrapWithRepl(data.getRows(), sampleSize, bootstrap, null);
-			DataTable table = new DataTable(data, bootstrap);
+			// sample row positions, recording them as in-bag, then map them to
+			// physical row indexes; the bootstrap table shares data's columns
+			ParrtStats.bootstrapWithRepl(positions, sampleSize, bootstrap, null);
+			BitSet inBag = new BitSet(data.size());
+			int[] rows = new int[sampleSize];
+			for (int j = 0; j<sampleSize; j++) {
+				int pos = bootstrap.get(j);
+				inBag.set(pos);
+				rows[j] = data.getRowIndex(pos);
+			}
+			DataTable table = new DataTable(data, rows);
 //			System.out.println("bootstrap:\n"+table.toString());
-			DecisionTree tree = new DecisionTree(m, minLeafSize, nodeSampleSize);
-			tree.train(table);
-			trees.add(tree);
-			treeOutOfBagSampleIndexes.add(outOfBagSamples);
+			DecisionTree tree = new DecisionTree(m, minLeafSize, nodeSampleSize, criterion);
+			tree.train(table, index, bins);
+			addTree(tree, inBag);
+		}
+	}
+
+	/** The list 0..n-1 without storing it */
+	protected static List<Integer> positions(int n) {
+		return new AbstractList<Integer>() {
+			@Override
+			public Integer get(int i) { return i; }
+
+			@Override
+			public int size() { return n; }
+		};
+	}
+
+	/** Bootstrap a sample of data and train a tree on it using only a
+	 *  generator seeded with seed, setting the bits of inBag for the rows
+	 *  sampled. Safe to call from multiple threads.
+	 */
+	protected DecisionTree trainTree(DataTable data, int m, long seed,
+	                                 SortedColumnIndex index, BinnedColumns bins, BitSet inBag)
+	{
+		Random random = new Random(seed);
+		int n = data.size();
+		int sampleSize = (int)(bootstrapSampleRate * n);
+		// same draws as data.randomSubset(sampleSize, random)
+		int[] rows = new int[sampleSize];
+		for (int i = 0; i<sampleSize; i++) {
+			int pos = random.nextInt(n);
+			inBag.set(pos);
+			rows[i] = data.getRowIndex(pos);
+		}
+		DataTable table = new DataTable(data, rows);
+		DecisionTree tree = new DecisionTree(m, minLeafSize, nodeSampleSize, criterion);
+		tree.setSeed(random.nextLong());
+		tree.setForkThreshold(treeForkThreshold);
+		tree.train(table, index, bins);
+		return tree;
+	}
+
+	protected void addTree(DecisionTree tree, BitSet inBag) {
+		trees.add(tree);
+		treeInBagRows.add(inBag);
+	}
+
+	/** Get a result from its future, rethrowing whatever went wrong computing it */
+	protected static <T> T get(Future<T> f) throws InterruptedException {
+		try {
+			return f.get();
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if ( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException("forest task failed", cause);
+		}
+	}
+
+	/** Make training reproducible and independent of the number of threads */
+	public void setSeed(long seed) { this.seed = seed; }
+
+	/** Build up to n trees at once in a pool created for each call to train().
+	 *  Without a seed, trees are seeded from {@link DecisionTree#SEED}.
+	 */
+	public void setNumThreads(int n) {
+		if ( n<1 ) {
+			throw new IllegalArgumentException("need at least one thread: "+n);
+		}
+		this.numThreads = n;
+	}
+
+	/** Build trees using this executor, which the caller must shut down */
+	public void setExecutor(ExecutorService executor) { this.executor = executor; }
+
+	/** Also build within each tree in parallel, which helps small forests.
+	 *  See {@link DecisionTree#setForkThreshold(int)}.
+	 */
+	public void setTreeForkThreshold(int n) {
+		if ( n<0 ) {
+			throw new IllegalArgumentException("fork threshold can't be negative: "+n);
+		}
+		this.treeForkThreshold = n;
+	}
+
+	/** Have {@link #train(DataTable)} and {@link #addTrees(DataTable, int)}
+	 *  add trees interval at a time, stopping once the out-of-bag error
+	 *  changes by no more than tolerance. A tolerance of 0 (the default)
+	 *  turns early stopping off.
+	 */
+	public void setEarlyStopping(double tolerance, int interval) {
+		if ( tolerance<0.0 ) {
+			throw new IllegalArgumentException("tolerance can't be negative: "+tolerance);
 		}
+		if ( interval<1 ) {
+			throw new IllegalArgumentException("need to add at least one tree between checks: "+interval);
+		}
+		this.earlyStoppingTolerance = tolerance;
+		this.earlyStoppingInterval = interval;
+	}
+
+	public int getNumberOfTrees() { return trees!=null ? trees.size() : 0; }
+
+	public void setPresort(boolean presort) { this.presort = presort; }
+
+	/** Compile trees to bytecode as they are trained so {@link #classify(int[])}
+	 *  runs them as code rather than walking nodes. Trees that are too big
+	 *  stay interpreted, as do all trees once the forest has
+	 *  {@link #MAX_FOREST_CODE_SIZE} bytes of bytecode.
+	 */
+	public void setGenerateBytecode(boolean generateBytecode) { this.generateBytecode = generateBytecode; }
+
+	/** Set to 0 to split on raw values (the default) or 2..256 to use bins */
+	public void setMaxBins(int maxBins) {
+		if ( maxBins!=0 && (maxBins<2 || maxBins>BinnedColumns.MAX_BINS) ) {
+			throw new IllegalArgumentException("max bins must be 0 or in 2.."+BinnedColumns.MAX_BINS+": "+maxBins);
+		}
+		this.maxBins = maxBins;
 	}
 
 	public int classify(int[] unknown) {
 		return classify(trees, unknown);
 	}
 
+	/** Classify all rows of data, returning the predicted categories.
+	 *  Same as calling {@link #classify(int[])} on each row but much faster
+	 *  for many rows; see {@link #classify(int[][], int[])}. A table read
+	 *  from a mapped file is scored a block of rows at a time straight from
+	 *  the file's pages rather than copying its columns to the heap.
+	 */
+	public int[] classifyBatch(DataTable data) {
+		int n = data.size();
+		int[] out = new int[n];
+		if ( data.isMapped() ) {
+			int[][] rows = new int[Math.min(n, BATCH_SIZE)][data.getNumberOfColumns()];
+			int[] blockOut = new int[rows.length];
+			for (int start = 0; start<n; start += BATCH_SIZE) {
+				int size = Math.min(BATCH_SIZE, n-start);
+				int[][] block = size==rows.length ? rows : Arrays.copyOf(rows, size);
+				for (int i = 0; i<size; i++) {
+					data.getRow(start+i, block[i]);
+				}
+				classify(block, blockOut);
+				System.arraycopy(blockOut, 0, out, start, size);
+			}
+			return out;
+		}
+		int[][] columns = columns(data);
+		int[] physicalRows = new int[Math.min(n, BATCH_SIZE)];
+		int[] votes = new int[physicalRows.length*numCategories];
+		for (int start = 0; start<n; start += BATCH_SIZE) {
+			int size = Math.min(BATCH_SIZE, n-start);
+			for (int i = 0; i<size; i++) {
+				physicalRows[i] = data.getRowIndex(start+i);
+			}
+			Arrays.fill(votes, 0);
+			for (FlatDecisionTree tree : flatTrees) {
+				if ( tree.getNumberOfNodes()==0 ) continue; // no rows to train on; no vote
+				for (int i = 0; i<size; i++) {
+					votes[i*numCategories+tree.classify(columns, physicalRows[i])]++;
+				}
+			}
+			for (int i = 0; i<size; i++) {
+				int category = mostVotes(votes, i);
+				out[start+i] = category!=TIE ? category : classify(data.getRow(start+i));
+			}
+		}
+		return out;
+	}
+
+	/** Classify each rows[i], putting the predicted category in out[i].
+	 *  Rather than running each row through all trees, we run each block of
+	 *  rows through one tree at a time so the tree stays in cache, counting
+	 *  votes in a buffer reused for all blocks. There is no allocation per row.
+	 */
+	public void classify(int[][] rows, int[] out) {
+		int n = rows.length;
+		int[] votes = new int[Math.min(n, BATCH_SIZE)*numCategories];
+		for (int start = 0; start<n; start += BATCH_SIZE) {
+			int size = Math.min(BATCH_SIZE, n-start);
+			Arrays.fill(votes, 0);
+			for (FlatDecisionTree tree : flatTrees) {
+				if ( tree.getNumberOfNodes()==0 ) continue;
+				for (int i = 0; i<size; i++) {
+					votes[i*numCategories+tree.classify(rows[start+i])]++;
+				}
+			}
+			for (int i = 0; i<size; i++) {
+				int category = mostVotes(votes, i);
+				out[start+i] = category!=TIE ? category : classify(rows[start+i]);
+			}
+		}
+	}
+
+	/** Return the category with the most votes for the ith row of a block
+	 *  or TIE. With no trees, or only empty ones, that's an invalid
+	 *  category. Ties are rare so callers break them by voting the slow way,
+	 *  which guarantees the same answer as {@link #classify(int[])}.
+	 */
+	protected int mostVotes(int[] votes, int i) {
+		if ( flatTrees.length==0 || numCategories==0 ) {
+			return DecisionTree.INVALID_CATEGORY;
+		}
+		int offset = i*numCategories;
+		int best = 0;
+		boolean tie = false;
+		for (int c = 1; c<numCategories; c++) {
+			int v = votes[offset+c];
+			if ( v>votes[offset+best] ) {
+				best = c;
+				tie = false;
+			}
+			else if ( v==votes[offset+best] ) {
+				tie = true;
+			}
+		}
+		if ( votes[offset+best]==0 ) {
+			return DecisionTree.INVALID_CATEGORY;
+		}
+		return tie ? TIE : best;
+	}
+
 	/* 	From: http://scikit-learn.org/stable/modules/generated/sklearn.ensemble.RandomForestClassifier.html
 	   "The predicted class probabilities of an input sample are computed
 		as the mean predicted class probabilities of the trees in the forest.
@@ -95,7 +588,48 @@ public class RandomForest implements ClassifierModel {
 	*/
 	@Override
 	public Map<Integer, Double> classProbabilities(int[] X) {
-		return null;
+		double[] probabilities = new double[numCategories];
+		classProbabilities(X, probabilities);
+		Map<Integer, Double> categoryProbabilities = new HashMap<>();
+		for (int c = 0; c<probabilities.length; c++) {
+			if ( probabilities[c]>0.0 ) {
+				categoryProbabilities.put(c, probabilities[c]);
+			}
+		}
+		return categoryProbabilities;
+	}
+
+	/** Average the class distributions of the leaves X lands in across all
+	 *  trees, putting the probability of category c in probabilities[c].
+	 *  The buffer needs room for {@link #getNumberOfCategories()} values and
+	 *  is all zero if there are no trees. Doesn't allocate anything.
+	 */
+	public void classProbabilities(int[] X, double[] probabilities) {
+		Arrays.fill(probabilities, 0, numCategories, 0.0);
+		int n = 0;
+		for (FlatDecisionTree tree : flatTrees) {
+			if ( tree.getNumberOfNodes()==0 ) continue;
+			double[] leafProbabilities = tree.getLeafProbabilities(tree.leafIndex(X));
+			for (int c = 0; c<leafProbabilities.length; c++) {
+				probabilities[c] += leafProbabilities[c];
+			}
+			n++;
+		}
+		if ( n>0 ) {
+			for (int c = 0; c<numCategories; c++) {
+				probabilities[c] /= n;
+			}
+		}
+	}
+
+	public int getNumberOfCategories() { return numCategories; }
+
+	/** Save this forest for scoring, with the column metadata of data, the
+	 *  table it was trained on; see {@link BinaryForestFormat}. Load it with
+	 *  {@link MappedRandomForest#load(String)}.
+	 */
+	public void saveBinary(String fileName, DataTable data) {
+		BinaryForestFormat.save(flatTrees, numCategories, data, fileName);
 	}
 
 	/**
@@ -110,7 +644,13 @@ public class RandomForest implements ClassifierModel {
 		}
 		List<Integer> predictions = new ArrayList<>();
 		for (DecisionTree tree : trees) {
-			predictions.add( tree.classify(unknown) );
+			int prediction = tree.classify(unknown);
+			if ( prediction!=DecisionTree.INVALID_CATEGORY ) { // empty trees don't vote
+				predictions.add(prediction);
+			}
+		}
+		if ( predictions.isEmpty() ) {
+			return DecisionTree.INVALID_CATEGORY;
 		}
 		return majorityVote(predictions);
 
@@ -141,52 +681,298 @@ public class RandomForest implements ClassifierModel {
 		*/
 	}
 
-	/** Return the out-of-bag error estimate */
+	/* Each bootstrap leaves out about 1/3 of the data rows, called the
+	   out-of-bag sample for that tree. Combining just the trees that were
+	   NOT trained on row i gives an unbiased prediction for row i, so the
+	   forest estimates its own generalization error without k-fold cross
+	   validation. All of these need the table the forest was trained on,
+	   with its rows in the same order, and score blocks of rows in parallel
+	   per setNumThreads() or setExecutor().
+	 */
+
+	/** Return the out-of-bag error estimate: the fraction of rows, among
+	 *  those out-of-bag for at least one tree, that the trees not trained
+	 *  on them misclassify. NaN if no row was ever out-of-bag.
+	 */
 	public double getErrorEstimate(DataTable data) {
-		int mismatches = 0;
-		int n = 0; // how many rows had oob estimators?
-		Set<DecisionTree>[] outOfBagEstimators = getOutOfBagEstimatorSets(data);
-		List<Integer> misses = new ArrayList<>();
-		for (int i = 0; i<data.size(); i++) {
-			if ( outOfBagEstimators[i]==null ) {
-				continue; // for small number of trees, some data rows might not appear in oob set
+		checkTrainingData(data);
+		return allOutOfBagVotes(data).error();
+	}
+
+	/** Return the out-of-bag confusion matrix where element [a][p] counts
+	 *  the rows of category a that out-of-bag trees predict to be category
+	 *  p. Rows that were in-bag for every tree aren't counted.
+	 */
+	public int[][] getOutOfBagConfusionMatrix(DataTable data) {
+		int[] predictions = getOutOfBagPredictions(data);
+		int yi = data.getPredictedCol();
+		int[][] counts = new int[numCategories][numCategories];
+		for (int i = 0; i<predictions.length; i++) {
+			if ( predictions[i]!=DecisionTree.INVALID_CATEGORY ) {
+				counts[data.getAsInt(i, yi)][predictions[i]]++;
 			}
-			n++;
-			int[] row = data.getRow(i);
-			int oobPrediction = classify(outOfBagEstimators[i], row);
-			int actualCategory = row[data.getPredictedCol()];
-			if ( oobPrediction!=actualCategory ) {
-				mismatches++;
-			}
-		}
-		return ((float)mismatches) / n;
-	}
-
-	/** For each observation in data, (X_i,y_i), compute set of trees that were not
-	 *  trained on (X_i,y_i).  Each bootstrap leaves out about 1/3 of data rows
-	 *  and is called the out-of-bag sample for that tree.  What we need to
-	 *  estimate OOB error is a classifier for (X_i,y_i) that combines all
-	 *  trees that were NOT trained on (X_i,y_i).
-	 *
-	 *  The ith element of the result array is the set of trees not trained on ith data row.
-	 *
-	 *  We rely on the default System identity hash for DecisionTree here
-	 *  for the set so all trees are different and can coexist in set.
-	 */
-	public Set<DecisionTree>[] getOutOfBagEstimatorSets(DataTable data) {
-		Set<DecisionTree>[] outOfBagEstimators = new HashSet[data.size()];
-		int numEstimators = treeOutOfBagSampleIndexes.size();
-		for (int k = 0; k<numEstimators; k++) { //
-			Set<Integer> oobIndexes = treeOutOfBagSampleIndexes.get(k);
-			for (Integer i : oobIndexes) { // for each observation not used to build tree k
-				if ( outOfBagEstimators[i]==null ) {
-					outOfBagEstimators[i] = new HashSet<>();
+		}
+		return counts;
+	}
+
+	/** Return the majority vote of the out-of-bag trees for each row of
+	 *  the training data or {@link DecisionTree#INVALID_CATEGORY} for rows
+	 *  that were in-bag for every tree. Ties go to the smallest category.
+	 */
+	public int[] getOutOfBagPredictions(DataTable data) {
+		checkTrainingData(data);
+		OutOfBagVotes votes = allOutOfBagVotes(data);
+		int[] out = new int[data.size()];
+		for (int i = 0; i<out.length; i++) {
+			out[i] = votes.predict(i);
+		}
+		return out;
+	}
+
+	/** Approximate leave-one-out with the out-of-bag predictions: a row's
+	 *  out-of-bag trees were all trained without it. Rows that were in-bag
+	 *  for every tree have no estimate.
+	 */
+	@Override
+	public int[] getLeaveOneOutPredictions(DataTable data) {
+		return getOutOfBagPredictions(data);
+	}
+
+	/** Return the out-of-bag error estimate of the first k trees of the
+	 *  forest in element k-1, for all k, as if we'd trained forests of 1, 2,
+	 *  ... trees. It costs about as much as scoring each row once per tree,
+	 *  in one parallel pass over blocks of rows.
+	 */
+	public double[] getOutOfBagErrorCurve(DataTable data) {
+		checkTrainingData(data);
+		OutOfBagVotes votes = new OutOfBagVotes(data);
+		ExecutorService pool = acquirePool();
+		try {
+			return votes.addTreesTrackingError(pool, 0, flatTrees.length);
+		}
+		finally {
+			releasePool(pool);
+		}
+	}
+
+	/** The out-of-bag votes of all trees for the rows of data */
+	protected OutOfBagVotes allOutOfBagVotes(DataTable data) {
+		OutOfBagVotes votes = new OutOfBagVotes(data);
+		ExecutorService pool = acquirePool();
+		try {
+			votes.addTrees(pool, 0, flatTrees.length);
+		}
+		finally {
+			releasePool(pool);
+		}
+		return votes;
+	}
+
+	/** Return, for each row of the training data, the class probabilities
+	 *  averaged over the trees for which that row was out-of-bag; see
+	 *  {@link #classProbabilities(int[], double[])}. Element [i][c] is the
+	 *  probability of category c for row i. A row that was in-bag for every
+	 *  tree gets all zeros.
+	 */
+	public double[][] getOutOfBagClassProbabilities(DataTable data) {
+		double[][] out = new double[checkTrainingData(data)][numCategories];
+		int[][] columns = columns(data);
+		ExecutorService pool = acquirePool();
+		try {
+			inBlocks(pool, out.length, (start, end) -> {
+				int[] numTrees = new int[end-start];
+				for (int k = 0; k<flatTrees.length; k++) {
+					FlatDecisionTree tree = flatTrees[k];
+					if ( tree.getNumberOfNodes()==0 ) continue;
+					BitSet inBag = treeInBagRows.get(k);
+					for (int i = inBag.nextClearBit(start); i<end; i = inBag.nextClearBit(i+1)) {
+						double[] leafProbabilities =
+							tree.getLeafProbabilities(tree.leafIndex(columns, data.getRowIndex(i)));
+						double[] probabilities = out[i];
+						for (int c = 0; c<leafProbabilities.length; c++) {
+							probabilities[c] += leafProbabilities[c];
+						}
+						numTrees[i-start]++;
+					}
 				}
-				// add kth tree to oob estimator set for data row i
-				outOfBagEstimators[i].add(trees.get(k));
+				for (int i = start; i<end; i++) {
+					int n = numTrees[i-start];
+					if ( n>0 ) {
+						for (int c = 0; c<numCategories; c++) {
+							out[i][c] /= n;
+						}
+					}
+				}
+			});
+		}
+		finally {
+			releasePool(pool);
+		}
+		return out;
+	}
+
+	/** Was the ith row of the training data in the bootstrap sample of tree k? */
+	public boolean isInBag(int k, int i) { return treeInBagRows.get(k).get(i); }
+
+	/** Return data.size() or throw an exception if the forest wasn't trained on data */
+	protected int checkTrainingData(DataTable data) {
+		if ( trees==null ) {
+			throw new IllegalArgumentException("forest hasn't been trained");
+		}
+		if ( data.size()!=numTrainingRows ) {
+			throw new IllegalArgumentException("out-of-bag estimates need the "+numTrainingRows+
+			                                   " training rows not "+data.size());
+		}
+		return data.size();
+	}
+
+	protected static int[][] columns(DataTable data) {
+		int[][] columns = new int[data.getNumberOfColumns()][];
+		for (int j = 0; j<columns.length; j++) {
+			columns[j] = data.getColumn(j);
+		}
+		return columns;
+	}
+
+	/** Votes of the trees for which each row of the training data was
+	 *  out-of-bag, which we can add trees to as the forest grows.
+	 */
+	protected class OutOfBagVotes {
+		protected final DataTable data;
+		protected final int[][] columns;
+		protected final int numCats;
+
+		/** votes[i*numCats+c] is how many trees predict c for row i */
+		protected final int[] votes;
+
+		public OutOfBagVotes(DataTable data) {
+			this.data = data;
+			this.columns = columns(data);
+			int yi = data.getPredictedCol();
+			this.numCats = Math.max(numCategories, data.getColMax(yi).intValue()+1);
+			this.votes = new int[data.size()*numCats];
+		}
+
+		/** Count the votes of trees from..to-1 in pool, or this thread if null */
+		public void addTrees(ExecutorService pool, int from, int to) {
+			inBlocks(pool, data.size(), (start, end) -> {
+				for (int k = from; k<to; k++) {
+					FlatDecisionTree tree = flatTrees[k];
+					if ( tree.getNumberOfNodes()==0 ) continue;
+					BitSet inBag = treeInBagRows.get(k);
+					for (int i = inBag.nextClearBit(start); i<end; i = inBag.nextClearBit(i+1)) {
+						votes[i*numCats+tree.classify(columns, data.getRowIndex(i))]++;
+					}
+				}
+			});
+		}
+
+		/** Count the votes of trees from..to-1 like {@link #addTrees} but
+		 *  return the error, as {@link #error()} would compute it, after
+		 *  adding each tree. Each block of rows goes through all the trees,
+		 *  tracking its misses as row predictions change, so it's one pass.
+		 */
+		public double[] addTreesTrackingError(ExecutorService pool, int from, int to) {
+			int numTrees = to-from;
+			int numBlocks = (data.size()+BATCH_SIZE-1)/BATCH_SIZE;
+			// per block, after each tree: rows with a prediction and how many are wrong
+			int[][] predicted = new int[numBlocks][numTrees];
+			int[][] mismatches = new int[numBlocks][numTrees];
+			int yi = data.getPredictedCol();
+			inBlocks(pool, data.size(), (start, end) -> {
+				int b = start/BATCH_SIZE;
+				int[] predictions = new int[end-start];
+				int n = 0;
+				int wrong = 0;
+				for (int i = start; i<end; i++) {
+					int p = predictions[i-start] = predict(i);
+					if ( p!=DecisionTree.INVALID_CATEGORY ) {
+						n++;
+						if ( p!=data.getAsInt(i, yi) ) wrong++;
+					}
+				}
+				for (int k = from; k<to; k++) {
+					FlatDecisionTree tree = flatTrees[k];
+					if ( tree.getNumberOfNodes()>0 ) {
+						BitSet inBag = treeInBagRows.get(k);
+						for (int i = inBag.nextClearBit(start); i<end; i = inBag.nextClearBit(i+1)) {
+							votes[i*numCats+tree.classify(columns, data.getRowIndex(i))]++;
+							int old = predictions[i-start];
+							int p = predict(i);
+							if ( p!=old ) {
+								int y = data.getAsInt(i, yi);
+								if ( old==DecisionTree.INVALID_CATEGORY ) n++;
+								else if ( old!=y ) wrong--;
+								if ( p!=y ) wrong++;
+								predictions[i-start] = p;
+							}
+						}
+					}
+					predicted[b][k-from] = n;
+					mismatches[b][k-from] = wrong;
+				}
+			});
+			double[] errors = new double[numTrees];
+			for (int k = 0; k<numTrees; k++) {
+				int n = 0;
+				int wrong = 0;
+				for (int b = 0; b<numBlocks; b++) {
+					n += predicted[b][k];
+					wrong += mismatches[b][k];
+				}
+				errors[k] = ((double)wrong) / n;
 			}
+			return errors;
+		}
+
+		/** The category with the most votes for row i, the smallest if
+		 *  tied, or {@link DecisionTree#INVALID_CATEGORY} if no votes.
+		 */
+		public int predict(int i) {
+			int offset = i*numCats;
+			int best = 0;
+			for (int c = 1; c<numCats; c++) {
+				if ( votes[offset+c]>votes[offset+best] ) best = c;
+			}
+			return numCats>0 && votes[offset+best]>0 ? best : DecisionTree.INVALID_CATEGORY;
+		}
+
+		/** See {@link #getErrorEstimate(DataTable)} */
+		public double error() {
+			int yi = data.getPredictedCol();
+			int mismatches = 0;
+			int n = 0;
+			for (int i = 0; i<data.size(); i++) {
+				int prediction = predict(i);
+				if ( prediction==DecisionTree.INVALID_CATEGORY ) continue;
+				n++;
+				if ( prediction!=data.getAsInt(i, yi) ) {
+					mismatches++;
+				}
+			}
+			return ((double)mismatches) / n;
+		}
+	}
+
+	protected interface Block {
+		void score(int start, int end);
+	}
+
+	/** Call block.score() for consecutive ranges of BATCH_SIZE of 0..n-1 in
+	 *  parallel in pool, or this thread if null. Blocks write disjoint parts
+	 *  of any output so they need no locking.
+	 */
+	protected static void inBlocks(ExecutorService pool, int n, Block block) {
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int start = 0; start<n; start += BATCH_SIZE) {
+			int from = start;
+			int to = Math.min(n, start+BATCH_SIZE);
+			tasks.add(() -> {
+				block.score(from, to);
+				return null;
+			});
 		}
-		return outOfBagEstimators;
+		invokeAll(pool, tasks);
 	}
 
 	public DecisionTree getTree(int i) {
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.DataTable;
+
+import java.util.Arrays;
+
+/** A train-time index in the spirit of SLIQ/SPRINT: sort each numeric
+ *  predictor column of a table exactly once, recording the physical rows
+ *  in ascending value order. A decision tree then keeps these orders
+ *  partitioned as it splits nodes so finding the best numeric split is a
+ *  linear scan rather than a sort at every node for every variable.
+ *
+ *  An index built from a table works for any table that shares its column
+ *  storage and uses a subset of its rows, such as the bootstrap samples
+ *  of a random forest. It is read-only once built and so can be shared
+ *  by trees trained in parallel.
+ */
+public class SortedColumnIndex {
+	/** sortedRows[j] holds the distinct physical rows of the indexed table
+	 *  sorted by column j; null if j is not a numeric predictor variable.
+	 */
+	protected final int[][] sortedRows;
+
+	/** How many rows are in the column storage of the indexed table */
+	protected final int numPhysicalRows;
+
+	public SortedColumnIndex(DataTable data) {
+		DataTable.VariableType[] colTypes = data.getColTypes();
+		this.numPhysicalRows = data.getNumberOfPhysicalRows();
+		this.sortedRows = new int[colTypes.length][];
+
+		// a table can list the same physical row more than once (bootstrap)
+		// but we only want each row once in the index
+		boolean[] seen = new boolean[numPhysicalRows];
+		int[] distinct = new int[data.size()];
+		int n = 0;
+		for (int i = 0; i<data.size(); i++) {
+			int r = data.getRowIndex(i);
+			if ( !seen[r] ) {
+				seen[r] = true;
+				distinct[n++] = r;
+			}
+		}
+
+		long[] keys = new long[n];
+		for (int j = 0; j<colTypes.length; j++) {
+			if ( !isPresortedVar(colTypes[j]) ) continue;
+			int[] col = data.getColumn(j);
+			for (int i = 0; i<n; i++) {
+				int key = DataTable.toSortableInt(col[distinct[i]], colTypes[j]);
+				keys[i] = ((long)key << 32) | distinct[i];
+			}
+			Arrays.sort(keys, 0, n);
+			int[] sorted = new int[n];
+			for (int i = 0; i<n; i++) {
+				sorted[i] = (int)keys[i];
+			}
+			sortedRows[j] = sorted;
+		}
+	}
+
+	/** Which columns get sorted? The same ones DecisionTree searches with
+	 *  bestNumericSplit(): predictor variables that aren't categorical.
+	 */
+	public static boolean isPresortedVar(DataTable.VariableType colType) {
+		return DataTable.isPredictorVar(colType) && !DataTable.isCategoricalVar(colType);
+	}
+
+	/** Physical rows in ascending order of column j or null if not indexed */
+	public int[] getSortedRows(int j) { return sortedRows[j]; }
+
+	public int getNumberOfPhysicalRows() { return numPhysicalRows; }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.animl.data.DataTable;
+
+import java.util.Arrays;
+
+/** Scratch space for scoring the splits of one variable at a tree node.
+ *  Each thread has its own, obtained with {@link #get()}, and reuses it
+ *  for every variable, node, and tree it works on so that searching for
+ *  splits allocates nothing once the arrays are big enough. A split search
+ *  must not fork or join while it uses the buffers as the thread could
+ *  then run another search that uses them too.
+ */
+class SplitBuffers {
+	protected static final ThreadLocal<SplitBuffers> perThread = ThreadLocal.withInitial(SplitBuffers::new);
+
+	/** Target category counts for the observations left and right of a
+	 *  candidate split. Exactly as long as the number of target categories.
+	 */
+	protected int[] lessThanCounts = new int[0];
+	protected int[] greaterThanCounts = new int[0];
+
+	/** Counts per (value or bin, category) pair, flattened */
+	protected int[] table = new int[0];
+
+	/** Observations per value or bin */
+	protected int[] sizes = new int[0];
+
+	/** Space to sort a node sample by a column; see {@link #sortBy} */
+	protected long[] keys = new long[0];
+
+	public static SplitBuffers get() { return perThread.get(); }
+
+	/** Size the less-than and greater-than counts for numCats categories
+	 *  and set them to all zeros and allCounts, respectively.
+	 */
+	public void startCounts(int[] allCounts, int numCats) {
+		if ( lessThanCounts.length!=numCats ) {
+			lessThanCounts = new int[numCats];
+			greaterThanCounts = new int[numCats];
+		}
+		Arrays.fill(lessThanCounts, 0);
+		System.arraycopy(allCounts, 0, greaterThanCounts, 0, numCats);
+	}
+
+	/** Move w observations of category cat from the greater-than side to
+	 *  the less-than side of the split.
+	 */
+	public void moveLeft(int cat, int w) {
+		lessThanCounts[cat] += w;
+		greaterThanCounts[cat] -= w;
+	}
+
+	/** Return a zeroed table with at least n entries */
+	public int[] table(int n) {
+		if ( table.length<n ) {
+			table = new int[Math.max(n, 2*table.length)];
+		}
+		Arrays.fill(table, 0, n, 0);
+		return table;
+	}
+
+	/** Return a zeroed array of sizes with at least n entries */
+	public int[] sizes(int n) {
+		if ( sizes.length<n ) {
+			sizes = new int[Math.max(n, 2*sizes.length)];
+		}
+		Arrays.fill(sizes, 0, n, 0);
+		return sizes;
+	}
+
+	/** Sort sample by column j, leaving its rows alone. Return keys where
+	 *  keys[0..n-1] hold the sample's sortable values of j and physical rows
+	 *  in order; see {@link #keyOf(long)} and {@link #rowOf(long)}.
+	 */
+	public long[] sortBy(DecisionTree.NodeSample sample, DataTable data, int j) {
+		int n = sample.n;
+		if ( keys.length<n ) {
+			keys = new long[Math.max(n, 2*keys.length)];
+		}
+		DataTable.VariableType colType = data.getColTypes()[j];
+		int[] col = data.getColumn(j);
+		int[] rows = sample.rows;
+		for (int i = 0; i<n; i++) {
+			int r = rows[i];
+			keys[i] = ((long)DataTable.toSortableInt(col[r], colType) << 32) | r;
+		}
+		Arrays.sort(keys, 0, n);
+		return keys;
+	}
+
+	public static int keyOf(long key) { return (int)(key >> 32); }
+
+	public static int rowOf(long key) { return (int)key; }
+}
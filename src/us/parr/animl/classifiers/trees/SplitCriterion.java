@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.classifiers.trees;
+
+import us.parr.lib.ParrtStats;
+
+/** How a decision tree measures the impurity of the target categories in
+ *  a region of data; a split's gain is the impurity of the node minus
+ *  the weighted impurity of its two regions. Counts arrays are indexed by
+ *  target category and the n arguments are their sums.
+ */
+public interface SplitCriterion {
+	/** Shannon entropy in bits, computed exactly as always */
+	SplitCriterion ENTROPY = new Entropy();
+
+	/** Gini impurity, 1 - sum of squared category probabilities; no logs */
+	SplitCriterion GINI = new Gini();
+
+	/** Shannon entropy in bits using a table of x*log2(x) for integer x;
+	 *  may differ from ENTROPY in the last few bits.
+	 */
+	SplitCriterion FAST_ENTROPY = new FastEntropy();
+
+	double impurity(int[] counts, int n);
+
+	/** The impurity of two regions weighted by their share of n1+n2 */
+	default double expectedImpurity(int[] region1Counts, int n1, int[] region2Counts, int n2) {
+		double p1 = ((double) n1)/(n1+n2);
+		double p2 = ((double) n2)/(n1+n2);
+		return p1*impurity(region1Counts, n1)+p2*impurity(region2Counts, n2);
+	}
+
+	/** The gain from splitting a region of impurity into two regions
+	 *  of weighted impurity expectedImpurity.
+	 */
+	default double gain(double impurity, double expectedImpurity) {
+		return impurity-expectedImpurity;
+	}
+
+	class Entropy implements SplitCriterion {
+		@Override
+		public double impurity(int[] counts, int n) { return ParrtStats.entropy(counts); }
+
+		@Override
+		public double expectedImpurity(int[] region1Counts, int n1, int[] region2Counts, int n2) {
+			return DecisionTree.expectedEntropy(region1Counts, n1, region2Counts, n2);
+		}
+
+		@Override
+		public String toString() { return "entropy"; }
+	}
+
+	class Gini implements SplitCriterion {
+		@Override
+		public double impurity(int[] counts, int n) {
+			if ( n==0 ) return 0.0;
+			long sumOfSquares = 0;
+			for (int c : counts) {
+				sumOfSquares += (long)c*c;
+			}
+			return 1.0 - sumOfSquares/((double)n*n);
+		}
+
+		@Override
+		public String toString() { return "gini"; }
+	}
+
+	/** With counts c_i summing to n, entropy is log2(n) - sum(c_i*log2(c_i))/n
+	 *  so n times the entropy is xlog2x(n) - sum(xlog2x(c_i)) and the
+	 *  weighted entropy of two regions is one subtraction per category
+	 *  away from a sum of table lookups.
+	 */
+	class FastEntropy implements SplitCriterion {
+		public static final double TOLERANCE = 1e-12;
+
+		/** xlog2x[x] is x*log2(x), 0 for x=0; grown as needed and
+		 *  replaced, never modified, so threads can share it.
+		 */
+		protected volatile double[] xlog2x = table(1024);
+
+		@Override
+		public double impurity(int[] counts, int n) {
+			if ( n==0 ) return 0.0;
+			double[] t = table(n);
+			double sum = t[n];
+			for (int c : counts) {
+				sum -= t[c];
+			}
+			return sum/n;
+		}
+
+		@Override
+		public double expectedImpurity(int[] region1Counts, int n1, int[] region2Counts, int n2) {
+			double[] t = table(Math.max(n1, n2));
+			double sum = t[n1]+t[n2];
+			for (int c : region1Counts) {
+				sum -= t[c];
+			}
+			for (int c : region2Counts) {
+				sum -= t[c];
+			}
+			return sum/(n1+n2);
+		}
+
+		/** Table lookups don't cancel exactly like the logs of ENTROPY do, so
+		 *  a split that separates nothing can appear to gain a few ulps.
+		 *  Treat such noise as no gain so we don't split on it.
+		 */
+		@Override
+		public double gain(double impurity, double expectedImpurity) {
+			double gain = impurity-expectedImpurity;
+			return gain>TOLERANCE ? gain : 0.0;
+		}
+
+		/** Return a table covering 0..n */
+		protected double[] table(int n) {
+			double[] t = xlog2x;
+			if ( t!=null && n<t.length ) return t;
+			int size = t!=null ? Math.max(n+1, 2*t.length) : n+1;
+			t = new double[size];
+			for (int x = 1; x<size; x++) {
+				t[x] = x*(Math.log(x)/Math.log(2));
+			}
+			xlog2x = t;
+			return t;
+		}
+
+		@Override
+		public String toString() { return "fast entropy"; }
+	}
+}
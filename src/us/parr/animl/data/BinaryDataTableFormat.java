@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A compact binary file format for a loaded {@link DataTable} so we
+ *  don't have to parse and sense types of the same CSV on every run.
+ *  All values are little-endian:
+ *
+ *  <pre>
+ *  int magic, int version, int numCols, int numRows, long dataOffset
+ *  byte hasColNames
+ *  for each column j:
+ *      string name (if hasColNames), string type, int colMax,
+ *      int number of dictionary strings (-1 if none), strings...
+ *  padding to dataOffset, a multiple of 8
+ *  column 0 values (numRows ints), column 1 values, ...
+ *  </pre>
+ *
+ *  A string is an int byte length followed by UTF-8 bytes; length -1 means null.
+ *  Loading reads just the header and maps the column blocks read-only
+ *  into {@link MappedColumns}, so opening costs no copy and processes
+ *  opening the same file share its pages, as with
+ *  {@link us.parr.animl.classifiers.trees.BinaryForestFormat} models.
+ *  Row reads and {@link us.parr.animl.classifiers.trees.RandomForest#classifyBatch}
+ *  use the pages directly; training, stats, and sorting need whole
+ *  columns as arrays and copy each column they touch once. Don't
+ *  overwrite a file while tables opened from it are in use.
+ */
+public class BinaryDataTableFormat {
+	public static final int MAGIC = 0x4C4D4E41; // "ANML" in little-endian order
+	public static final int VERSION = 1;
+
+	/** Bytes in magic, version, numCols, numRows, and dataOffset */
+	protected static final int FIXED_SIZE = 4*Integer.BYTES+Long.BYTES;
+
+	/** Don't map more than this many ints of a column at once; a
+	 *  MappedByteBuffer can't exceed 2G bytes.
+	 */
+	protected static final int MAX_INTS_PER_MAP = 1<<28;
+
+	public static void save(DataTable data, String fileName) {
+		int numCols = data.getNumberOfColumns();
+		int numRows = data.size();
+		byte[] header = header(data);
+		long dataOffset = (FIXED_SIZE+header.length+7) & ~7L;
+		try ( RandomAccessFile f = new RandomAccessFile(fileName, "rw");
+		      FileChannel channel = f.getChannel() )
+		{
+			f.setLength(0);
+			ByteBuffer buf = ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(numCols).putInt(numRows).putLong(dataOffset);
+			buf.flip();
+			write(channel, buf);
+			write(channel, ByteBuffer.wrap(header));
+			write(channel, ByteBuffer.allocate((int)(dataOffset-FIXED_SIZE-header.length)));
+			for (int j = 0; j<numCols; j++) {
+				buf.clear();
+				for (int i = 0; i<numRows; i++) {
+					if ( buf.remaining()<Integer.BYTES ) {
+						buf.flip();
+						write(channel, buf);
+						buf.clear();
+					}
+					buf.putInt(data.getAsInt(i, j));
+				}
+				buf.flip();
+				write(channel, buf);
+			}
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Can't write "+fileName, ioe);
+		}
+	}
+
+	public static DataTable load(String fileName) {
+		try ( RandomAccessFile f = new RandomAccessFile(fileName, "r");
+		      FileChannel channel = f.getChannel() )
+		{
+			if ( channel.size()<FIXED_SIZE ) {
+				throw new IllegalArgumentException(fileName+" is not a binary data table");
+			}
+			ByteBuffer fixed = channel.map(FileChannel.MapMode.READ_ONLY, 0, FIXED_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if ( fixed.getInt()!=MAGIC ) {
+				throw new IllegalArgumentException(fileName+" is not a binary data table");
+			}
+			int version = fixed.getInt();
+			if ( version!=VERSION ) {
+				throw new IllegalArgumentException(fileName+" has unsupported version "+version);
+			}
+			int numCols = fixed.getInt();
+			int numRows = fixed.getInt();
+			long dataOffset = fixed.getLong();
+			if ( dataOffset+4L*numCols*numRows>channel.size() ) {
+				throw new IllegalArgumentException(fileName+" is truncated");
+			}
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, FIXED_SIZE, dataOffset-FIXED_SIZE)
+			                           .order(ByteOrder.LITTLE_ENDIAN);
+			DataTable schema = readHeader(header, numCols);
+
+			// mappings stay valid after the channel closes; nothing is read until used
+			IntBuffer[][] pieces = new IntBuffer[numCols][];
+			long pos = dataOffset;
+			for (int j = 0; j<numCols; j++) {
+				int numPieces = Math.max(1, (int)((numRows+(long)MAX_INTS_PER_MAP-1)/MAX_INTS_PER_MAP));
+				pieces[j] = new IntBuffer[numPieces];
+				for (int p = 0; p<numPieces; p++) {
+					int n = Math.min(numRows-p*MAX_INTS_PER_MAP, MAX_INTS_PER_MAP);
+					MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L*n);
+					pieces[j][p] = block.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+					pos += 4L*n;
+				}
+			}
+			return new DataTable(new MappedColumns(pieces, numRows), schema.colTypes, schema.colNames,
+			                     schema.colMaxes, schema.colStringToIntMap);
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Can't open and/or read "+fileName, ioe);
+		}
+	}
+
+	/** Everything between the fixed-size fields and the column blocks:
+	 *  column names, types, maxes, and string dictionaries. Other binary
+	 *  formats, such as saved models, use this to describe columns too.
+	 */
+	public static byte[] header(DataTable data) {
+		String[] colNames = data.getColNames();
+		DataTable.VariableType[] colTypes = data.getColTypes();
+		List<byte[]> strings = new ArrayList<>();
+		int size = 1;
+		for (int j = 0; j<colTypes.length; j++) {
+			if ( colNames!=null ) {
+				size += addString(strings, colNames[j]);
+			}
+			size += addString(strings, colTypes[j].name());
+			size += 2*Integer.BYTES;
+			StringTable dict = data.colStringToIntMap!=null ? data.colStringToIntMap[j] : null;
+			if ( dict!=null ) {
+				for (String s : dict.toList()) {
+					size += addString(strings, s);
+				}
+			}
+		}
+		ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put((byte)(colNames!=null ? 1 : 0));
+		int s = 0;
+		for (int j = 0; j<colTypes.length; j++) {
+			if ( colNames!=null ) {
+				putString(buf, strings.get(s++));
+			}
+			putString(buf, strings.get(s++));
+			buf.putInt(data.colMaxes[j]);
+			StringTable dict = data.colStringToIntMap!=null ? data.colStringToIntMap[j] : null;
+			if ( dict!=null ) {
+				buf.putInt(dict.size());
+				for (int k = 0; k<dict.size(); k++) {
+					putString(buf, strings.get(s++));
+				}
+			}
+			else {
+				buf.putInt(-1);
+			}
+		}
+		return buf.array();
+	}
+
+	/** Read a {@link #header(DataTable)} for numCols columns from buf,
+	 *  returning a table with those columns but no rows.
+	 */
+	public static DataTable readHeader(ByteBuffer buf, int numCols) {
+		boolean hasColNames = buf.get()!=0;
+		String[] colNames = hasColNames ? new String[numCols] : null;
+		DataTable.VariableType[] colTypes = new DataTable.VariableType[numCols];
+		int[] colMaxes = new int[numCols];
+		StringTable[] colStringToIntMap = new StringTable[numCols];
+		for (int j = 0; j<numCols; j++) {
+			if ( hasColNames ) {
+				colNames[j] = getString(buf);
+			}
+			colTypes[j] = DataTable.VariableType.valueOf(getString(buf));
+			colMaxes[j] = buf.getInt();
+			int numStrings = buf.getInt();
+			if ( numStrings>=0 ) {
+				StringTable strings = new StringTable();
+				for (int s = 0; s<numStrings; s++) {
+					strings.add(getString(buf));
+				}
+				colStringToIntMap[j] = strings;
+			}
+		}
+		return new DataTable(new int[numCols][0], 0, colTypes, colNames, colMaxes, colStringToIntMap);
+	}
+
+	protected static int addString(List<byte[]> strings, String s) {
+		byte[] bytes = s!=null ? s.getBytes(StandardCharsets.UTF_8) : null;
+		strings.add(bytes);
+		return Integer.BYTES+(bytes!=null ? bytes.length : 0);
+	}
+
+	protected static void putString(ByteBuffer buf, byte[] bytes) {
+		if ( bytes==null ) {
+			buf.putInt(-1);
+			return;
+		}
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+
+	protected static String getString(ByteBuffer buf) {
+		int n = buf.getInt();
+		if ( n<0 ) return null;
+		byte[] bytes = new byte[n];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	protected static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while ( buf.hasRemaining() ) {
+			channel.write(buf);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static us.parr.animl.data.DataTable.VariableType.INVALID;
+import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_FLOAT;
+import static us.parr.animl.data.DataTable.VariableType.UNUSED_FLOAT;
+
+/** A summary of one column over a table's rows: smallest and largest
+ *  value, how many distinct values, and how many were missing (NA, N/A,
+ *  etc...) when the table was made from strings. Missing values are
+ *  stored as 0 so they count as values too. See {@link DataTable#getColumnStats(int)}.
+ */
+public class ColumnStats {
+	protected final DataTable.VariableType type;
+	protected final int numRows;
+
+	/** Raw values: ints, float bits, or string codes. 0 if no rows. */
+	protected final int min, max;
+
+	protected final int numMissing;
+
+	/** -1 if not counted */
+	protected final int numDistinct;
+
+	public ColumnStats(DataTable.VariableType type, int numRows, int min, int max, int numMissing, int numDistinct) {
+		this.type = type;
+		this.numRows = numRows;
+		this.min = min;
+		this.max = max;
+		this.numMissing = numMissing;
+		this.numDistinct = numDistinct;
+	}
+
+	/** Summarize column, whose values are type, for the physical rows
+	 *  rowIndexes[offset..offset+numRows-1] in one pass. Values are ordered
+	 *  as {@link DataTable#compare(int, int, DataTable.VariableType)} orders
+	 *  them; among equal maximums, the first is kept. If missing isn't
+	 *  null, bit r is on if physical row r was missing.
+	 */
+	public static ColumnStats compute(int[] column, DataTable.VariableType type,
+	                                  int[] rowIndexes, int offset, int numRows,
+	                                  BitSet missing, boolean countDistinct)
+	{
+		if ( numRows==0 ) {
+			return new ColumnStats(type, 0, 0, 0, 0, countDistinct ? 0 : -1);
+		}
+		if ( type==INVALID ) {
+			throw new IllegalArgumentException("invalid type: "+type);
+		}
+		boolean isFloat = type==NUMERICAL_FLOAT || type==UNUSED_FLOAT;
+		int[] keys = countDistinct ? new int[numRows] : null;
+		int min = 0, max = 0;
+		int minKey = Integer.MAX_VALUE, maxKey = Integer.MIN_VALUE;
+		int numMissing = 0;
+		for (int i = 0; i<numRows; i++) {
+			int r = rowIndexes[offset+i];
+			int v = column[r];
+			int key = isFloat ? DataTable.toSortableInt(v, type) : v;
+			if ( key<minKey || i==0 ) {
+				minKey = key;
+				min = v;
+			}
+			if ( key>maxKey || i==0 ) {
+				maxKey = key;
+				max = v;
+			}
+			if ( missing!=null && missing.get(r) ) {
+				numMissing++;
+			}
+			if ( keys!=null ) {
+				keys[i] = key;
+			}
+		}
+		int numDistinct = keys!=null ? countDistinct(keys, minKey, maxKey) : -1;
+		return new ColumnStats(type, numRows, min, max, numMissing, numDistinct);
+	}
+
+	/** Count distinct keys, all within minKey..maxKey, with a bitset if the
+	 *  range isn't much bigger than the number of keys or by sorting.
+	 */
+	protected static int countDistinct(int[] keys, int minKey, int maxKey) {
+		long range = (long)maxKey-minKey+1;
+		if ( range<=2L*keys.length+64 ) {
+			long[] seen = new long[(int)((range+63)>>>6)];
+			int n = 0;
+			for (int key : keys) {
+				int b = key-minKey;
+				long bit = 1L<<(b&63);
+				if ( (seen[b>>>6]&bit)==0 ) {
+					seen[b>>>6] |= bit;
+					n++;
+				}
+			}
+			return n;
+		}
+		Arrays.sort(keys);
+		int n = 1;
+		for (int i = 1; i<keys.length; i++) {
+			if ( keys[i]!=keys[i-1] ) n++;
+		}
+		return n;
+	}
+
+	public DataTable.VariableType getType() { return type; }
+
+	public int getNumberOfRows() { return numRows; }
+
+	/** The smallest value as an Integer or Float, per the column type */
+	public Number getMin() { return asNumber(min); }
+
+	/** The largest value as an Integer or Float, per the column type */
+	public Number getMax() { return asNumber(max); }
+
+	/** The smallest raw value; see {@link DataTable#getColumn(int)} */
+	public int getRawMin() { return min; }
+
+	public int getRawMax() { return max; }
+
+	public int getNumberOfMissingValues() { return numMissing; }
+
+	/** How many different values the column has; floats are compared by
+	 *  value so all NaNs count once but -0.0 and 0.0 are different.
+	 */
+	public int getNumberOfDistinctValues() { return numDistinct; }
+
+	protected Number asNumber(int v) {
+		if ( type==NUMERICAL_FLOAT || type==UNUSED_FLOAT ) {
+			return Float.intBitsToFloat(v);
+		}
+		return v;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s min=%s max=%s distinct=%d missing=%d",
+		                     type, getMin(), getMax(), numDistinct, numMissing);
+	}
+}
@@ -12,18 +12,19 @@ import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.input.BOMInputStream;
 import org.apache.commons.lang3.StringUtils;
 import sun.misc.FloatingDecimal;
-import us.parr.lib.ParrtCollections;
 import us.parr.lib.ParrtStats;
 import us.parr.lib.collections.CountingDenseIntSet;
 import us.parr.lib.collections.CountingSet;
 import us.parr.lib.collections.DenseIntSet;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -31,9 +32,15 @@ import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Collections.max;
 import static us.parr.animl.data.DataTable.VariableFormat.CENTER;
@@ -57,6 +64,9 @@ public class DataTable implements Iterable<int[]> {
 	public static final Pattern floatPattern = Pattern.compile("^-?[0-9]+\\.[0-9]*|\\.[0-9]+[eE][+-][0-9]+$");
 	public static final Pattern intPattern = Pattern.compile("^-?[0-9]+$");
 
+	/** Compute column stats and types in parallel if there are at least this many cells */
+	public static final int PARALLEL_THRESHOLD = 1<<16;
+
 	/** Input sometimes has NA or blanks for unknown values */
 	public static final Set<String> UNKNOWN_VALUE_STRINGS = new HashSet<String>() {{
 		add("");
@@ -100,15 +110,67 @@ public class DataTable implements Iterable<int[]> {
 		defaultVarFormats[UNUSED_STRING.ordinal()] = CENTER;
 	}
 
-	// TODO: this should be int[j][i] stored in columnar form; first index is the column then it goes down rows in that column
-	protected List<int[]> rows;
+	/** Column-major storage: columns[j][r] is the value of column j for
+	 *  physical row r. Tables derived from this one (subsets, bootstraps,
+	 *  node splits) share these arrays and differ only in rowIndexes.
+	 */
+	protected int[][] columns;
+
+	/** For a table loaded with {@link #loadBinary(String)}, the columns as
+	 *  they lie in the file, shared like columns; columns is null then.
+	 *  Row reads come straight from the file's pages and {@link #column(int)}
+	 *  copies a column to the heap only when something needs it whole.
+	 */
+	protected MappedColumns mapped;
+
+	/** The rows of this table are physical rows rowIndexes[offset..offset+numRows-1],
+	 *  in that order. Views like subset() share the array with the parent so
+	 *  partitioning rows in place is seen by the parent just as it was
+	 *  with List.subList().
+	 */
+	protected int[] rowIndexes;
+	protected int offset;
+	protected int numRows;
+
+	/** Bumped whenever rows are reordered in place, shared by all tables
+	 *  sharing rowIndexes, so a view knows its summaries are stale when
+	 *  another table moves rows in or out of its part of the array.
+	 */
+	protected AtomicInteger rowOrder = new AtomicInteger();
+
 	protected String[] colNames;
 	protected VariableType[] colTypes;
 	protected StringTable[] colStringToIntMap;
 	protected int[] colMaxes;
 
-	protected Set<Integer> cachedPredictionCategories;
-	protected int cachedMaxPredictionCategoryValue = -1;
+	/** colMissing[j] has bit r on if physical row r of column j was missing
+	 *  (NA, N/A, etc...) in the strings the table was made from. Null, or
+	 *  null for a column, if nothing was missing or we don't know. Shared
+	 *  like columns.
+	 */
+	protected BitSet[] colMissing;
+
+	/** Computed on demand for the rows this table has and dropped when
+	 *  they, their order, or the column types change. Null if nothing's
+	 *  been computed.
+	 */
+	protected volatile Summaries summaries;
+
+	/** What we know about the rows as of one {@link #rowOrder} value.
+	 *  Threads sharing a table may compute the same thing twice but only
+	 *  ever see complete results.
+	 */
+	protected static class Summaries {
+		protected final int rowOrder;
+		protected volatile ColumnStats[] colStats;
+		protected final AtomicReferenceArray<Set<Integer>> uniqueValues;
+		protected volatile int maxPredictionCategoryValue = -1;
+
+		public Summaries(int rowOrder, int numCols) {
+			this.rowOrder = rowOrder;
+			this.uniqueValues = new AtomicReferenceArray<>(numCols);
+		}
+	}
 
 	public DataTable() {
 	}
@@ -118,7 +180,8 @@ public class DataTable implements Iterable<int[]> {
 	}
 
 	public DataTable(List<int[]> rows, VariableType[] colTypes, String[] colNames, int[] colMaxes, StringTable[] colStringToIntMap) {
-		this.rows = rows;
+		int numCols = colTypes!=null ? colTypes.length : (rows.size()>0 ? rows.get(0).length : 0);
+		setColumnsFromRows(rows, numCols);
 		this.colMaxes = colMaxes;
 		this.colNames = colNames;
 		this.colTypes = colTypes;
@@ -128,6 +191,43 @@ public class DataTable implements Iterable<int[]> {
 		}
 	}
 
+	/** Make a table from column-major data, taking ownership of columns */
+	protected DataTable(int[][] columns, int numRows, VariableType[] colTypes, String[] colNames,
+	                    int[] colMaxes, StringTable[] colStringToIntMap)
+	{
+		this(numRows, colTypes, colNames, colMaxes, colStringToIntMap);
+		this.columns = columns;
+		if ( this.colMaxes==null ) {
+			computeColMaxes();
+		}
+	}
+
+	/** Make a table whose columns are read from a mapped file */
+	protected DataTable(MappedColumns mapped, VariableType[] colTypes, String[] colNames,
+	                    int[] colMaxes, StringTable[] colStringToIntMap)
+	{
+		this(mapped.getNumberOfRows(), colTypes, colNames, colMaxes, colStringToIntMap);
+		this.mapped = mapped;
+		if ( this.colMaxes==null ) {
+			computeColMaxes();
+		}
+	}
+
+	private DataTable(int numRows, VariableType[] colTypes, String[] colNames,
+	                  int[] colMaxes, StringTable[] colStringToIntMap)
+	{
+		this.rowIndexes = new int[numRows];
+		for (int i = 0; i<numRows; i++) {
+			rowIndexes[i] = i;
+		}
+		this.offset = 0;
+		this.numRows = numRows;
+		this.colTypes = colTypes;
+		this.colNames = colNames;
+		this.colMaxes = colMaxes;
+		this.colStringToIntMap = colStringToIntMap;
+	}
+
 	public static DataTable empty(VariableType[] colTypes, String[] colNames) {
 		return new DataTable(new ArrayList<>(), colTypes, colNames, null, null);
 	}
@@ -137,14 +237,57 @@ public class DataTable implements Iterable<int[]> {
 		this(rows, old.colTypes, old.colNames, old.colMaxes, old.colStringToIntMap);
 	}
 
-	/** Make a new table from an old table with shallow copy of rows */
+	/** Make a new table from an old table that shares the old table's column
+	 *  storage but that has its own copy of the row order.
+	 */
 	public DataTable(DataTable old) {
-		this.rows = new ArrayList<>(old.rows.size());
-		this.rows.addAll(old.rows);
-		this.colNames = old.colNames;
-		System.arraycopy(old.colMaxes, 0, this.colMaxes, 0, old.colMaxes.length);
+		this(old, Arrays.copyOfRange(old.rowIndexes, old.offset, old.offset+old.numRows), 0, old.numRows);
+		if ( old.colMaxes!=null ) {
+			this.colMaxes = old.colMaxes.clone();
+		}
+	}
+
+	/** Make a new table from an old table using a subset of the old
+	 *  table's physical rows. The columns are shared, not copied. Indexes
+	 *  can repeat, as they do for a bootstrap sample.
+	 */
+	public DataTable(DataTable old, int[] rowIndexes) {
+		this(old, rowIndexes, 0, rowIndexes.length);
+	}
+
+	/** Make a view of rowIndexes[offset..offset+numRows-1] sharing old's columns */
+	protected DataTable(DataTable old, int[] rowIndexes, int offset, int numRows) {
+		this.columns = old.columns;
+		this.mapped = old.mapped;
+		this.rowIndexes = rowIndexes;
+		this.offset = offset;
+		this.numRows = numRows;
 		this.colTypes = old.colTypes;
+		this.colNames = old.colNames;
+		this.colMaxes = old.colMaxes;
 		this.colStringToIntMap = old.colStringToIntMap;
+		this.colMissing = old.colMissing;
+		if ( rowIndexes==old.rowIndexes ) {
+			this.rowOrder = old.rowOrder;
+		}
+	}
+
+	/** Transpose row-major data into our column-major storage */
+	protected void setColumnsFromRows(List<int[]> rows, int numCols) {
+		int n = rows.size();
+		columns = new int[numCols][n];
+		for (int i = 0; i<n; i++) {
+			int[] row = rows.get(i);
+			for (int j = 0; j<numCols; j++) {
+				columns[j][i] = row[j];
+			}
+		}
+		rowIndexes = new int[n];
+		for (int i = 0; i<n; i++) {
+			rowIndexes[i] = i;
+		}
+		offset = 0;
+		numRows = n;
 	}
 
 	public static DataTable fromInts(List<int[]> rows, VariableType[] colTypes, String[] colNames) {
@@ -208,6 +351,7 @@ public class DataTable implements Iterable<int[]> {
 				colStringToIntMap[j] = new StringTable();
 			}
 		}
+		BitSet[] colMissing = new BitSet[colTypes.length];
 		// process strings into ints using appropriate conversion
 		List<int[]> rows2 = new ArrayList<>();
 		for (int i = hasHeaderRow ? 1 : 0; i < rows.size(); i++) {
@@ -217,6 +361,12 @@ public class DataTable implements Iterable<int[]> {
 				int col=0;
 				VariableType colType = colTypes[j];
 				String colValue = row[j];
+				if ( j<colMissing.length && UNKNOWN_VALUE_STRINGS.contains(colValue) ) {
+					if ( colMissing[j]==null ) {
+						colMissing[j] = new BitSet();
+					}
+					colMissing[j].set(rows2.size());
+				}
 				switch ( colType ) {
 					case CATEGORICAL_INT :
 					case NUMERICAL_INT :
@@ -246,6 +396,7 @@ public class DataTable implements Iterable<int[]> {
 		}
 		DataTable t = new DataTable(rows2, colTypes, colNames, null);
 		t.colStringToIntMap = colStringToIntMap;
+		t.colMissing = colMissing;
 		return t;
 	}
 
@@ -310,59 +461,26 @@ public class DataTable implements Iterable<int[]> {
 		}
 	}
 
-	public static DataTable loadCSV(String fileName, VariableType[] colTypes, boolean hasHeaderRow) {
-		int numCols = colTypes.length;
-		try {
-			final FileInputStream fis = new FileInputStream(fileName);
-			final Reader r = new InputStreamReader(new BOMInputStream(fis), "UTF-8");
-			final BufferedReader bf = new BufferedReader(r);
-			List<int[]> rows = new ArrayList<>();
-			String line;
-			String[] colNames = null;
-			if ( hasHeaderRow ) {
-				line=bf.readLine();
-				if ( line!=null ) {
-					line = line.trim();
-					if ( line.length()>0 ) {
-						colNames = line.split(",");
-						for (int i = 0; i<colNames.length; i++) {
-							colNames[i] = colNames[i].trim();
-						}
-					}
-				}
-			}
-			int n = 0;
-			while ( (line=bf.readLine())!=null ) {
-				if ( n>0 && n % 10000 == 0 ) System.out.println(n);
-				line = line.trim();
-				if ( line.length()==0 ) continue;
-				int[] row = new int[numCols];
-				int comma = line.indexOf(',', 0);
-				int prev = 0;
-				int col = 0;
-				while ( comma>=0 ) {
-					String v = line.substring(prev, comma);
-					row[col] = getValue(colTypes[col], v);
-
-					prev = comma+1;
-					comma = line.indexOf(',', comma+1);
-					col++;
-				}
-				// grab last element after last comma
-				String lastv = line.substring(prev, line.length());
-				row[col] = getValue(colTypes[col], lastv);
+	/** Open a table saved with {@link #saveBinary(String)}. Only the header
+	 *  is read; rows come from the mapped file as they're used, so this is
+	 *  much faster than loading a CSV. See {@link BinaryDataTableFormat}.
+	 */
+	public static DataTable loadBinary(String fileName) {
+		return BinaryDataTableFormat.load(fileName);
+	}
 
-//				System.out.println();
-				rows.add(row);
-				n++;
-			}
+	/** Save the rows of this table, in order, along with column names,
+	 *  types, and string dictionaries in a binary file.
+	 */
+	public void saveBinary(String fileName) {
+		BinaryDataTableFormat.save(this, fileName);
+	}
 
-			DataTable data = new DataTable(rows, colTypes, colNames, null);
-			return data;
-		}
-		catch (IOException ioe) {
-			throw new IllegalArgumentException("Can't open and/or read "+fileName, ioe);
-		}
+	/** Load a CSV file of ints and floats whose column types are known.
+	 *  Chunks of the file are parsed in parallel; see {@link MappedCSVLoader}.
+	 */
+	public static DataTable loadCSV(String fileName, VariableType[] colTypes, boolean hasHeaderRow) {
+		return new MappedCSVLoader(fileName, colTypes, hasHeaderRow).load();
 	}
 
 	protected static int getValue(VariableType colType, String v) {
@@ -380,98 +498,217 @@ public class DataTable implements Iterable<int[]> {
 	}
 
 
+	/** Guess column types from strings: int if all known values are ints,
+	 *  float if any are floats and the rest ints, otherwise a string; a
+	 *  string in the last column is the target. Values match
+	 *  {@link #intPattern} and {@link #floatPattern} but we test characters
+	 *  rather than run regexes. Float and string types are final so we stop
+	 *  scanning a column once it gets one, usually after its first rows;
+	 *  only int columns must be scanned to the end. Big tables are done a
+	 *  column per thread.
+	 */
 	protected static VariableType[] computeColTypes(List<String[]> rows, int numCols) {
 		VariableType[] actualTypes = new VariableType[numCols];
-		for (int j = 0; j<numCols; j++) {
-			actualTypes[j] = INVALID;
+		IntStream columns = IntStream.range(0, numCols);
+		if ( (long)rows.size()*numCols>=PARALLEL_THRESHOLD ) {
+			columns = columns.parallel();
 		}
+		columns.forEach(j -> actualTypes[j] = computeColType(rows, j));
+		return actualTypes;
+	}
+
+	protected static VariableType computeColType(List<String[]> rows, int j) {
+		VariableType type = INVALID;
 		for (String[] row : rows) {
-			for (int j = 0; j<numCols; j++) {
-				if ( intPattern.matcher(row[j]).find() ) {
-					if ( actualTypes[j]==INVALID ) { // only choose int if first type seen
-						actualTypes[j] = NUMERICAL_INT;
-					}
-				}
-				else if ( floatPattern.matcher(row[j]).find() ) { // let int become float but not vice versa
-					if ( actualTypes[j]==INVALID || actualTypes[j]==NUMERICAL_INT ) {
-						actualTypes[j] = NUMERICAL_FLOAT;
-					}
-				}
-				else { // anything else is a string
-					if ( !UNKNOWN_VALUE_STRINGS.contains(row[j]) ) { // if NA, N/A don't know type
-						// if we ever see a string, convert and don't change back
-						if ( actualTypes[j]==INVALID || actualTypes[j]==NUMERICAL_INT ) {
-							if ( j==row.length-1 ) { // assume last column is predicted var
-								actualTypes[j] = TARGET_CATEGORICAL_STRING;
-							}
-							else {
-								actualTypes[j] = CATEGORICAL_STRING;
-							}
-						}
-					}
-				}
+			String v = row[j];
+			if ( isIntString(v) ) {
+				type = NUMERICAL_INT; // only choose int if first type seen
+			}
+			else if ( isFloatString(v) ) { // let int become float but not vice versa
+				return NUMERICAL_FLOAT;
+			}
+			else if ( !UNKNOWN_VALUE_STRINGS.contains(v) ) { // if NA, N/A don't know type
+				// if we ever see a string, convert and don't change back
+				return j==row.length-1 ? TARGET_CATEGORICAL_STRING : CATEGORICAL_STRING; // assume last column is predicted var
 			}
 		}
-		return actualTypes;
+		return type;
+	}
+
+	/** Does s match {@link #intPattern}? */
+	public static boolean isIntString(String s) {
+		int n = endOfLine(s);
+		int i = n>0 && s.charAt(0)=='-' ? 1 : 0;
+		if ( i==n ) return false;
+		for (; i<n; i++) {
+			if ( !isDigit(s.charAt(i)) ) return false;
+		}
+		return true;
+	}
+
+	/** Does s contain a match for {@link #floatPattern}: digits and a dot
+	 *  at the start or a dot, digits, and an exponent at the end?
+	 */
+	public static boolean isFloatString(String s) {
+		int n = s.length();
+		int i = n>0 && s.charAt(0)=='-' ? 1 : 0;
+		int start = i;
+		while ( i<n && isDigit(s.charAt(i)) ) i++;
+		if ( i>start && i<n && s.charAt(i)=='.' ) return true;
+		int end = endOfLine(s);
+		int k = end; // exponent digits are k..end-1
+		while ( k>0 && isDigit(s.charAt(k-1)) ) k--;
+		if ( k==end || k<2 ) return false;
+		char sign = s.charAt(k-1);
+		char e = s.charAt(k-2);
+		if ( (sign!='+' && sign!='-') || (e!='e' && e!='E') ) return false;
+		int m = k-2; // fraction digits are m..k-3
+		while ( m>0 && isDigit(s.charAt(m-1)) ) m--;
+		return m<k-2 && m>0 && s.charAt(m-1)=='.';
 	}
 
+	/** Where a regex $ matches at the end of s: before a final line
+	 *  terminator, if any, else at the end.
+	 */
+	protected static int endOfLine(String s) {
+		int n = s.length();
+		if ( n==0 ) return 0;
+		char c = s.charAt(n-1);
+		if ( c=='\n' ) {
+			return n>1 && s.charAt(n-2)=='\r' ? n-2 : n-1;
+		}
+		if ( c=='\r' || c=='\u0085' || c=='\u2028' || c=='\u2029' ) {
+			return n-1;
+		}
+		return n;
+	}
+
+	protected static boolean isDigit(char c) { return c>='0' && c<='9'; }
+
+	/** Set each column's max to its largest value, or 0 if larger; see
+	 *  {@link ColumnStats}. Big tables are done a column per thread.
+	 */
 	public void computeColMaxes() {
-		if ( colTypes==null ) return;;
-		this.colMaxes = new int[colTypes.length];
-		for (int j = 0; j<getNumberOfColumns(); j++) {
-			VariableType colType = colTypes[j];
-			int max = 0;
-			for (int i = 0; i<size(); i++) {
-				int[] row = getRow(i);
-				if ( compare(row[j], max, colType)==1 ) {
-					max = row[j];
-				}
-			}
-			colMaxes[j] = max;
+		if ( colTypes==null ) return;
+		invalidateColumnStats();
+		int[] maxes = new int[colTypes.length];
+		overColumns().forEach(j -> {
+			ColumnStats stats = ColumnStats.compute(column(j), colTypes[j], rowIndexes, offset, numRows,
+			                                        missing(j), false);
+			maxes[j] = toSortableInt(stats.max, colTypes[j])>0 ? stats.max : 0;
+		});
+		this.colMaxes = maxes;
+	}
+
+	/** Return the min, max, number of distinct values, and number of
+	 *  missing values of column j over this table's rows. All columns are
+	 *  summarized at once, in parallel for big tables, and kept until the
+	 *  rows or column types change.
+	 */
+	public ColumnStats getColumnStats(int j) {
+		Summaries known = summaries();
+		ColumnStats[] stats = known.colStats;
+		if ( stats==null || stats[j].getType()!=colTypes[j] ) {
+			ColumnStats[] computed = new ColumnStats[getNumberOfColumns()];
+			overColumns().forEach(c -> computed[c] =
+				ColumnStats.compute(column(c), colTypes[c], rowIndexes, offset, numRows, missing(c), true));
+			known.colStats = stats = computed;
 		}
+		return stats[j];
+	}
+
+	/** Return what we know about the rows in their current order */
+	protected Summaries summaries() {
+		int order = rowOrder.get();
+		Summaries known = summaries;
+		if ( known==null || known.rowOrder!=order ) {
+			summaries = known = new Summaries(order, getNumberOfColumns());
+		}
+		return known;
+	}
+
+	/** Forget stats and unique values */
+	protected void invalidateColumnStats() {
+		summaries = null;
+	}
+
+	/** Note that rows were reordered in place, which every table sharing
+	 *  rowIndexes must see.
+	 */
+	protected void rowsReordered() {
+		rowOrder.incrementAndGet();
+	}
+
+	/** Column indexes, parallel if the table is big enough */
+	protected IntStream overColumns() {
+		IntStream columns = IntStream.range(0, getNumberOfColumns());
+		return (long)numRows*getNumberOfColumns()>=PARALLEL_THRESHOLD ? columns.parallel() : columns;
+	}
+
+	protected BitSet missing(int j) {
+		return colMissing!=null && j<colMissing.length ? colMissing[j] : null;
 	}
 
 	public int getMaxPredictionCategoryValue() {
-		if ( cachedMaxPredictionCategoryValue == -1 ) {
-			cachedMaxPredictionCategoryValue = max(getPredictionCategories());
+		Summaries known = summaries();
+		if ( known.maxPredictionCategoryValue == -1 ) {
+			known.maxPredictionCategoryValue = max(getPredictionCategories());
 		}
-		return cachedMaxPredictionCategoryValue;
+		return known.maxPredictionCategoryValue;
 	}
 
 	public Set<Integer> getPredictionCategories() {
-		if ( cachedPredictionCategories==null ) {
-			cachedPredictionCategories = getUniqueValues(getPredictedCol());
-		}
-		return cachedPredictionCategories;
+		return getUniqueValues(getPredictedCol());
 	}
 
+	/** Return the set of values in column colIndex, computed once until
+	 *  the rows change. It's shared, so it can't be modified.
+	 */
 	public Set<Integer> getUniqueValues(int colIndex) {
-		DenseIntSet values = new DenseIntSet(colMaxes[colIndex]);
-		for (int i = 0; i<size(); i++) { // for each row, count different values for col splitVariable
-			values.add( getAsInt(i,colIndex) ); // pretend everything is an int
+		AtomicReferenceArray<Set<Integer>> known = summaries().uniqueValues;
+		Set<Integer> values = known.get(colIndex);
+		if ( values==null ) {
+			int[] col = column(colIndex);
+			DenseIntSet computed = new DenseIntSet(colMaxes[colIndex]);
+			for (int i = offset; i<offset+numRows; i++) {
+				computed.add(col[rowIndexes[i]]); // pretend everything is an int
+			}
+			values = Collections.unmodifiableSet(computed);
+			known.set(colIndex, values);
 		}
 		return values;
 	}
 
+	/** Return how many of each value column colIndex has in a new set
+	 *  the caller owns.
+	 */
 	public CountingSet<Integer> getColValueCounts(int colIndex) {
-		CountingDenseIntSet values = new CountingDenseIntSet(colMaxes[colIndex]);
-		for (int i = 0; i<size(); i++) { // for each row, count different values for col splitVariable
-			values.add( getAsInt(i,colIndex) ); // pretend everything is an int
+		int[] col = column(colIndex);
+		CountingSet<Integer> values = new CountingDenseIntSet(colMaxes[colIndex]);
+		for (int i = offset; i<offset+numRows; i++) {
+			values.add(col[rowIndexes[i]]); // pretend everything is an int
 		}
 		return values;
 	}
 
 	public int[] getColValues(int colIndex) {
-		int[] values = new int[size()];
-		for (int i = 0; i<size(); i++) {
-			values[i] = getAsInt(i,colIndex);
+		int[] col = column(colIndex);
+		int[] values = new int[numRows];
+		for (int i = 0; i<numRows; i++) {
+			values[i] = col[rowIndexes[offset+i]];
 		}
 		return values;
 	}
 
 	public DataTable filter(Predicate<int[]> pred) {
-		List<int[]> filtered = ParrtCollections.filter(rows, pred);
-		return new DataTable(this, filtered);
+		int[] filtered = new int[numRows];
+		int n = 0;
+		for (int i = 0; i<numRows; i++) {
+			if ( pred.test(getRow(i)) ) {
+				filtered[n++] = rowIndexes[offset+i];
+			}
+		}
+		return new DataTable(this, Arrays.copyOf(filtered, n));
 	}
 
 	public double entropy(int colIndex) {
@@ -573,36 +810,128 @@ public class DataTable implements Iterable<int[]> {
 		}
 	}
 
-	/** Return new table with [i1..i2] inclusive in new table */
+	/** Partition rows [low..high] of this table in-place by swapping row
+	 *  indexes, not data. Same contract as the List-based
+	 *  {@link #categoricalPartition(List, int, int, int, int)}.
+	 */
+	public int categoricalPartition(int splitVariable, int splitCategory, int low, int high) {
+		int[] col = column(splitVariable);
+		int[] idx = rowIndexes;
+		int lo = offset+low;
+		int hi = offset+high;
+		int i = lo-1;
+		int j = hi+1;
+		while ( true ) {
+			do { i++; } while ( i<=hi && col[idx[i]]==splitCategory );
+			do { j--; } while ( j>=lo && col[idx[j]]!=splitCategory );
+			if ( i >= j ) {
+				rowsReordered();
+				return i-offset;
+			}
+			int savei = idx[i];
+			idx[i] = idx[j];
+			idx[j] = savei;
+		}
+	}
+
+	public int numericalFloatPartition(int splitVariable, double splitValue, int low, int high) {
+		int[] col = column(splitVariable);
+		int[] idx = rowIndexes;
+		int lo = offset+low;
+		int hi = offset+high;
+		int i = lo-1;
+		int j = hi+1;
+		while ( true ) {
+			do { i++; } while ( i<=hi && Float.intBitsToFloat(col[idx[i]])<splitValue );
+			do { j--; } while ( j>=lo && Float.intBitsToFloat(col[idx[j]])>=splitValue );
+			if ( i >= j ) {
+				rowsReordered();
+				return i-offset;
+			}
+			int savei = idx[i];
+			idx[i] = idx[j];
+			idx[j] = savei;
+		}
+	}
+
+	public int numericalIntPartition(int splitVariable, double splitValue, int low, int high) {
+		int[] col = column(splitVariable);
+		int[] idx = rowIndexes;
+		int lo = offset+low;
+		int hi = offset+high;
+		int i = lo-1;
+		int j = hi+1;
+		while ( true ) {
+			do { i++; } while ( i<=hi && col[idx[i]]<splitValue );
+			do { j--; } while ( j>=lo && col[idx[j]]>=splitValue );
+			if ( i >= j ) {
+				rowsReordered();
+				return i-offset;
+			}
+			int savei = idx[i];
+			idx[i] = idx[j];
+			idx[j] = savei;
+		}
+	}
+
+	/** Return new table with [i1..i2] inclusive in new table. The new
+	 *  table is a view that shares both columns and row order with this one.
+	 */
 	public DataTable subset(int i1, int i2) {
-		return new DataTable(this, rows.subList(i1, i2+1));
+		return new DataTable(this, rowIndexes, offset+i1, i2-i1+1);
 	}
 
 	/** Return new table with all data except [i1..i2] inclusive in new table */
 	public DataTable subsetNot(int i1, int i2) {
-		List<int[]> missingChunk = new ArrayList<>();
-		for (int i = 0; i<i1; i++) {
-			missingChunk.add(rows.get(i));
-		}
-		for (int i = i2+1; i<rows.size(); i++) {
-			missingChunk.add(rows.get(i));
-		}
+		int[] missingChunk = new int[numRows-(i2-i1+1)];
+		System.arraycopy(rowIndexes, offset, missingChunk, 0, i1);
+		System.arraycopy(rowIndexes, offset+i2+1, missingChunk, i1, numRows-i2-1);
 		return new DataTable(this, missingChunk);
 	}
 
-	/** Return new table with row i missing from table; makes shallow copy to do so. */
+	/** Return new table with row i missing from table; shares column data. */
 	public DataTable subsetNot(int i) {
-		List<int[]> lessOne = new ArrayList<>();
-		lessOne.addAll(rows);
-		lessOne.remove(i);
-		return new DataTable(this, lessOne);
+		return subsetNot(i, i);
 	}
 
 	/** Get a random subset of size n from the rows (with replacement)
 	 *  and return new DataTable.
 	 */
 	public DataTable randomSubset(int n) {
-		return new DataTable(this, ParrtStats.bootstrapWithRepl(this.rows, n));
+		List<Integer> sample = ParrtStats.bootstrapWithRepl(getRowIndexes(), n);
+		return new DataTable(this, toIntArray(sample));
+	}
+
+	/** Same as {@link #randomSubset(int)} but draw rows using random so
+	 *  callers can get reproducible samples without sharing a generator.
+	 */
+	public DataTable randomSubset(int n, Random random) {
+		int[] sample = new int[n];
+		for (int i = 0; i<n; i++) {
+			sample[i] = rowIndexes[offset+random.nextInt(numRows)];
+		}
+		return new DataTable(this, sample);
+	}
+
+	/** A read-only view of the physical row indexes of this table, in row
+	 *  order. Useful for sampling rows without touching the data.
+	 */
+	public List<Integer> getRowIndexes() {
+		return new AbstractList<Integer>() {
+			@Override
+			public Integer get(int i) { return rowIndexes[offset+i]; }
+
+			@Override
+			public int size() { return numRows; }
+		};
+	}
+
+	public static int[] toIntArray(List<Integer> values) {
+		int[] a = new int[values.size()];
+		for (int i = 0; i<a.length; i++) {
+			a[i] = values.get(i);
+		}
+		return a;
 	}
 
 	public int getNumberOfPredictorVar() { return getSubsetOfVarIndexes(getNumberOfColumns(), null).size(); }
@@ -627,10 +956,9 @@ public class DataTable implements Iterable<int[]> {
 	}
 
 	/** Create a set that counts how many of each value in colIndex there is. Only
-	 *  works on int-valued columns.
+	 *  works on int-valued columns. Same as {@link #getColValueCounts(int)}.
 	 */
 	public CountingSet<Integer> valueCountsInColumn(int colIndex) {
-		CountingSet<Integer> valueCounts = new CountingDenseIntSet(colMaxes[colIndex]);
 		if ( !(colTypes[colIndex]==NUMERICAL_INT ||
 			colTypes[colIndex]==CATEGORICAL_INT ||
 			colTypes[colIndex]==CATEGORICAL_STRING ||
@@ -639,42 +967,60 @@ public class DataTable implements Iterable<int[]> {
 		{
 			throw new IllegalArgumentException(colNames[colIndex]+" is not an int-based column; type is "+colTypes[colIndex]);
 		}
-		for (int i = 0; i<size(); i++) { // for each row, count different values for col splitVariable
-			int[] row = getRow(i);
-			int col = row[colIndex];
-			valueCounts.add(col);
-		}
-		return valueCounts;
+		return getColValueCounts(colIndex);
 	}
 
+	/** Stable sort of this table's rows by colIndex. We pack each row's
+	 *  sort key into the high 32 bits of a long and its position into
+	 *  the low 32 bits so a primitive sort gives the same order a stable
+	 *  comparison sort would, without boxing or comparator calls.
+	 */
 	public void sortBy(int colIndex) {
-		switch ( colTypes[colIndex] ) {
-			case CATEGORICAL_INT :
-			case NUMERICAL_INT :
-			case CATEGORICAL_STRING : // strings are encoded as ints
-			case TARGET_CATEGORICAL_STRING:
-			case TARGET_CATEGORICAL_INT:
-			case UNUSED_INT :
-			case UNUSED_STRING :
-				Collections.sort(rows, (ra, rb) -> {
-					return Integer.compare(ra[colIndex], rb[colIndex]);
-				});
-				break;
-			case NUMERICAL_FLOAT :
-			case UNUSED_FLOAT :
-				Collections.sort(rows, (ra, rb) -> {
-					return Float.compare(Float.intBitsToFloat(ra[colIndex]),
-					                     Float.intBitsToFloat(rb[colIndex]));
-				});
-				break;
+		VariableType colType = colTypes[colIndex];
+		if ( colType==INVALID ) return;
+		int[] col = column(colIndex);
+		long[] keys = new long[numRows];
+		for (int i = 0; i<numRows; i++) {
+			int key = toSortableInt(col[rowIndexes[offset+i]], colType);
+			keys[i] = ((long)key << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[numRows];
+		for (int i = 0; i<numRows; i++) {
+			sorted[i] = rowIndexes[offset+(int)keys[i]];
 		}
+		System.arraycopy(sorted, 0, rowIndexes, offset, numRows);
+		rowsReordered();
 	}
 
+	/** Map a column value to an int whose signed order is the order of
+	 *  the original values. Int-based values already sort properly. For
+	 *  floats, flip the magnitude bits of negative values so that the
+	 *  IEEE-754 bits sort like {@link Float#compare(float, float)}:
+	 *  -0.0 before 0.0 and NaN after everything.
+	 */
+	public static int toSortableInt(int value, VariableType colType) {
+		if ( colType==NUMERICAL_FLOAT || colType==UNUSED_FLOAT ) {
+			int bits = Float.floatToIntBits(Float.intBitsToFloat(value)); // collapse NaNs
+			return bits ^ ((bits >> 31) & 0x7fffffff);
+		}
+		return value;
+	}
+
+	/** Shuffle rows in place; same algorithm and so the same order as
+	 *  {@link Collections#shuffle(List, Random)}.
+	 */
 	public void shuffle(Random random) {
-		Collections.shuffle(rows, random);
+		for (int i = numRows; i>1; i--) {
+			int j = random.nextInt(i);
+			int save = rowIndexes[offset+i-1];
+			rowIndexes[offset+i-1] = rowIndexes[offset+j];
+			rowIndexes[offset+j] = save;
+		}
+		rowsReordered();
 	}
 
-	public int size() { return rows.size(); }
+	public int size() { return numRows; }
 
 	/** Return the data[i,j] item as an appropriate object: Integer, Float, String */
 	public Object get(int i, int j) {
@@ -682,21 +1028,99 @@ public class DataTable implements Iterable<int[]> {
 	}
 
 	public int getAsInt(int i, int j) {
-		return rows.get(i)[j];
+		int r = rowIndexes[offset+i];
+		return mapped!=null ? mapped.get(j, r) : columns[j][r];
 	}
 
 	public float getAsFloat(int i, int j) {
-		return getAsFloat(rows.get(i)[j]);
+		return getAsFloat(getAsInt(i, j));
 	}
 
 	public static float getAsFloat(int a) {
 		return Float.intBitsToFloat(a);
 	}
 
-	public int[] getRow(int i) { return rows.get(i); }
-	public void removeRow(int i) { rows.remove(i); }
+	/** Return the physical row index of row i, suitable for indexing the
+	 *  arrays returned by {@link #getColumn(int)}.
+	 */
+	public int getRowIndex(int i) { return rowIndexes[offset+i]; }
+
+	/** Return the raw column storage for column j, indexed by physical row
+	 *  (see {@link #getRowIndex(int)}). It is shared by all tables derived
+	 *  from the same data so don't modify it. For a table loaded with
+	 *  {@link #loadBinary(String)}, this copies the column out of the file
+	 *  the first time; use {@link #getAsInt(int, int)} or
+	 *  {@link #getRow(int, int[])} to read without copying.
+	 */
+	public int[] getColumn(int j) { return column(j); }
+
+	protected int[] column(int j) {
+		return mapped!=null ? mapped.toArray(j) : columns[j];
+	}
 
-	public List<int[]> getRows() { return rows; }
+	/** Are the columns read from a mapped file rather than heap arrays? */
+	public boolean isMapped() { return mapped!=null; }
+
+	/** How many rows are in the column storage shared by this table? That
+	 *  is one more than the largest valid physical row index.
+	 */
+	public int getNumberOfPhysicalRows() {
+		if ( mapped!=null ) return mapped.getNumberOfRows();
+		return columns.length>0 ? columns[0].length : 0;
+	}
+
+	/** Return a copy of row i; changing it does not affect the table */
+	public int[] getRow(int i) {
+		return getPhysicalRow(rowIndexes[offset+i], newRow());
+	}
+
+	/** Copy row i into row, which must have a slot per column, and return it */
+	public int[] getRow(int i, int[] row) {
+		return getPhysicalRow(rowIndexes[offset+i], row);
+	}
+
+	/** An array with a slot for each stored column */
+	protected int[] newRow() {
+		return new int[mapped!=null ? mapped.getNumberOfColumns() : columns.length];
+	}
+
+	protected int[] getPhysicalRow(int r, int[] row) {
+		if ( mapped!=null ) {
+			for (int j = 0; j<row.length; j++) {
+				row[j] = mapped.get(j, r);
+			}
+			return row;
+		}
+		for (int j = 0; j<row.length; j++) {
+			row[j] = columns[j][r];
+		}
+		return row;
+	}
+
+	/** Remove row i from this table only; a view gets its own row order
+	 *  first so the parent table is unaffected.
+	 */
+	public void removeRow(int i) {
+		int[] lessOne = new int[numRows-1];
+		System.arraycopy(rowIndexes, offset, lessOne, 0, i);
+		System.arraycopy(rowIndexes, offset+i+1, lessOne, i, numRows-i-1);
+		rowIndexes = lessOne;
+		rowOrder = new AtomicInteger(); // no longer shared
+		offset = 0;
+		numRows--;
+		invalidateColumnStats();
+	}
+
+	/** Return a copy of the data in row-major form. The table is stored by
+	 *  column so changes to the list or the rows do not affect the table.
+	 */
+	public List<int[]> getRows() {
+		List<int[]> rows = new ArrayList<>(numRows);
+		for (int i = 0; i<numRows; i++) {
+			rows.add(getRow(i));
+		}
+		return rows;
+	}
 
 	public String[] getColNames() {
 		return colNames;
@@ -708,16 +1132,19 @@ public class DataTable implements Iterable<int[]> {
 
 	public void setColTypes(VariableType[] colTypes) {
 		this.colTypes = colTypes;
+		invalidateColumnStats();
 	}
 
 	public void setColType(int colIndex, VariableType colType) {
 		this.colTypes[colIndex] = colType;
+		invalidateColumnStats();
 	}
 
 	public void setColType(String colName, VariableType colType) {
 		int j = indexOf(colNames, colName);
 		if ( j>=0 && j<colTypes.length ) {
 			this.colTypes[j] = colType;
+			invalidateColumnStats();
 		}
 		else {
 			throw new IllegalArgumentException("Column "+colName+" unknown");
@@ -732,8 +1159,7 @@ public class DataTable implements Iterable<int[]> {
 	}
 
 	public Object getValue(int rowi, int colj) {
-		int[] row = this.rows.get(rowi);
-		return getValue(this, row[colj], colj);
+		return getValue(this, getAsInt(rowi, colj), colj);
 	}
 
 	/** Return an object representing the true value of 'value'
@@ -813,19 +1239,48 @@ public class DataTable implements Iterable<int[]> {
 		return firstCol>=0 ? firstCol : getNumberOfColumns() - 1; // default to last column
 	}
 
+	/* Iterators, spliterators, and streams see the rows the table has when
+	   they're created; don't add, remove, or reorder rows while using them.
+	   Rows are copies, as from getRow().
+	 */
+
 	@Override
 	public Iterator<int[]> iterator() {
-		return new DataTableIterator(this);
+		return new DataTableIterator(this, rowIndexes, offset, offset+numRows);
 	}
 
 	@Override
 	public void forEach(Consumer<? super int[]> action) {
-		throw new UnsupportedOperationException();
+		spliterator().forEachRemaining(action);
 	}
 
+	/** Split rows into halves, down to single rows, for parallel streams */
 	@Override
 	public Spliterator<int[]> spliterator() {
-		throw new UnsupportedOperationException();
+		return new DataTableSpliterator(this, rowIndexes, offset, offset+numRows);
+	}
+
+	public Stream<int[]> stream() { return StreamSupport.stream(spliterator(), false); }
+
+	public Stream<int[]> parallelStream() { return StreamSupport.stream(spliterator(), true); }
+
+	/** Return the values of column j, in row order, as ints; floats are
+	 *  their IEEE-754 bits and strings their dictionary codes.
+	 */
+	public IntStream getColumnAsInts(int j) {
+		int[] column = column(j);
+		int[] rows = rowIndexes;
+		int first = offset;
+		return IntStream.range(0, numRows).map(i -> column[rows[first+i]]);
+	}
+
+	/** Return the values of numeric column j, in row order, as doubles */
+	public DoubleStream getColumnAsDoubles(int j) {
+		IntStream values = getColumnAsInts(j);
+		if ( colTypes[j]==NUMERICAL_FLOAT || colTypes[j]==UNUSED_FLOAT ) {
+			return values.mapToDouble(Float::intBitsToFloat);
+		}
+		return values.asDoubleStream();
 	}
 
 	public static String[] getDefaultColNames(VariableType[] colTypes, int dim) {
@@ -864,7 +1319,7 @@ public class DataTable implements Iterable<int[]> {
 			buf.append(join(strings, ", "));
 			buf.append("\n");
 		}
-		for (int i = 0; i<rows.size(); i++) {
+		for (int i = 0; i<size(); i++) {
 			Object[] values = getValues(i);
 			buf.append(join(values, ", "));
 			buf.append("\n");
@@ -891,7 +1346,7 @@ public class DataTable implements Iterable<int[]> {
 			buf.append(name);
 		}
 		buf.append("\n");
-		for (int i = 0; i<rows.size(); i++) {
+		for (int i = 0; i<size(); i++) {
 			Object[] values = getValues(i);
 			for (int j = 0; j<colWidths.size(); j++) {
 				int colWidth = colWidths.get(j);
@@ -920,7 +1375,7 @@ public class DataTable implements Iterable<int[]> {
 	public int getColumnMaxWidth(int colIndex) {
 		int w = 0;
 		// scan column, find max width
-		for (int i = 0; i<rows.size(); i++) {
+		for (int i = 0; i<size(); i++) {
 			String v = getValue(i, colIndex).toString();
 			if ( v.length()>w ) {
 				w = v.length();
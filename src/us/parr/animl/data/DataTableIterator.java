@@ -7,16 +7,32 @@
 package us.parr.animl.data;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+/** Return copies of a table's rows, in order, filled straight from the
+ *  column storage, mapped or not.
+ */
 class DataTableIterator implements Iterator<int[]> {
-	protected final DataTable table;
-	protected int i = 0; // next element to return
+	protected final DataTable data;
+	protected final int[] rowIndexes;
+	protected int i; // next element to return, as a position in rowIndexes
+	protected final int end;
 
 	@Override
-	public boolean hasNext() { return i<table.size(); }
+	public boolean hasNext() { return i<end; }
 
 	@Override
-	public int[] next() { return table.getRow(i++); }
+	public int[] next() {
+		if ( i>=end ) {
+			throw new NoSuchElementException();
+		}
+		return data.getPhysicalRow(rowIndexes[i++], data.newRow());
+	}
 
-	public DataTableIterator(DataTable table) {this.table = table;	}
+	public DataTableIterator(DataTable data, int[] rowIndexes, int start, int end) {
+		this.data = data;
+		this.rowIndexes = rowIndexes;
+		this.i = start;
+		this.end = end;
+	}
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/** Split a table's rows into ranges for parallel streams. Each row is a
+ *  new array filled from the column storage, mapped or not, as
+ *  {@link DataTable#getRow(int)} returns. Ranges split in half so they
+ *  divide evenly among threads.
+ */
+class DataTableSpliterator implements Spliterator<int[]> {
+	protected final DataTable data;
+	protected final int[] rowIndexes;
+
+	/** Next row to return and one past the last, as positions in rowIndexes */
+	protected int i;
+	protected final int end;
+
+	public DataTableSpliterator(DataTable data, int[] rowIndexes, int start, int end) {
+		this.data = data;
+		this.rowIndexes = rowIndexes;
+		this.i = start;
+		this.end = end;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super int[]> action) {
+		if ( i>=end ) return false;
+		action.accept(row(rowIndexes[i++]));
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super int[]> action) {
+		int stop = end;
+		for (int k = i; k<stop; k++) {
+			action.accept(row(rowIndexes[k]));
+		}
+		i = stop;
+	}
+
+	@Override
+	public Spliterator<int[]> trySplit() {
+		int mid = (i+end) >>> 1;
+		if ( mid<=i ) return null;
+		Spliterator<int[]> prefix = new DataTableSpliterator(data, rowIndexes, i, mid);
+		i = mid;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() { return end-i; }
+
+	@Override
+	public int characteristics() { return SIZED|SUBSIZED|ORDERED|NONNULL; }
+
+	protected int[] row(int r) {
+		return data.getPhysicalRow(r, data.newRow());
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_INT;
+import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_STRING;
+import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_FLOAT;
+import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_INT;
+import static us.parr.animl.data.DataTable.VariableType.TARGET_CATEGORICAL_INT;
+
+/** Reproducible datasets for tests and benchmarks that need nothing but
+ *  this library: the CSV files bundled in data, some of which are 7z
+ *  archives that we unpack to a cache directory on first use, and
+ *  synthetic classification tables of any shape.
+ */
+public class Datasets {
+	/** Look for datasets in this directory before the classpath */
+	public static final String DATA_DIR_PROPERTY = "animl.data";
+
+	/** Unpack archives here rather than ~/.animl/datasets */
+	public static final String CACHE_DIR_PROPERTY = "animl.cache";
+
+	public static final String ARCHIVE_SUFFIX = ".7z";
+
+	/** Synthetic tables are at most this many values, about 400M bytes */
+	public static final long MAX_SYNTHETIC_CELLS = 100_000_000L;
+
+	/** Fraction of synthetic rows whose category is random rather than
+	 *  a function of the predictors, so trees can't be perfect.
+	 */
+	public static final double SYNTHETIC_NOISE = 0.1;
+
+	/** Generate synthetic tables this many rows at a time */
+	protected static final int ROW_BLOCK_SIZE = 1<<16;
+
+	/** Return a local file holding the bundled dataset fileName, such as
+	 *  "shuttle.csv", unpacking fileName.7z into the cache directory if the
+	 *  dataset is only available compressed.
+	 */
+	public static File file(String fileName) {
+		String dir = System.getProperty(DATA_DIR_PROPERTY);
+		if ( dir!=null ) {
+			File f = new File(dir, fileName);
+			if ( f.exists() ) return f;
+			File archive = new File(dir, fileName+ARCHIVE_SUFFIX);
+			if ( archive.exists() ) {
+				try {
+					return cached(archive.toURI().toURL(), fileName);
+				}
+				catch (IOException ioe) {
+					throw new IllegalArgumentException("can't unpack "+archive, ioe);
+				}
+			}
+		}
+		ClassLoader loader = Datasets.class.getClassLoader();
+		URL url = loader.getResource(fileName);
+		if ( url!=null && url.getProtocol().equals("file") ) {
+			return new File(url.getFile());
+		}
+		if ( url==null ) {
+			url = loader.getResource(fileName+ARCHIVE_SUFFIX);
+		}
+		if ( url==null ) {
+			throw new IllegalArgumentException("can't find dataset "+fileName);
+		}
+		try {
+			return cached(url, fileName); // compressed or inside a jar
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("can't unpack "+url, ioe);
+		}
+	}
+
+	/** Load bundled dataset fileName, sensing column types */
+	public static DataTable load(String fileName) {
+		return DataTable.loadCSV(file(fileName).getPath(), null, null, null, true);
+	}
+
+	public static File getCacheDir() {
+		String dir = System.getProperty(CACHE_DIR_PROPERTY);
+		if ( dir!=null ) return new File(dir);
+		return new File(new File(System.getProperty("user.home"), ".animl"), "datasets");
+	}
+
+	/** Return fileName in the cache directory, copying it from url first
+	 *  if it isn't there yet. If url is an archive, copy the archive entry
+	 *  called fileName. We copy to a temporary file and then rename it, so
+	 *  concurrent first uses never see a partial file.
+	 */
+	protected static File cached(URL url, String fileName) throws IOException {
+		File dir = getCacheDir();
+		File f = new File(dir, fileName);
+		if ( f.exists() ) return f;
+		if ( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory() ) {
+			throw new IOException("can't create cache directory "+dir);
+		}
+		File tmp = File.createTempFile(fileName, ".tmp", dir);
+		try {
+			byte[] bytes;
+			try ( InputStream in = url.openStream() ) {
+				bytes = IOUtils.toByteArray(in);
+			}
+			try ( OutputStream out = new FileOutputStream(tmp) ) {
+				if ( url.getPath().endsWith(ARCHIVE_SUFFIX) ) {
+					unpack(bytes, fileName, out);
+				}
+				else {
+					out.write(bytes);
+				}
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		return f;
+	}
+
+	/** Write the entry called fileName in the 7z archive to out */
+	protected static void unpack(byte[] archive, String fileName, OutputStream out) throws IOException {
+		try ( SevenZFile sevenZ = new SevenZFile(new SeekableInMemoryByteChannel(archive)) ) {
+			SevenZArchiveEntry entry;
+			while ( (entry = sevenZ.getNextEntry())!=null ) {
+				if ( entry.isDirectory() || !new File(entry.getName()).getName().equals(fileName) ) continue;
+				byte[] buf = new byte[1<<16];
+				int n;
+				while ( (n = sevenZ.read(buf))>0 ) {
+					out.write(buf, 0, n);
+				}
+				return;
+			}
+		}
+		throw new IOException("no "+fileName+" in archive");
+	}
+
+	/** Generate a classification table with numRows rows, numPredictors
+	 *  predictor columns, and a target column with numCategories
+	 *  categories 0..numCategories-1. Predictors cycle through the types we
+	 *  support: NUMERICAL_FLOAT in [0,1), NUMERICAL_INT and CATEGORICAL_INT
+	 *  in 0..cardinality-1, and CATEGORICAL_STRING with cardinality strings.
+	 *
+	 *  Each row's category comes from a random additive function of its
+	 *  predictors, except for a SYNTHETIC_NOISE fraction of rows that get
+	 *  a random category. The same arguments always give the same table,
+	 *  no matter how many threads build it.
+	 */
+	public static DataTable synthetic(int numRows, int numPredictors, int cardinality, int numCategories, long seed) {
+		if ( numRows<0 || numPredictors<0 ) {
+			throw new IllegalArgumentException("rows and columns can't be negative: "+numRows+"x"+numPredictors);
+		}
+		if ( cardinality<2 || numCategories<2 ) {
+			throw new IllegalArgumentException("need at least 2 values and categories: "+cardinality+", "+numCategories);
+		}
+		int numCols = numPredictors+1;
+		if ( (long)numRows*numCols>MAX_SYNTHETIC_CELLS ) {
+			throw new IllegalArgumentException(numRows+"x"+numCols+" is more than "+MAX_SYNTHETIC_CELLS+" values");
+		}
+		DataTable.VariableType[] syntheticTypes = {NUMERICAL_FLOAT, NUMERICAL_INT, CATEGORICAL_INT, CATEGORICAL_STRING};
+		DataTable.VariableType[] colTypes = new DataTable.VariableType[numCols];
+		String[] colNames = new String[numCols];
+		StringTable[] colStringToIntMap = new StringTable[numCols];
+		for (int j = 0; j<numPredictors; j++) {
+			colTypes[j] = syntheticTypes[j%syntheticTypes.length];
+			colNames[j] = "x"+j;
+			if ( colTypes[j]==CATEGORICAL_STRING ) {
+				StringTable strings = new StringTable();
+				for (int v = 0; v<cardinality; v++) {
+					strings.add("v"+v);
+				}
+				colStringToIntMap[j] = strings;
+			}
+		}
+		colTypes[numPredictors] = TARGET_CATEGORICAL_INT;
+		colNames[numPredictors] = "y";
+
+		// Each column gets its own generator so columns can be filled in parallel.
+		// effects[j][v] is how much value v of column j adds to a row's score;
+		// for numerical columns, v is scaled to 0..cardinality-1 first.
+		int[][] columns = new int[numCols][];
+		float[][] effects = new float[numPredictors][];
+		List<RecursiveAction> tasks = new ArrayList<>();
+		for (int j = 0; j<numPredictors; j++) {
+			int col = j;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					Random random = new Random(seed*31+col);
+					effects[col] = new float[cardinality];
+					for (int v = 0; v<cardinality; v++) {
+						effects[col][v] = 2*random.nextFloat()-1;
+					}
+					int[] values = new int[numRows];
+					for (int i = 0; i<numRows; i++) {
+						values[i] = colTypes[col]==NUMERICAL_FLOAT
+							? Float.floatToIntBits(random.nextFloat())
+							: random.nextInt(cardinality);
+					}
+					columns[col] = values;
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+
+		// Map each row's score to a category so categories come out about
+		// equally often. Scores are sums of numPredictors uniform effects,
+		// roughly normal, and the logistic curve approximates its CDF.
+		double variance = 0.0;
+		for (float[] effect : effects) {
+			for (float e : effect) {
+				variance += e*e/cardinality;
+			}
+		}
+		double scale = variance>0 ? 1.702/Math.sqrt(variance) : 0.0;
+		int[] target = new int[numRows];
+		columns[numPredictors] = target;
+		tasks.clear();
+		for (int start = 0; start<numRows; start += ROW_BLOCK_SIZE) {
+			int from = start;
+			int to = Math.min(numRows, start+ROW_BLOCK_SIZE);
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					Random random = new Random(~seed*31+from);
+					for (int i = from; i<to; i++) {
+						double score = 0.0;
+						for (int j = 0; j<numPredictors; j++) {
+							int v = columns[j][i];
+							if ( colTypes[j]==NUMERICAL_FLOAT ) {
+								v = (int)(Float.intBitsToFloat(v)*cardinality);
+							}
+							score += effects[j][v];
+						}
+						double p = 1.0/(1.0+Math.exp(-scale*score));
+						int category = Math.min(numCategories-1, (int)(p*numCategories));
+						if ( random.nextDouble()<SYNTHETIC_NOISE ) {
+							category = random.nextInt(numCategories);
+						}
+						target[i] = category;
+					}
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+		return new DataTable(columns, numRows, colTypes, colNames, null, colStringToIntMap);
+	}
+}
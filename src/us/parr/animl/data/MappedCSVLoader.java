@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/** Load a CSV file of ints and floats whose column types are known, such
+ *  as a big numeric data set, for {@link DataTable#loadCSV(String, DataTable.VariableType[], boolean)}.
+ *  We split the file into chunks of whole lines, memory-map each chunk,
+ *  and parse chunks in parallel directly from bytes without creating
+ *  strings. Then we stitch the chunks' columns together in file order.
+ *
+ *  Ints and most floats are converted directly; anything unusual, such
+ *  as "NaN" or a float needing more precision than a double offers, falls
+ *  back on the same string conversions the line-based loader used so
+ *  results are identical.
+ */
+public class MappedCSVLoader {
+	/** Try to give each chunk about this many bytes */
+	public static final int CHUNK_SIZE = 8*1024*1024;
+
+	protected final String fileName;
+	protected final DataTable.VariableType[] colTypes;
+	protected final boolean hasHeaderRow;
+
+	public MappedCSVLoader(String fileName, DataTable.VariableType[] colTypes, boolean hasHeaderRow) {
+		this.fileName = fileName;
+		this.colTypes = colTypes;
+		this.hasHeaderRow = hasHeaderRow;
+	}
+
+	/** The columns parsed from a chunk; only the first n values are valid */
+	protected static class Chunk {
+		int[][] columns;
+		int n;
+	}
+
+	public DataTable load() {
+		try ( RandomAccessFile f = new RandomAccessFile(fileName, "r");
+		      FileChannel channel = f.getChannel() )
+		{
+			long size = channel.size();
+			long start = skipBOM(channel);
+			String[] colNames = null;
+			if ( hasHeaderRow ) {
+				long headerEnd = endOfLine(channel, start, size);
+				colNames = readHeader(channel, start, headerEnd);
+				start = skipLineTerminator(channel, headerEnd, size);
+			}
+
+			// Chunk boundaries fall just after a newline so chunks hold whole lines
+			List<Long> boundaries = new ArrayList<>();
+			boundaries.add(start);
+			long p = start+CHUNK_SIZE;
+			while ( p<size ) {
+				long eol = endOfLine(channel, p, size);
+				if ( eol>=size ) break;
+				boundaries.add(eol+1);
+				p = eol+1+CHUNK_SIZE;
+			}
+			boundaries.add(size);
+
+			List<RecursiveTask<Chunk>> tasks = new ArrayList<>();
+			for (int c = 0; c<boundaries.size()-1; c++) {
+				long chunkStart = boundaries.get(c);
+				long chunkEnd = boundaries.get(c+1);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd-chunkStart);
+				tasks.add(new RecursiveTask<Chunk>() {
+					@Override
+					protected Chunk compute() { return parse(buf); }
+				});
+			}
+			List<Chunk> chunks = new ArrayList<>();
+			for (RecursiveTask<Chunk> task : ForkJoinTask.invokeAll(tasks)) {
+				chunks.add(task.join());
+			}
+
+			int numRows = 0;
+			for (Chunk chunk : chunks) {
+				numRows += chunk.n;
+			}
+			int[][] columns = new int[colTypes.length][numRows];
+			int row = 0;
+			for (Chunk chunk : chunks) {
+				for (int j = 0; j<colTypes.length; j++) {
+					System.arraycopy(chunk.columns[j], 0, columns[j], row, chunk.n);
+				}
+				row += chunk.n;
+			}
+			return new DataTable(columns, numRows, colTypes, colNames, null, null);
+		}
+		catch (IOException ioe) {
+			throw new IllegalArgumentException("Can't open and/or read "+fileName, ioe);
+		}
+	}
+
+	/** Parse the lines of buf, which is a chunk of whole lines. Like the
+	 *  line-based loader, trim lines and skip blank ones.
+	 */
+	protected Chunk parse(ByteBuffer buf) {
+		int numCols = colTypes.length;
+		Chunk chunk = new Chunk();
+		chunk.columns = new int[numCols][Math.max(16, buf.limit()/(8*Math.max(numCols, 1)))];
+		int limit = buf.limit();
+		int i = 0;
+		while ( i<limit ) {
+			int lineStart = i;
+			while ( i<limit && buf.get(i)!='\n' && buf.get(i)!='\r' ) i++;
+			int lineEnd = i;
+			i++; // skip line terminator
+			while ( lineStart<lineEnd && (buf.get(lineStart) & 0xFF)<=' ' ) lineStart++;
+			while ( lineEnd>lineStart && (buf.get(lineEnd-1) & 0xFF)<=' ' ) lineEnd--;
+			if ( lineStart==lineEnd ) continue;
+
+			if ( chunk.n==chunk.columns[0].length ) {
+				for (int j = 0; j<numCols; j++) {
+					int[] bigger = new int[chunk.n*2];
+					System.arraycopy(chunk.columns[j], 0, bigger, 0, chunk.n);
+					chunk.columns[j] = bigger;
+				}
+			}
+			int col = 0;
+			int fieldStart = lineStart;
+			for (int q = lineStart; q<=lineEnd; q++) {
+				if ( q==lineEnd || buf.get(q)==',' ) {
+					if ( col>=numCols ) {
+						throw new IllegalArgumentException("more than "+numCols+" values in line of "+fileName);
+					}
+					chunk.columns[col][chunk.n] = getValue(buf, fieldStart, q, colTypes[col]);
+					col++;
+					fieldStart = q+1;
+				}
+			}
+			chunk.n++;
+		}
+		return chunk;
+	}
+
+	protected static int getValue(ByteBuffer buf, int start, int stop, DataTable.VariableType colType) {
+		switch ( colType ) {
+			case NUMERICAL_FLOAT :
+				int s = start;
+				int e = stop;
+				while ( s<e && (buf.get(s) & 0xFF)<=' ' ) s++; // parseFloat() ignores whitespace
+				while ( e>s && (buf.get(e-1) & 0xFF)<=' ' ) e--;
+				float f = parseFloat(buf, s, e);
+				if ( f==f ) { // NaN means we couldn't parse it quickly
+					return Float.floatToIntBits(f);
+				}
+				break;
+			case NUMERICAL_INT :
+			case TARGET_CATEGORICAL_INT :
+				long v = parseInt(buf, start, stop);
+				if ( v!=Long.MIN_VALUE ) {
+					return (int)v;
+				}
+				break;
+		}
+		// unusual or malformed value; do it the slow way, which also reports errors
+		byte[] bytes = new byte[stop-start];
+		for (int i = 0; i<bytes.length; i++) {
+			bytes[i] = buf.get(start+i);
+		}
+		return DataTable.getValue(colType, new String(bytes, StandardCharsets.UTF_8));
+	}
+
+	/** Parse an optionally signed decimal int or return Long.MIN_VALUE if
+	 *  it's not one.
+	 */
+	protected static long parseInt(ByteBuffer buf, int start, int stop) {
+		int i = start;
+		boolean negative = false;
+		if ( i<stop && (buf.get(i)=='-' || buf.get(i)=='+') ) {
+			negative = buf.get(i)=='-';
+			i++;
+		}
+		if ( i==stop || stop-i>10 ) return Long.MIN_VALUE;
+		long v = 0;
+		for (; i<stop; i++) {
+			int d = buf.get(i)-'0';
+			if ( d<0 || d>9 ) return Long.MIN_VALUE;
+			v = v*10+d;
+		}
+		if ( negative ) v = -v;
+		if ( v<Integer.MIN_VALUE || v>Integer.MAX_VALUE ) return Long.MIN_VALUE;
+		return v;
+	}
+
+	/** Parse a float like [+-]digits[.digits][(e|E)[+-]digits] or return
+	 *  NaN if it's in another form or we can't guarantee the correctly
+	 *  rounded result. We keep at most 15 significant digits; if we drop
+	 *  nonzero digits, the value lies between mantissa and mantissa+1 (times
+	 *  the power of ten) and we succeed only if both bounds round to the same
+	 *  float, which they nearly always do as a float has about 7 digits.
+	 */
+	protected static float parseFloat(ByteBuffer buf, int start, int stop) {
+		int i = start;
+		boolean negative = false;
+		if ( i<stop && (buf.get(i)=='-' || buf.get(i)=='+') ) {
+			negative = buf.get(i)=='-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean truncated = false;
+		boolean sawDigit = false;
+		boolean sawDot = false;
+		for (; i<stop; i++) {
+			byte b = buf.get(i);
+			if ( b>='0' && b<='9' ) {
+				sawDigit = true;
+				if ( digits<15 ) {
+					mantissa = mantissa*10+(b-'0');
+					if ( mantissa>0 ) digits++; // leading zeros aren't significant
+					if ( sawDot ) exponent--;
+				}
+				else {
+					if ( b!='0' ) truncated = true;
+					if ( !sawDot ) exponent++;
+				}
+			}
+			else if ( b=='.' && !sawDot ) {
+				sawDot = true;
+			}
+			else {
+				break;
+			}
+		}
+		if ( !sawDigit ) return Float.NaN;
+		if ( i<stop ) {
+			byte b = buf.get(i);
+			if ( b!='e' && b!='E' ) return Float.NaN;
+			long exp = parseInt(buf, i+1, stop);
+			if ( exp==Long.MIN_VALUE ) return Float.NaN;
+			exponent += (int)exp;
+		}
+		float f = toFloat(mantissa, exponent);
+		if ( truncated && f!=toFloat(mantissa+1, exponent) ) {
+			return Float.NaN;
+		}
+		return negative ? -f : f;
+	}
+
+	protected static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Return mantissa*10^exponent correctly rounded to float or NaN if we
+	 *  can't be sure. The mantissa is less than 2^53 and powers of ten up to
+	 *  10^22 are exact doubles, so one multiply or divide rounds correctly
+	 *  to double; rounding that to float is then correct unless the double
+	 *  lies exactly halfway between two floats.
+	 */
+	protected static float toFloat(long mantissa, int exponent) {
+		if ( mantissa==0 ) return 0.0f;
+		double d;
+		if ( exponent>=0 && exponent<POWERS_OF_TEN.length ) {
+			d = mantissa*POWERS_OF_TEN[exponent];
+		}
+		else if ( exponent<0 && -exponent<POWERS_OF_TEN.length ) {
+			d = mantissa/POWERS_OF_TEN[-exponent];
+		}
+		else {
+			return Float.NaN;
+		}
+		if ( d<Float.MIN_NORMAL || d>Float.MAX_VALUE ) return Float.NaN;
+		if ( (Double.doubleToRawLongBits(d) & 0x1FFFFFFFL)==0x10000000L ) {
+			return Float.NaN; // halfway between two floats; can't round twice
+		}
+		return (float)d;
+	}
+
+	protected static long skipBOM(FileChannel channel) throws IOException {
+		ByteBuffer bom = ByteBuffer.allocate(3);
+		channel.read(bom, 0);
+		if ( bom.position()==3 && (bom.get(0) & 0xFF)==0xEF && (bom.get(1) & 0xFF)==0xBB && (bom.get(2) & 0xFF)==0xBF ) {
+			return 3;
+		}
+		return 0;
+	}
+
+	/** Return the position of the first \n or \r at or after p, or size */
+	protected static long endOfLine(FileChannel channel, long p, long size) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		while ( p<size ) {
+			buf.clear();
+			int n = channel.read(buf, p);
+			if ( n<=0 ) break;
+			for (int i = 0; i<n; i++) {
+				byte b = buf.get(i);
+				if ( b=='\n' || b=='\r' ) return p+i;
+			}
+			p += n;
+		}
+		return size;
+	}
+
+	/** Skip \n, \r, or \r\n at p */
+	protected static long skipLineTerminator(FileChannel channel, long p, long size) throws IOException {
+		if ( p>=size ) return size;
+		ByteBuffer buf = ByteBuffer.allocate(2);
+		channel.read(buf, p);
+		if ( buf.get(0)=='\r' && buf.position()>1 && buf.get(1)=='\n' ) {
+			return p+2;
+		}
+		return p+1;
+	}
+
+	/** Same as the line-based loader: split on commas and trim, or null if blank */
+	protected static String[] readHeader(FileChannel channel, long start, long end) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((int)(end-start));
+		while ( buf.hasRemaining() ) {
+			if ( channel.read(buf, start+buf.position())<0 ) break;
+		}
+		String line = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8).trim();
+		if ( line.length()==0 ) {
+			return null;
+		}
+		String[] colNames = line.split(",");
+		for (int i = 0; i<colNames.length; i++) {
+			colNames[i] = colNames[i].trim();
+		}
+		return colNames;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.data;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Column storage read straight from the pages of a file mapped read-only,
+ *  as {@link BinaryDataTableFormat} lays it out: each column is numRows
+ *  consecutive ints. Reading values costs no copy and the pages are shared
+ *  by all processes mapping the same file. Code that needs a whole column
+ *  as an array, such as the trainers, gets a heap copy made on first
+ *  demand and kept for later calls.
+ */
+public class MappedColumns {
+	protected final int numRows;
+
+	/** pieces[j][p] holds rows p*MAX_INTS_PER_MAP.. of column j; a mapping
+	 *  can't exceed 2G bytes so big columns take more than one.
+	 */
+	protected final IntBuffer[][] pieces;
+
+	/** Heap copies of columns made by {@link #toArray(int)}; null until asked for */
+	protected final AtomicReferenceArray<int[]> copies;
+
+	public MappedColumns(IntBuffer[][] pieces, int numRows) {
+		this.pieces = pieces;
+		this.numRows = numRows;
+		this.copies = new AtomicReferenceArray<>(pieces.length);
+	}
+
+	public int getNumberOfColumns() { return pieces.length; }
+
+	public int getNumberOfRows() { return numRows; }
+
+	/** Return the value of column j for physical row r */
+	public int get(int j, int r) {
+		IntBuffer[] col = pieces[j];
+		if ( col.length==1 ) {
+			return col[0].get(r);
+		}
+		return col[r/BinaryDataTableFormat.MAX_INTS_PER_MAP].get(r%BinaryDataTableFormat.MAX_INTS_PER_MAP);
+	}
+
+	/** Return column j as an array indexed by physical row, copying it from
+	 *  the mapping the first time. Threads asking at once might both copy
+	 *  but all get the same array. Don't modify it.
+	 */
+	public int[] toArray(int j) {
+		int[] col = copies.get(j);
+		if ( col!=null ) return col;
+		col = new int[numRows];
+		int done = 0;
+		for (IntBuffer piece : pieces[j]) {
+			int n = piece.limit();
+			piece.duplicate().get(col, done, n); // own position so threads can copy at once
+			done += n;
+		}
+		return copies.compareAndSet(j, null, col) ? col : copies.get(j);
+	}
+
+	/** Has column j been copied to the heap? */
+	public boolean isCopied(int j) { return copies.get(j)!=null; }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.validation;
+
+import java.util.Collections;
+import java.util.List;
+
+/** What parallel k-fold cross validation in {@link Validation} learned
+ *  about each fold: how long training and classifying took and which
+ *  categories were predicted for which.
+ */
+public class CrossValidationResult {
+	public static class Fold {
+		protected final int numTrainingRows;
+		protected final int numTestRows;
+		protected final int misses;
+		protected final long trainNanos;
+		protected final long classifyNanos;
+
+		/** confusion[actual][predicted] counts test rows; rows predicted
+		 *  as an invalid category are misses but aren't counted here.
+		 */
+		protected final int[][] confusion;
+
+		public Fold(int numTrainingRows, int numTestRows, int misses,
+		            long trainNanos, long classifyNanos, int[][] confusion)
+		{
+			this.numTrainingRows = numTrainingRows;
+			this.numTestRows = numTestRows;
+			this.misses = misses;
+			this.trainNanos = trainNanos;
+			this.classifyNanos = classifyNanos;
+			this.confusion = confusion;
+		}
+
+		/** The fraction of test rows misclassified */
+		public double getError() { return numTestRows>0 ? misses/(double)numTestRows : 0.0; }
+
+		public int getNumberOfTrainingRows() { return numTrainingRows; }
+
+		public int getNumberOfTestRows() { return numTestRows; }
+
+		public int getMisses() { return misses; }
+
+		public long getTrainNanos() { return trainNanos; }
+
+		public long getClassifyNanos() { return classifyNanos; }
+
+		public int[][] getConfusionMatrix() { return confusion; }
+
+		@Override
+		public String toString() {
+			return String.format("train %d rows %dms, classify %d rows %dms, error %.5f",
+			                     numTrainingRows, trainNanos/(1000*1000),
+			                     numTestRows, classifyNanos/(1000*1000), getError());
+		}
+	}
+
+	protected final List<Fold> folds;
+
+	public CrossValidationResult(List<Fold> folds) {
+		this.folds = folds;
+	}
+
+	public List<Fold> getFolds() { return Collections.unmodifiableList(folds); }
+
+	/** The mean of the fold errors, as the serial kFoldCross() computes */
+	public double getError() {
+		double sum = 0.0;
+		for (Fold fold : folds) {
+			sum += fold.getError();
+		}
+		return folds.size()>0 ? sum/folds.size() : 0.0;
+	}
+
+	/** The sum of the folds' confusion matrices, [actual][predicted] */
+	public int[][] getConfusionMatrix() {
+		int numCategories = folds.size()>0 ? folds.get(0).confusion.length : 0;
+		int[][] sum = new int[numCategories][numCategories];
+		for (Fold fold : folds) {
+			for (int a = 0; a<numCategories; a++) {
+				for (int p = 0; p<numCategories; p++) {
+					sum[a][p] += fold.confusion[a][p];
+				}
+			}
+		}
+		return sum;
+	}
+
+	/** Total time spent training, summed over folds run concurrently */
+	public long getTrainNanos() {
+		long sum = 0;
+		for (Fold fold : folds) {
+			sum += fold.trainNanos;
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i<folds.size(); i++) {
+			buf.append("fold ").append(i).append(": ").append(folds.get(i)).append('\n');
+		}
+		buf.append(String.format("error %.5f", getError()));
+		return buf.toString();
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2017 Terence Parr. All rights reserved.
+ * Use of this file is governed by the BSD 3-clause license that
+ * can be found in the LICENSE file in the project root.
+ */
+
+package us.parr.animl.validation;
+
+import us.parr.animl.classifiers.ClassifierModel;
+import us.parr.animl.classifiers.trees.BinnedColumns;
+import us.parr.animl.classifiers.trees.DecisionTree;
+import us.parr.animl.classifiers.trees.RandomForest;
+import us.parr.animl.classifiers.trees.SortedColumnIndex;
+import us.parr.animl.data.DataTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Pick random forest or decision tree hyperparameters by k-fold cross
+ *  validating candidates concurrently. Everything that depends only on
+ *  the data is done once and shared, read-only, by all candidates: the
+ *  shuffled folds, the column index sorted once for the whole table
+ *  (see {@link SortedColumnIndex}) and, if binning, each fold's training
+ *  bins (see {@link BinnedColumns}). Each (candidate, fold) pair is a task.
+ *
+ *  With successive halving, candidates are first scored on one fold; the
+ *  best 1/eta of them go on to eta times as many folds, and so on until
+ *  the survivors are scored on all k folds. Scores on the first folds
+ *  are kept, so no fold is trained twice for a candidate.
+ *
+ *  Training tables are views of data, so data must not change until
+ *  {@link #search(List)} returns.
+ */
+public class HyperparameterSearch {
+	/** A set of hyperparameters to try */
+	public static class Candidate {
+		protected final boolean forest;
+		protected final int numEstimators;
+		protected final int minLeafSize;
+		protected final int nodeSampleSize;
+		protected final double bootstrapSampleRate;
+
+		protected Candidate(boolean forest, int numEstimators, int minLeafSize,
+		                    int nodeSampleSize, double bootstrapSampleRate)
+		{
+			this.forest = forest;
+			this.numEstimators = numEstimators;
+			this.minLeafSize = minLeafSize;
+			this.nodeSampleSize = nodeSampleSize;
+			this.bootstrapSampleRate = bootstrapSampleRate;
+		}
+
+		public static Candidate forest(int numEstimators, int minLeafSize, int nodeSampleSize,
+		                               double bootstrapSampleRate)
+		{
+			return new Candidate(true, numEstimators, minLeafSize, nodeSampleSize, bootstrapSampleRate);
+		}
+
+		/** A single decision tree considering all variables at each split */
+		public static Candidate tree(int minLeafSize, int nodeSampleSize) {
+			return new Candidate(false, 1, minLeafSize, nodeSampleSize, 1.0);
+		}
+
+		/** Train a new, seeded model with these hyperparameters on data,
+		 *  using index and bins, either of which can be null.
+		 */
+		public ClassifierModel train(DataTable data, SortedColumnIndex index, BinnedColumns bins, long seed) {
+			if ( forest ) {
+				RandomForest rf = new RandomForest(numEstimators, minLeafSize, nodeSampleSize, bootstrapSampleRate);
+				rf.setSeed(seed);
+				rf.train(data, index, bins);
+				return rf;
+			}
+			DecisionTree tree = new DecisionTree(0, minLeafSize, nodeSampleSize);
+			tree.setSeed(seed);
+			tree.train(data, index, bins);
+			return tree;
+		}
+
+		public boolean isForest() { return forest; }
+
+		public int getNumberOfEstimators() { return numEstimators; }
+
+		public int getMinLeafSize() { return minLeafSize; }
+
+		public int getNodeSampleSize() { return nodeSampleSize; }
+
+		public double getBootstrapSampleRate() { return bootstrapSampleRate; }
+
+		@Override
+		public String toString() {
+			if ( forest ) {
+				return String.format("RandomForest(%d, %d, %d, %.2f)",
+				                     numEstimators, minLeafSize, nodeSampleSize, bootstrapSampleRate);
+			}
+			return String.format("DecisionTree(%d, %d)", minLeafSize, nodeSampleSize);
+		}
+	}
+
+	/** How a candidate did on the folds it was scored on */
+	public static class Result {
+		protected final Candidate candidate;
+		protected final CrossValidationResult.Fold[] folds;
+
+		public Result(Candidate candidate, int k) {
+			this.candidate = candidate;
+			this.folds = new CrossValidationResult.Fold[k];
+		}
+
+		public Candidate getCandidate() { return candidate; }
+
+		/** The folds scored so far, in fold order */
+		public CrossValidationResult getCrossValidationResult() {
+			List<CrossValidationResult.Fold> scored = new ArrayList<>();
+			for (CrossValidationResult.Fold fold : folds) {
+				if ( fold!=null ) scored.add(fold);
+			}
+			return new CrossValidationResult(scored);
+		}
+
+		/** The mean error over the folds scored so far */
+		public double getError() { return getCrossValidationResult().getError(); }
+
+		public int getNumberOfFolds() {
+			int n = 0;
+			for (CrossValidationResult.Fold fold : folds) {
+				if ( fold!=null ) n++;
+			}
+			return n;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: error %.5f over %d folds", candidate, getError(), getNumberOfFolds());
+		}
+	}
+
+	protected final DataTable data;
+	protected final int k;
+
+	/** Fold i is the physical rows rows[foldStart(i)..foldStart(i+1)-1] */
+	protected final int[] rows;
+
+	/** Seed every candidate's model with this so they differ only in hyperparameters */
+	protected long seed = DecisionTree.SEED;
+
+	/** Sort numeric columns once for all candidates; see {@link SortedColumnIndex} */
+	protected boolean presort = true;
+
+	/** If &gt; 0, bin numeric columns of each fold once for all candidates */
+	protected int maxBins = 0;
+
+	/** If &gt; 1, keep the best 1/eta candidates after each round of folds */
+	protected int eta = 0;
+
+	/** How many (candidate, fold) pairs to train at once if no executor is provided */
+	protected int numThreads = 1;
+
+	/** Train with this instead of a pool of numThreads threads */
+	protected ExecutorService executor = null;
+
+	/** Cross validate with k folds of data shuffled by random; data itself
+	 *  isn't shuffled. Folds are the same as those of
+	 *  {@link Validation#kFoldCross(java.util.function.Supplier, int, DataTable, Random, ExecutorService)}
+	 *  for the same random.
+	 */
+	public HyperparameterSearch(DataTable data, int k, Random random) {
+		int n = data.size();
+		if ( k<2 || k>n ) {
+			throw new IllegalArgumentException("need 2.."+n+" folds: "+k);
+		}
+		this.data = data;
+		this.k = k;
+		this.rows = Validation.shuffledRows(data, random);
+	}
+
+	/** All combinations of these random forest hyperparameters */
+	public static List<Candidate> grid(int[] numEstimators, int[] minLeafSizes, int[] nodeSampleSizes,
+	                                   double[] bootstrapSampleRates)
+	{
+		List<Candidate> candidates = new ArrayList<>();
+		for (int e : numEstimators) {
+			for (int l : minLeafSizes) {
+				for (int s : nodeSampleSizes) {
+					for (double r : bootstrapSampleRates) {
+						candidates.add(Candidate.forest(e, l, s, r));
+					}
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/** All combinations of these decision tree hyperparameters */
+	public static List<Candidate> treeGrid(int[] minLeafSizes, int[] nodeSampleSizes) {
+		List<Candidate> candidates = new ArrayList<>();
+		for (int l : minLeafSizes) {
+			for (int s : nodeSampleSizes) {
+				candidates.add(Candidate.tree(l, s));
+			}
+		}
+		return candidates;
+	}
+
+	/** Random search: n candidates from grid chosen by random without
+	 *  replacement, or all of them if there aren't more than n.
+	 */
+	public static List<Candidate> sample(List<Candidate> grid, int n, Random random) {
+		List<Candidate> candidates = new ArrayList<>(grid);
+		Collections.shuffle(candidates, random);
+		return new ArrayList<>(candidates.subList(0, Math.min(n, candidates.size())));
+	}
+
+	/** Score candidates and return their results, best first. Candidates
+	 *  dropped by successive halving come after those scored on all
+	 *  folds, ordered by how far they got then by error.
+	 */
+	public List<Result> search(List<Candidate> candidates) {
+		List<Result> results = new ArrayList<>();
+		for (Candidate c : candidates) {
+			results.add(new Result(c, k));
+		}
+		if ( results.isEmpty() ) return results;
+
+		int n = rows.length;
+		int[][] training = new int[k][];
+		for (int i = 0; i<k; i++) {
+			training[i] = Validation.trainingRows(rows, Validation.foldStart(i, k, n), Validation.foldStart(i+1, k, n));
+		}
+		// shared by all candidates; an index of the whole table works for every fold's training rows
+		BinnedColumns[] bins = new BinnedColumns[k];
+		if ( maxBins>0 ) {
+			for (int i = 0; i<k; i++) {
+				bins[i] = new BinnedColumns(new DataTable(data, training[i]), maxBins);
+			}
+		}
+		SortedColumnIndex index = presort && maxBins==0 ? new SortedColumnIndex(data) : null;
+
+		List<Result> alive = results;
+		int folds = eta>1 ? 1 : k;
+		int scored = 0;
+		while ( true ) {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (Result r : alive) {
+				for (int i = scored; i<folds; i++) {
+					int fold = i;
+					tasks.add(() -> {
+						// training may reorder its own rows so give it a copy
+						DataTable foldData = new DataTable(data, training[fold].clone());
+						long t0 = System.nanoTime();
+						ClassifierModel model = r.candidate.train(foldData, index, bins[fold], seed);
+						long t1 = System.nanoTime();
+						r.folds[fold] = Validation.test(model, data, rows,
+						                                Validation.foldStart(fold, k, n), Validation.foldStart(fold+1, k, n),
+						                                foldData.size(), t1-t0);
+						return null;
+					});
+				}
+			}
+			invokeAll(tasks);
+			scored = folds;
+			if ( folds==k ) break;
+			alive = new ArrayList<>(alive);
+			alive.sort(Comparator.comparingDouble(Result::getError));
+			alive = alive.subList(0, Math.max(1, alive.size()/eta));
+			folds = (int)Math.min((long)folds*eta, k);
+		}
+
+		List<Result> sorted = new ArrayList<>(results);
+		sorted.sort(Comparator.comparingInt((Result r) -> -r.getNumberOfFolds())
+		                      .thenComparingDouble(Result::getError));
+		return sorted;
+	}
+
+	/** Run tasks in the executor, or a pool of numThreads threads; with
+	 *  one thread and no executor, just run them in this thread.
+	 */
+	protected void invokeAll(List<Callable<Void>> tasks) {
+		if ( executor==null && numThreads<=1 ) {
+			for (Callable<Void> task : tasks) {
+				try {
+					task.call();
+				}
+				catch (RuntimeException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return;
+		}
+		ExecutorService pool = executor!=null ? executor : new ForkJoinPool(numThreads);
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while searching", ie);
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if ( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException("hyperparameter search task failed", cause);
+		}
+		finally {
+			if ( pool!=executor ) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	public void setSeed(long seed) { this.seed = seed; }
+
+	public void setPresort(boolean presort) { this.presort = presort; }
+
+	/** Set to 0 to split on raw values (the default) or 2..256 to use bins */
+	public void setMaxBins(int maxBins) {
+		if ( maxBins!=0 && (maxBins<2 || maxBins>BinnedColumns.MAX_BINS) ) {
+			throw new IllegalArgumentException("max bins must be 0 or in 2.."+BinnedColumns.MAX_BINS+": "+maxBins);
+		}
+		this.maxBins = maxBins;
+	}
+
+	/** Set to 2 or more to turn on successive halving, keeping the best
+	 *  1/eta of the candidates after each round, or 0 to score all
+	 *  candidates on all folds (the default).
+	 */
+	public void setSuccessiveHalving(int eta) {
+		if ( eta!=0 && eta<2 ) {
+			throw new IllegalArgumentException("eta must be 0 or at least 2: "+eta);
+		}
+		this.eta = eta;
+	}
+
+	public void setNumThreads(int n) {
+		if ( n<1 ) {
+			throw new IllegalArgumentException("need at least one thread: "+n);
+		}
+		this.numThreads = n;
+	}
+
+	/** Train using this executor, which the caller must shut down */
+	public void setExecutor(ExecutorService executor) { this.executor = executor; }
+}
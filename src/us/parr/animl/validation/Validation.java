@@ -6,12 +6,22 @@
 
 package us.parr.animl.validation;
 
+import us.parr.animl.classifiers.Classifier;
 import us.parr.animl.classifiers.ClassifierModel;
+import us.parr.animl.classifiers.LeaveOneOutEstimator;
+import us.parr.animl.classifiers.trees.DecisionTree;
+import us.parr.animl.classifiers.trees.RandomForest;
 import us.parr.animl.data.DataTable;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import static us.parr.lib.ParrtStats.mean;
 
@@ -71,4 +81,214 @@ public class Validation {
 //		System.out.println("missed in fold "+errors+"; mu="+mean(errors));
 		return mean(errors);
 	}
+
+	/** k-fold cross validation that runs folds concurrently in a pool of
+	 *  numThreads threads; see {@link #kFoldCross(Supplier, int, DataTable, Random, ExecutorService)}.
+	 */
+	public static CrossValidationResult kFoldCross(Supplier<? extends ClassifierModel> factory, int k,
+	                                               DataTable data, Random random, int numThreads)
+	{
+		if ( numThreads<1 ) {
+			throw new IllegalArgumentException("need at least one thread: "+numThreads);
+		}
+		ExecutorService pool = new ForkJoinPool(numThreads);
+		try {
+			return kFoldCross(factory, k, data, random, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/** k-fold cross validation with each fold trained and scored by its
+	 *  own classifier, made by factory, in executor. Folds are the same
+	 *  sizes as {@link #kFoldCross(ClassifierModel, int, DataTable)}'s but
+	 *  data isn't shuffled or copied: we shuffle a list of its rows with
+	 *  random and fold i is a range of that list. Training tables are views
+	 *  of data, so data must not change until we return. Results don't
+	 *  depend on the number of threads if the factory's classifiers are
+	 *  seeded.
+	 */
+	public static CrossValidationResult kFoldCross(Supplier<? extends ClassifierModel> factory, int k,
+	                                               DataTable data, Random random, ExecutorService executor)
+	{
+		int n = data.size();
+		if ( k<2 || k>n ) {
+			throw new IllegalArgumentException("need 2.."+n+" folds: "+k);
+		}
+		int[] rows = shuffledRows(data, random);
+		List<Callable<CrossValidationResult.Fold>> tasks = new ArrayList<>();
+		for (int i = 0; i<k; i++) {
+			int fold = i;
+			tasks.add(() -> fold(factory.get(), data, rows, foldStart(fold, k, n), foldStart(fold+1, k, n)));
+		}
+		return new CrossValidationResult(invokeAll(executor, tasks));
+	}
+
+	/** Count leave-one-out misses without a model per row if we can. If
+	 *  factory makes {@link LeaveOneOutEstimator}s, train one on a copy of
+	 *  data and count the rows its held-out estimates misclassify (see
+	 *  {@link RandomForest#getLeaveOneOutPredictions(DataTable)} and
+	 *  {@link DecisionTree#getLeaveOneOutPredictions(DataTable)}). Rows
+	 *  with no estimate count as misses. Otherwise, do exact leave-one-out
+	 *  with numThreads threads; see {@link #exactLeaveOneOut}.
+	 */
+	public static int leaveOneOut(Supplier<? extends ClassifierModel> factory, DataTable data, int numThreads) {
+		if ( numThreads<1 ) {
+			throw new IllegalArgumentException("need at least one thread: "+numThreads);
+		}
+		ClassifierModel classifier = factory.get();
+		if ( classifier instanceof LeaveOneOutEstimator ) {
+			DataTable training = new DataTable(data); // training may reorder its rows
+			classifier.train(training);
+			int[] predictions = ((LeaveOneOutEstimator)classifier).getLeaveOneOutPredictions(training);
+			int yi = training.getPredictedCol();
+			int miss = 0;
+			for (int i = 0; i<predictions.length; i++) {
+				if ( predictions[i]!=training.getAsInt(i, yi) ) {
+					miss++;
+				}
+			}
+			return miss;
+		}
+		ExecutorService pool = new ForkJoinPool(numThreads);
+		try {
+			return exactLeaveOneOut(factory, data, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Leave-one-out with a model, made by factory, per row, trained in
+	 *  executor. Training tables are views of data without the held-out
+	 *  row, not copies, so data must not change until we return. Same
+	 *  result as {@link #leaveOneOut(ClassifierModel, DataTable)} if the
+	 *  factory's classifiers are seeded.
+	 */
+	public static int exactLeaveOneOut(Supplier<? extends ClassifierModel> factory, DataTable data,
+	                                   ExecutorService executor)
+	{
+		int n = data.size();
+		int[] rows = new int[n];
+		for (int i = 0; i<n; i++) {
+			rows[i] = data.getRowIndex(i);
+		}
+		int yi = data.getPredictedCol();
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i<n; i++) {
+			int whichToLeaveOut = i;
+			tasks.add(() -> {
+				ClassifierModel classifier = factory.get();
+				classifier.train(new DataTable(data, trainingRows(rows, whichToLeaveOut, whichToLeaveOut+1)));
+				int[] leaveOut = data.getRow(whichToLeaveOut);
+				return classifier.classify(leaveOut)!=leaveOut[yi] ? 1 : 0;
+			});
+		}
+		int miss = 0;
+		for (int m : invokeAll(executor, tasks)) {
+			miss += m;
+		}
+		return miss;
+	}
+
+	/** Run tasks in executor and return their results in order */
+	protected static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<>(tasks.size());
+		try {
+			for (Future<T> f : executor.invokeAll(tasks)) {
+				results.add(f.get());
+			}
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while validating", ie);
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if ( cause instanceof Error ) throw (Error)cause;
+			throw new IllegalStateException("validation task failed", cause);
+		}
+		return results;
+	}
+
+	/** Return data's physical rows in an order shuffled by random */
+	public static int[] shuffledRows(DataTable data, Random random) {
+		int n = data.size();
+		int[] rows = new int[n];
+		for (int i = 0; i<n; i++) {
+			rows[i] = data.getRowIndex(i);
+		}
+		for (int i = n; i>1; i--) { // same shuffle as DataTable.shuffle()
+			int j = random.nextInt(i);
+			int save = rows[i-1];
+			rows[i-1] = rows[j];
+			rows[j] = save;
+		}
+		return rows;
+	}
+
+	/** Where fold i of k starts among n rows; fold i is rows
+	 *  foldStart(i)..foldStart(i+1)-1. Folds are n/k rows except the last,
+	 *  which gets the remainder, as in {@link #kFoldCross(ClassifierModel, int, DataTable)}.
+	 */
+	public static int foldStart(int i, int k, int n) {
+		return i<k ? i*(n/k) : n;
+	}
+
+	/** All of rows except rows[start..stop-1] */
+	public static int[] trainingRows(int[] rows, int start, int stop) {
+		int n = rows.length;
+		int[] training = new int[n-(stop-start)];
+		System.arraycopy(rows, 0, training, 0, start);
+		System.arraycopy(rows, stop, training, start, n-stop);
+		return training;
+	}
+
+	/** Train classifier on data's physical rows other than
+	 *  rows[start..stop-1] and test it on those rows.
+	 */
+	protected static CrossValidationResult.Fold fold(ClassifierModel classifier, DataTable data,
+	                                                 int[] rows, int start, int stop)
+	{
+		int[] training = trainingRows(rows, start, stop);
+		long t0 = System.nanoTime();
+		classifier.train(new DataTable(data, training)); // training may reorder its own rows
+		long t1 = System.nanoTime();
+		return test(classifier, data, rows, start, stop, training.length, t1-t0);
+	}
+
+	/** Classify data's physical rows rows[start..stop-1] with a trained
+	 *  classifier, counting misses and filling in a confusion matrix.
+	 */
+	public static CrossValidationResult.Fold test(Classifier classifier, DataTable data, int[] rows,
+	                                              int start, int stop, int numTrainingRows, long trainNanos)
+	{
+		long t0 = System.nanoTime();
+		int yi = data.getPredictedCol();
+		int numCategories = data.getColMax(yi).intValue()+1;
+		int[][] confusion = new int[numCategories][numCategories];
+		int[][] columns = new int[data.getNumberOfColumns()][];
+		for (int j = 0; j<columns.length; j++) {
+			columns[j] = data.getColumn(j);
+		}
+		int[] row = new int[columns.length];
+		int misses = 0;
+		for (int i = start; i<stop; i++) {
+			for (int j = 0; j<columns.length; j++) {
+				row[j] = columns[j][rows[i]];
+			}
+			int cat = classifier.classify(row);
+			int trueCat = row[yi];
+			if ( cat!=trueCat ) {
+				misses++;
+			}
+			if ( cat>=0 && cat<numCategories ) {
+				confusion[trueCat][cat]++;
+			}
+		}
+		long t1 = System.nanoTime();
+		return new CrossValidationResult.Fold(numTrainingRows, stop-start, misses, trainNanos, t1-t0, confusion);
+	}
 }
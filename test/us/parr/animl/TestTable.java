@@ -1,12 +1,24 @@
 package us.parr.animl;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
+import us.parr.animl.data.ColumnStats;
 import us.parr.animl.data.DataTable;
+import us.parr.animl.data.Datasets;
+import us.parr.lib.collections.CountingSet;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertArrayEquals;
@@ -80,26 +92,61 @@ public class TestTable extends BaseTest {
 		URL url = this.getClass().getClassLoader().getResource("Heart.csv");
 		DataTable t = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
 		int splitCategory = 0;
-		int splitIndex = DataTable.categoricalPartition(t.getRows(), 3, splitCategory, 0, t.getRows().size()-1);
+		int splitIndex = t.categoricalPartition(3, splitCategory, 0, t.size()-1);
 		int[] colValues = t.getColValues(3);
 		checkCats(splitCategory, splitIndex, colValues);
 
 		splitCategory = 1;
-		splitIndex = DataTable.categoricalPartition(t.getRows(), 3, splitCategory, 0, t.getRows().size()-1);
+		splitIndex = t.categoricalPartition(3, splitCategory, 0, t.size()-1);
 		colValues = t.getColValues(3);
 		checkCats(splitCategory, splitIndex, colValues);
 
 		splitCategory = 2;
-		splitIndex = DataTable.categoricalPartition(t.getRows(), 3, splitCategory, 0, t.getRows().size()-1);
+		splitIndex = t.categoricalPartition(3, splitCategory, 0, t.size()-1);
 		colValues = t.getColValues(3);
 		checkCats(splitCategory, splitIndex, colValues);
 
 		splitCategory = 3;
-		splitIndex = DataTable.categoricalPartition(t.getRows(), 3, splitCategory, 0, t.getRows().size()-1);
+		splitIndex = t.categoricalPartition(3, splitCategory, 0, t.size()-1);
 		colValues = t.getColValues(3);
 		checkCats(splitCategory, splitIndex, colValues);
 	}
 
+	@Test public void testPartitionOfSubsetSeenByParent() {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {5, 0});
+		rows.add(new int[] {1, 1});
+		rows.add(new int[] {2, 0});
+		rows.add(new int[] {1, 1});
+		DataTable data = DataTable.fromInts(rows, null, null);
+		DataTable sub = data.subset(1, 3);
+		int splitIndex = sub.categoricalPartition(0, 2, 0, sub.size()-1);
+		assertEquals(1, splitIndex);
+		assertEquals("[2, 1, 1]", Arrays.toString(sub.getColValues(0)));
+		assertEquals("[5, 2, 1, 1]", Arrays.toString(data.getColValues(0)));
+	}
+
+	@Test public void testSortByFloatIsStable() {
+		final DataTable.VariableType[] colTypes = {NUMERICAL_FLOAT, TARGET_CATEGORICAL_INT};
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {Float.floatToIntBits(2.5f), 0});
+		rows.add(new int[] {Float.floatToIntBits(-1.0f), 1});
+		rows.add(new int[] {Float.floatToIntBits(0.0f), 2});
+		rows.add(new int[] {Float.floatToIntBits(-3.5f), 3});
+		rows.add(new int[] {Float.floatToIntBits(-1.0f), 4});
+		rows.add(new int[] {Float.floatToIntBits(-0.0f), 5});
+		DataTable data = DataTable.fromInts(rows, colTypes, null);
+		data.sortBy(0);
+		assertEquals("[3, 1, 4, 5, 2, 0]", Arrays.toString(data.getColValues(1)));
+	}
+
+	@Test public void testGetRowsIsACopy() {
+		DataTable data = DataTable.fromInts(rawData1x3, null, null);
+		data.getRows().get(0)[0] = 99;
+		data.getRow(0)[1] = 99;
+		assertEquals("[1, 2, 3]", Arrays.toString(data.getRow(0)));
+	}
+
 	public void checkCats(int splitCategory, int splitIndex, int[] colValues) {
 		for (int i = 0; i<colValues.length; i++) {
 			if ( i<splitIndex ) {
@@ -344,4 +391,276 @@ public class TestTable extends BaseTest {
 		String result = join(Arrays.asList(t.toString().split("\n")).subList(0,21), "\n")+"\n";
 		assertEquals(expected, result);
 	}
+
+	@Test public void testBinaryRoundTrip() throws Exception {
+		URL url = this.getClass().getClassLoader().getResource("Heart.csv");
+		DataTable t = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		t.setColType(0, UNUSED_INT); // first column is ID
+		File f = File.createTempFile("heart", ".animl");
+		f.deleteOnExit();
+		t.saveBinary(f.getPath());
+		DataTable t2 = DataTable.loadBinary(f.getPath());
+		assertArrayEquals(t.getColNames(), t2.getColNames());
+		assertArrayEquals(t.getColTypes(), t2.getColTypes());
+		assertEquals(t.toString(), t2.toString());
+	}
+
+	@Test public void testBinarySavesRowsOfView() throws Exception {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {1,2,3});
+		rows.add(new int[] {4,5,6});
+		rows.add(new int[] {7,8,9});
+		DataTable t = new DataTable(rows, colTypes3, null, null);
+		DataTable view = new DataTable(t, new int[] {2,0,2});
+		File f = File.createTempFile("view", ".animl");
+		f.deleteOnExit();
+		view.saveBinary(f.getPath());
+		DataTable t2 = DataTable.loadBinary(f.getPath());
+		assertEquals(null, t2.getColNames());
+		assertEquals(3, t2.size());
+		assertArrayEquals(new int[] {7,8,9}, t2.getRow(0));
+		assertArrayEquals(new int[] {1,2,3}, t2.getRow(1));
+		assertArrayEquals(new int[] {7,8,9}, t2.getRow(2));
+	}
+
+	@Test public void testBinaryLoadReadsRowsFromMapping() throws Exception {
+		URL url = this.getClass().getClassLoader().getResource("Heart.csv");
+		DataTable t = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		File f = File.createTempFile("heart", ".animl");
+		f.deleteOnExit();
+		t.saveBinary(f.getPath());
+		DataTable t2 = DataTable.loadBinary(f.getPath());
+		assertTrue(t2.isMapped());
+		assertEquals(t.size(), t2.getNumberOfPhysicalRows());
+		int[] row = new int[t.getNumberOfColumns()];
+		for (int i = 0; i<t.size(); i++) {
+			assertArrayEquals(t.getRow(i), t2.getRow(i, row));
+			assertEquals(t.getAsFloat(i, 4), t2.getAsFloat(i, 4), 0.0);
+		}
+		assertEquals(t.getRows().size(), t2.stream().count());
+		DataTable view = new DataTable(t2, new int[] {5,0,5});
+		assertArrayEquals(t.getRow(5), view.iterator().next());
+		assertArrayEquals(t.getColumn(3), view.getColumn(3));
+		DataTable heapView = new DataTable(t, new int[] {5,0,5});
+		assertEquals(heapView.getColumnStats(3).getMax(), view.getColumnStats(3).getMax());
+		assertEquals(heapView.getColumnStats(3).getNumberOfDistinctValues(),
+		             view.getColumnStats(3).getNumberOfDistinctValues());
+	}
+
+	@Test public void testLoadTypedCSV() throws Exception {
+		File f = File.createTempFile("typed", ".csv");
+		f.deleteOnExit();
+		try ( Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8") ) {
+			w.write("\uFEFF x, y ,target\r\n");
+			w.write("1,2.5,0\r\n");
+			w.write("  \n");
+			w.write("-3,-1.0e-2,1\n");
+			w.write("7,8.692932128906250000e-01,2\n");
+			w.write("2147483647, NaN ,1"); // no final newline
+		}
+		DataTable.VariableType[] types = {NUMERICAL_INT, NUMERICAL_FLOAT, TARGET_CATEGORICAL_INT};
+		DataTable t = DataTable.loadCSV(f.getPath(), types, true);
+		assertArrayEquals(new String[] {"x", "y", "target"}, t.getColNames());
+		assertEquals(4, t.size());
+		assertArrayEquals(new int[] {1, Float.floatToIntBits(2.5f), 0}, t.getRow(0));
+		assertArrayEquals(new int[] {-3, Float.floatToIntBits(-0.01f), 1}, t.getRow(1));
+		assertArrayEquals(new int[] {7, Float.floatToIntBits(0.869293212890625f), 2}, t.getRow(2));
+		assertArrayEquals(new int[] {Integer.MAX_VALUE, Float.floatToIntBits(Float.NaN), 1}, t.getRow(3));
+	}
+
+	@Test public void testSyntheticTable() {
+		DataTable t = Datasets.synthetic(1000, 6, 5, 3, 42);
+		assertEquals(1000, t.size());
+		assertArrayEquals(new String[] {"x0", "x1", "x2", "x3", "x4", "x5", "y"}, t.getColNames());
+		DataTable.VariableType[] types = {
+			NUMERICAL_FLOAT, NUMERICAL_INT, CATEGORICAL_INT, CATEGORICAL_STRING,
+			NUMERICAL_FLOAT, NUMERICAL_INT, TARGET_CATEGORICAL_INT
+		};
+		assertArrayEquals(types, t.getColTypes());
+		int[] counts = new int[3];
+		for (int i = 0; i<t.size(); i++) {
+			float f = t.getAsFloat(i, 0);
+			assertTrue(f>=0.0f && f<1.0f);
+			for (int j = 1; j<=3; j++) {
+				assertTrue(t.getAsInt(i, j)>=0 && t.getAsInt(i, j)<5);
+			}
+			counts[t.getAsInt(i, 6)]++;
+		}
+		for (int c : counts) {
+			assertTrue(c>150); // roughly balanced categories
+		}
+		assertEquals("v"+t.getAsInt(0, 3), t.get(0, 3));
+
+		DataTable again = Datasets.synthetic(1000, 6, 5, 3, 42);
+		assertEquals(t.toString(), again.toString());
+		DataTable other = Datasets.synthetic(1000, 6, 5, 3, 43);
+		assertTrue(!t.toString().equals(other.toString()));
+	}
+
+	@Test public void testSyntheticTableTooBig() {
+		String msg = null;
+		try {
+			Datasets.synthetic(50_000_001, 1, 5, 3, 42); // just over 10^8 values
+		}
+		catch (IllegalArgumentException iae) {
+			msg = iae.getMessage();
+		}
+		assertEquals("50000001x2 is more than 100000000 values", msg);
+	}
+
+	@Test public void testUnpackBundledDataset() throws Exception {
+		File cache = Files.createTempDirectory("animl").toFile();
+		String old = System.setProperty(Datasets.CACHE_DIR_PROPERTY, cache.getPath());
+		try {
+			File f = Datasets.file("shuttle.csv");
+			assertEquals(new File(cache, "shuttle.csv"), f);
+			assertEquals(f, Datasets.file("shuttle.csv")); // cached
+			DataTable t = Datasets.load("shuttle.csv");
+			assertEquals(43500, t.size());
+			assertEquals(10, t.getNumberOfColumns());
+		}
+		finally {
+			if ( old!=null ) System.setProperty(Datasets.CACHE_DIR_PROPERTY, old);
+			else System.clearProperty(Datasets.CACHE_DIR_PROPERTY);
+			FileUtils.deleteDirectory(cache);
+		}
+	}
+
+	@Test public void testStreamRowsOfView() {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {1,2,3});
+		rows.add(new int[] {4,5,6});
+		rows.add(new int[] {7,8,9});
+		DataTable t = new DataTable(rows, colTypes3, null, null);
+		DataTable view = new DataTable(t, new int[] {2,0,2});
+		List<int[]> streamed = view.stream().collect(Collectors.toList());
+		assertEquals(3, streamed.size());
+		assertArrayEquals(new int[] {7,8,9}, streamed.get(0));
+		assertArrayEquals(new int[] {1,2,3}, streamed.get(1));
+		assertArrayEquals(new int[] {7,8,9}, streamed.get(2));
+		List<int[]> each = new ArrayList<>();
+		view.forEach(each::add);
+		assertEquals(3, each.size());
+		for (int i = 0; i<3; i++) {
+			assertArrayEquals(streamed.get(i), each.get(i));
+		}
+		assertEquals(Arrays.asList(7, 1, 7), view.getColumnAsInts(0).boxed().collect(Collectors.toList()));
+	}
+
+	@Test public void testParallelStreamSplitsEvenly() {
+		DataTable t = Datasets.synthetic(10000, 4, 5, 3, 42);
+		Spliterator<int[]> s = t.spliterator();
+		assertTrue(s.hasCharacteristics(Spliterator.SIZED|Spliterator.SUBSIZED|Spliterator.ORDERED));
+		Spliterator<int[]> prefix = s.trySplit();
+		assertEquals(5000, prefix.estimateSize());
+		assertEquals(5000, s.estimateSize());
+		// same rows in the same order as iterating
+		List<int[]> expected = new ArrayList<>();
+		for (int[] row : t) {
+			expected.add(row);
+		}
+		List<int[]> actual = t.parallelStream().collect(Collectors.toList());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i<expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+		// float column as doubles, int column as ints
+		double sum = 0.0;
+		long isum = 0;
+		for (int i = 0; i<t.size(); i++) {
+			sum += t.getAsFloat(i, 0);
+			isum += t.getAsInt(i, 1);
+		}
+		assertEquals(sum, t.getColumnAsDoubles(0).parallel().sum(), 1e-6);
+		assertEquals(isum, t.getColumnAsInts(1).parallel().asLongStream().sum());
+		assertEquals(isum, t.getColumnAsDoubles(1).sum(), 0.0);
+	}
+
+	@Test public void testInferTypesFromStrings() {
+		List<String[]> data = new ArrayList<>();
+		data.add(new String[]{"A", "B", "C", "D", "Y"});
+		data.add(new String[]{"1", "NA", "-3", "2.5", "go"});
+		data.add(new String[]{"2", "7", "x", "1", "stay"});
+		data.add(new String[]{"3.5", "8", "4", "NA", "go"});
+		DataTable t = DataTable.fromStrings(data);
+		DataTable.VariableType[] types = {
+			NUMERICAL_FLOAT,    // int becomes float
+			NUMERICAL_INT,      // NA doesn't decide
+			CATEGORICAL_STRING, // int becomes string
+			NUMERICAL_FLOAT,    // float then int stays float
+			TARGET_CATEGORICAL_STRING
+		};
+		assertArrayEquals(types, t.getColTypes());
+	}
+
+	@Test public void testColumnStats() {
+		List<String[]> data = new ArrayList<>();
+		data.add(new String[]{"A", "B", "Y"});
+		data.add(new String[]{"1.5", "NA", "go"});
+		data.add(new String[]{"-2.25", "7", "stay"});
+		data.add(new String[]{"1.5", "-3", "go"});
+		data.add(new String[]{"NA", "7", "go"});
+		DataTable t = DataTable.fromStrings(data);
+		ColumnStats a = t.getColumnStats(0);
+		assertEquals(NUMERICAL_FLOAT, a.getType());
+		assertEquals(-2.25f, a.getMin());
+		assertEquals(1.5f, a.getMax());
+		assertEquals(3, a.getNumberOfDistinctValues()); // NA is stored as 0
+		assertEquals(1, a.getNumberOfMissingValues());
+		ColumnStats b = t.getColumnStats(1);
+		assertEquals(-3, b.getMin());
+		assertEquals(7, b.getMax());
+		assertEquals(3, b.getNumberOfDistinctValues());
+		assertEquals(1, b.getNumberOfMissingValues());
+		assertEquals(2, t.getColumnStats(2).getNumberOfDistinctValues());
+		assertEquals(7, t.getColMax(1));
+
+		// views share missing values but summarize their own rows
+		DataTable view = new DataTable(t, new int[] {1, 2});
+		assertEquals(0, view.getColumnStats(1).getNumberOfMissingValues());
+		assertEquals(-3, view.getColumnStats(1).getMin());
+	}
+
+	@Test public void testColumnStatsCachedUntilRowsChange() {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {1,2,3});
+		rows.add(new int[] {4,5,6});
+		rows.add(new int[] {4,8,9});
+		DataTable t = new DataTable(rows, colTypes3, null, null);
+		Set<Integer> values = t.getUniqueValues(0);
+		assertTrue(values==t.getUniqueValues(0));
+		boolean modified = true;
+		try {
+			values.add(7);
+		}
+		catch (UnsupportedOperationException uoe) {
+			modified = false;
+		}
+		assertTrue(!modified);
+		CountingSet<Integer> counts = t.getColValueCounts(0);
+		counts.add(1); // caller's own copy
+		assertEquals(1, t.valueCountsInColumn(0).count(1));
+		ColumnStats stats = t.getColumnStats(0);
+		assertTrue(stats==t.getColumnStats(0));
+		assertEquals(2, stats.getNumberOfDistinctValues());
+		t.removeRow(0);
+		assertTrue(stats!=t.getColumnStats(0));
+		assertEquals(1, t.getColumnStats(0).getNumberOfDistinctValues());
+		assertTrue(values!=t.getUniqueValues(0));
+	}
+
+	@Test public void testViewStatsSeeParentReorderRows() {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {1,2,3});
+		rows.add(new int[] {4,5,6});
+		rows.add(new int[] {1,8,9});
+		rows.add(new int[] {4,1,0});
+		DataTable t = new DataTable(rows, colTypes3, null, null);
+		DataTable firstTwo = t.subset(0, 1);
+		assertEquals(2, firstTwo.getColumnStats(0).getNumberOfDistinctValues());
+		assertEquals("[1, 4]", firstTwo.getUniqueValues(0).toString());
+		t.categoricalPartition(0, 1, 0, 3); // 1s first, shared with the view
+		assertEquals(1, firstTwo.getColumnStats(0).getNumberOfDistinctValues());
+		assertEquals("[1]", firstTwo.getUniqueValues(0).toString());
+	}
 }
@@ -8,16 +8,24 @@ package us.parr.animl.rf;
 
 import org.junit.Test;
 import us.parr.animl.BaseTest;
+import us.parr.animl.classifiers.trees.CompiledDecisionTree;
 import us.parr.animl.classifiers.trees.DecisionTree;
+import us.parr.animl.classifiers.trees.FlatDecisionTree;
+import us.parr.animl.classifiers.trees.MappedRandomForest;
+import us.parr.animl.classifiers.trees.QuickScorer;
+import us.parr.animl.classifiers.trees.RandomForest;
 import us.parr.animl.data.DataTable;
+import us.parr.animl.data.Datasets;
 import us.parr.lib.ParrtIO;
 
+import java.io.File;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static us.parr.animl.data.DataTable.VariableType.UNUSED_INT;
 
 public class TestDataSets extends BaseTest {
@@ -100,6 +108,180 @@ public class TestDataSets extends BaseTest {
 		assertEquals(expecting, result);
 	}
 
+	@Test public void testFlattenedHeartTreeClassifiesSameAsTree() {
+		URL url = this.getClass().getClassLoader().getResource("Heart-wo-NA.csv");
+		DataTable data = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		data.setColType(0, UNUSED_INT); // first column is ID
+		DecisionTree tree = new DecisionTree(0, 1); // mix of categorical, int and float splits
+		tree.train(data);
+		FlatDecisionTree flat = tree.flatten();
+		for (int[] row : data.getRows()) {
+			assertEquals(tree.classify(row), flat.classify(row));
+		}
+	}
+
+	@Test public void testCompiledHeartTreeClassifiesSameAsTree() {
+		URL url = this.getClass().getClassLoader().getResource("Heart-wo-NA.csv");
+		DataTable data = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		data.setColType(0, UNUSED_INT); // first column is ID
+		DecisionTree tree = new DecisionTree(0, 5); // mix of categorical, int and float splits
+		tree.train(data);
+		List<int[]> rows = data.getRows();
+		int[] expected = new int[rows.size()];
+		for (int i = 0; i<rows.size(); i++) {
+			expected[i] = tree.classify(rows.get(i));
+		}
+		assertTrue(tree.compile());
+		assertTrue(tree.isCompiled());
+		for (int i = 0; i<rows.size(); i++) {
+			assertEquals(expected[i], tree.classify(rows.get(i)));
+		}
+	}
+
+	@Test public void testTreeTooBigToCompile() {
+		URL url = this.getClass().getClassLoader().getResource("iris.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DecisionTree tree = new DecisionTree(0, 1);
+		tree.train(data);
+		FlatDecisionTree flat = tree.flatten();
+		CompiledDecisionTree compiled = CompiledDecisionTree.compile(flat);
+		assertTrue(compiled!=null);
+		assertEquals(null, CompiledDecisionTree.compile(flat, compiled.getCodeSize()-1));
+		assertEquals(compiled.getCodeSize(), CompiledDecisionTree.compile(flat, compiled.getCodeSize()).getCodeSize());
+	}
+
+	@Test public void testCompiledForestClassifiesSameAsForest() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		RandomForest rf = new RandomForest(20, 1);
+		rf.setSeed(3);
+		rf.train(new DataTable(data));
+		RandomForest compiled = new RandomForest(20, 1);
+		compiled.setSeed(3);
+		compiled.setGenerateBytecode(true);
+		compiled.train(new DataTable(data));
+		for (int k = 0; k<compiled.getNumberOfTrees(); k++) {
+			assertTrue(compiled.getTree(k).isCompiled());
+		}
+		for (int[] row : data.getRows()) {
+			assertEquals(rf.classify(row), compiled.classify(row));
+		}
+	}
+
+	@Test public void testQuickScorerClassifiesSameAsForest() {
+		URL url = this.getClass().getClassLoader().getResource("Heart-wo-NA.csv");
+		DataTable heart = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		heart.setColType(0, UNUSED_INT); // first column is ID
+		url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable wine = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable synthetic = Datasets.synthetic(2000, 8, 6, 3, 1); // trees with > 64 leaves
+		for (DataTable data : new DataTable[] {heart, wine, synthetic}) {
+			RandomForest rf = new RandomForest(50, 1);
+			rf.setSeed(1);
+			rf.train(new DataTable(data));
+			QuickScorer scorer = new QuickScorer(rf);
+			int[][] rows = data.getRows().toArray(new int[0][]);
+			int[] out = new int[rows.length];
+			scorer.classify(rows, out);
+			for (int i = 0; i<rows.length; i++) {
+				assertEquals(rf.classify(rows[i]), out[i]);
+				assertEquals(out[i], scorer.classify(rows[i]));
+			}
+		}
+	}
+
+	@Test public void testSaveAndLoadForest() throws Exception {
+		URL url = this.getClass().getClassLoader().getResource("Heart-wo-NA.csv");
+		DataTable data = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		data.setColType(0, UNUSED_INT); // first column is ID
+		RandomForest rf = new RandomForest(25, 1);
+		rf.setSeed(1);
+		rf.train(new DataTable(data));
+		File f = File.createTempFile("heart", ".model");
+		try {
+			rf.saveBinary(f.getPath(), data);
+			MappedRandomForest mapped = MappedRandomForest.load(f.getPath());
+			assertEquals(25, mapped.getNumberOfTrees());
+			assertEquals(rf.getNumberOfCategories(), mapped.getNumberOfCategories());
+			assertArrayEquals(data.getColNames(), mapped.getSchema().getColNames());
+			assertArrayEquals(data.getColTypes(), mapped.getSchema().getColTypes());
+			for (int j = 0; j<data.getNumberOfColumns(); j++) {
+				assertEquals(data.getColMax(j), mapped.getSchema().getColMax(j));
+			}
+			for (int[] row : data.getRows()) {
+				assertEquals(rf.classify(row), mapped.classify(row));
+				assertEquals(rf.classProbabilities(row), mapped.classProbabilities(row));
+			}
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	@Test public void testClassifyBatchOfMappedTable() throws Exception {
+		URL url = this.getClass().getClassLoader().getResource("Heart-wo-NA.csv");
+		DataTable data = DataTable.loadCSV(url.getFile().toString(), "excel", null, null, true);
+		data.setColType(0, UNUSED_INT); // first column is ID
+		RandomForest rf = new RandomForest(25, 1);
+		rf.setSeed(1);
+		rf.train(new DataTable(data));
+		File f = File.createTempFile("heart", ".table");
+		try {
+			data.saveBinary(f.getPath());
+			DataTable mapped = DataTable.loadBinary(f.getPath());
+			assertTrue(mapped.isMapped());
+			assertArrayEquals(rf.classifyBatch(data), rf.classifyBatch(mapped));
+			int[] rows = {7, 2, 7, 100};
+			int[] predictions = rf.classifyBatch(new DataTable(mapped, rows));
+			for (int i = 0; i<rows.length; i++) {
+				assertEquals(rf.classify(data.getRow(rows[i])), predictions[i]);
+			}
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	@Test public void testSaveAndLoadDecisionTree() throws Exception {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DecisionTree tree = new DecisionTree(0, 1);
+		tree.train(new DataTable(data));
+		File f = File.createTempFile("wine", ".model");
+		try {
+			tree.saveBinary(f.getPath(), data);
+			MappedRandomForest mapped = MappedRandomForest.load(f.getPath());
+			assertEquals(1, mapped.getNumberOfTrees());
+			// column 7 is strings so the schema must have its dictionary
+			assertEquals(data.getValue(0, 7), DataTable.getValue(mapped.getSchema(), data.getAsInt(0, 7), 7));
+			for (int[] row : data.getRows()) {
+				assertEquals(tree.classify(row), mapped.classify(row));
+			}
+		}
+		finally {
+			f.delete();
+		}
+	}
+
+	@Test public void testLoadNonModel() throws Exception {
+		File f = File.createTempFile("iris", ".table");
+		try {
+			URL url = this.getClass().getClassLoader().getResource("iris.csv");
+			DataTable.loadCSV(url.getFile(), null, null, null, true).saveBinary(f.getPath());
+			String msg = null;
+			try {
+				MappedRandomForest.load(f.getPath());
+			}
+			catch (IllegalArgumentException iae) {
+				msg = iae.getMessage();
+			}
+			assertEquals(f.getPath()+" is not a binary model", msg);
+		}
+		finally {
+			f.delete();
+		}
+	}
+
 	/*
 	def check_iris_criterion(name, criterion):
 	    # Check consistency on dataset iris.
@@ -8,10 +8,15 @@ package us.parr.animl.rf;
 
 import org.junit.Test;
 import us.parr.animl.BaseTest;
+import us.parr.animl.classifiers.trees.BinnedColumns;
 import us.parr.animl.classifiers.trees.DecisionTree;
+import us.parr.animl.classifiers.trees.FlatDecisionTree;
+import us.parr.animl.classifiers.trees.SortedColumnIndex;
+import us.parr.animl.classifiers.trees.SplitCriterion;
 import us.parr.animl.data.DataTable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -259,4 +264,99 @@ public class TestDecisionTreeBasics extends BaseTest {
 		assertEquals(expecting, result);
 		checkPredictions(data, tree);
 	}
+
+	@Test public void testSortedColumnIndex() {
+		List<int[]> rows = new ArrayList<>();
+		rows.add(new int[] {3, Float.floatToIntBits(2.5f),  0, 1});
+		rows.add(new int[] {1, Float.floatToIntBits(-1.0f), 1, 0});
+		rows.add(new int[] {3, Float.floatToIntBits(-3.0f), 0, 1});
+		rows.add(new int[] {2, Float.floatToIntBits(0.0f),  1, 0});
+		DataTable data = new DataTable(rows,
+		                               new DataTable.VariableType[] {
+			                               DataTable.VariableType.NUMERICAL_INT,
+			                               DataTable.VariableType.NUMERICAL_FLOAT,
+			                               DataTable.VariableType.CATEGORICAL_INT,
+			                               DataTable.VariableType.TARGET_CATEGORICAL_INT},
+		                               null, null);
+		// bootstrap samples list rows more than once; index has each once
+		DataTable sample = new DataTable(data, new int[] {2, 0, 2, 1, 3, 3});
+		SortedColumnIndex index = new SortedColumnIndex(sample);
+		assertEquals("[1, 3, 0, 2]", Arrays.toString(index.getSortedRows(0))); // ties in row order
+		assertEquals("[2, 1, 3, 0]", Arrays.toString(index.getSortedRows(1)));
+		assertEquals(null, index.getSortedRows(2));
+		assertEquals(null, index.getSortedRows(3));
+	}
+
+	@Test public void testBinnedColumns() {
+		List<int[]> rows = new ArrayList<>();
+		int[] x = {8, 1, 3, 2, 5, 1};
+		for (int i = 0; i<x.length; i++) {
+			rows.add(new int[] {x[i], i%2});
+		}
+		DataTable data = DataTable.fromInts(rows, null, null);
+		BinnedColumns twoBins = new BinnedColumns(data, 2); // 1,1,2 | 3,5,8
+		assertEquals(2, twoBins.getNumberOfBins(0));
+		assertEquals(2.5, twoBins.getSplitValue(0, 0), 0.0);
+		assertEquals("[1, 0, 1, 0, 1, 0]", Arrays.toString(twoBins.getBinnedColumn(0)));
+		BinnedColumns oneBinPerValue = new BinnedColumns(data, 256);
+		assertEquals(5, oneBinPerValue.getNumberOfBins(0));
+		assertEquals(4.0, oneBinPerValue.getSplitValue(0, 2), 0.0);
+		assertEquals("[4, 0, 2, 1, 3, 0]", Arrays.toString(oneBinPerValue.getBinnedColumn(0)));
+		assertEquals(null, oneBinPerValue.getBinnedColumn(1)); // target not binned
+	}
+
+	@Test public void testFlatTreeThresholdsMatchDoubleCompare() {
+		float[] values = {Float.NEGATIVE_INFINITY, -3.5f, -1.0f, -Float.MIN_VALUE, -0.0f, 0.0f,
+		                  Float.MIN_VALUE, 0.1f, 1.0f, 2.45f, 3.0f, Float.MAX_VALUE,
+		                  Float.POSITIVE_INFINITY, Float.NaN};
+		double[] splitValues = {-2.25, -0.5, 0.0, Float.MIN_VALUE/2.0, 0.05000000074505806,
+		                        (2.45f+1.0f)/2.0, 1e-45, 2.45, 3.0};
+		for (double splitValue : splitValues) {
+			int threshold = FlatDecisionTree.floatThreshold(splitValue);
+			for (float x : values) {
+				int bits = Float.floatToIntBits(x);
+				int sortable = bits ^ ((bits >> 31) & 0x7fffffff);
+				assertEquals(x+" < "+splitValue, x<splitValue, sortable<threshold);
+			}
+			int intThreshold = FlatDecisionTree.intThreshold(splitValue);
+			for (int x = -4; x<=4; x++) {
+				assertEquals(x+" < "+splitValue, x<splitValue, x<intThreshold);
+			}
+		}
+	}
+
+	@Test public void testSplitCriteria() {
+		int[][] counts = {{10, 0}, {5, 5}, {3, 6, 1}, {0, 7, 2, 9}, {1000, 1, 0}};
+		for (int[] c : counts) {
+			int n = Arrays.stream(c).sum();
+			assertEquals(SplitCriterion.ENTROPY.impurity(c, n), SplitCriterion.FAST_ENTROPY.impurity(c, n), 1e-12);
+		}
+		assertEquals(1.0, SplitCriterion.FAST_ENTROPY.impurity(new int[] {5, 5}, 10), 1e-12);
+		assertEquals(0.0, SplitCriterion.GINI.impurity(new int[] {10, 0}, 10), 0.0);
+		assertEquals(0.5, SplitCriterion.GINI.impurity(new int[] {5, 5}, 10), 0.0);
+		assertEquals(1-(9+36+1)/100.0, SplitCriterion.GINI.impurity(new int[] {3, 6, 1}, 10), 1e-12);
+		int[] left = {3, 6, 1};
+		int[] right = {0, 7, 2};
+		assertEquals(SplitCriterion.ENTROPY.expectedImpurity(left, 10, right, 9),
+		             SplitCriterion.FAST_ENTROPY.expectedImpurity(left, 10, right, 9), 1e-12);
+		// a split that separates nothing gains nothing, despite rounding
+		int[] all = {4, 8};
+		double expected = SplitCriterion.FAST_ENTROPY.expectedImpurity(new int[] {3, 6}, 9, new int[] {1, 2}, 3);
+		assertEquals(0.0, SplitCriterion.FAST_ENTROPY.gain(SplitCriterion.FAST_ENTROPY.impurity(all, 12), expected), 0.0);
+	}
+
+	@Test public void testGiniTree() {
+		List<int[]> data = new ArrayList<>(); // 1st var is perfect splitter, 2nd is bad
+		data.add(new int[] {1,4,99});
+		data.add(new int[] {1,5,99});
+		data.add(new int[] {2,4,100});
+		data.add(new int[] {2,5,100});
+		DecisionTree tree = new DecisionTree(0, 1, 20, SplitCriterion.GINI);
+		tree.setSeed(1); // node samples are random
+		tree.train(DataTable.fromInts(data, null, null));
+		String expecting = "{'var':'x0','val':1.5,'n':4,'E':'0.38','left':{'predict':99,'n':2},'right':{'predict':100,'n':2}}";
+		String result = toTestString(tree);
+		assertEquals(expecting, result);
+		checkPredictions(data, tree);
+	}
 }
@@ -12,13 +12,23 @@ import us.parr.animl.BaseTest;
 import us.parr.animl.classifiers.trees.DecisionTree;
 import us.parr.animl.classifiers.trees.RandomForest;
 import us.parr.animl.data.DataTable;
+import us.parr.animl.data.Datasets;
+import us.parr.animl.validation.CrossValidationResult;
+import us.parr.animl.validation.HyperparameterSearch;
 import us.parr.animl.validation.Validation;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_INT;
 import static us.parr.animl.data.DataTable.VariableType.CATEGORICAL_STRING;
 import static us.parr.animl.data.DataTable.VariableType.NUMERICAL_FLOAT;
@@ -151,14 +161,212 @@ public class TestRFDataSets extends BaseTest {
 		RF_kFoldCrossErrors(Heart_wo_NA_kfold, fileName, data, sizes, kfolds, minLeafSize, 0.015);
 	}
 
+	@Test public void testHeartParallelTrainingSameAsSerial() {
+		DataTable data = heartData();
+		int N = 50;
+		RandomForest serial = new RandomForest(N, 1);
+		serial.setSeed(123);
+		serial.train(data);
+		RandomForest parallel = new RandomForest(N, 1);
+		parallel.setSeed(123);
+		parallel.setNumThreads(64);
+		parallel.train(data);
+		for (int i = 0; i<N; i++) {
+			assertEquals(toTestString(serial.getTree(i)), toTestString(parallel.getTree(i)));
+		}
+	}
+
+	@Test public void testHeartForkJoinTreeSameOnAnyPool() throws Exception {
+		DataTable data = heartData();
+		String[] results = new String[2];
+		int[] poolSizes = {1, 8};
+		for (int i = 0; i<poolSizes.length; i++) {
+			ForkJoinPool pool = new ForkJoinPool(poolSizes[i]);
+			DecisionTree tree = new DecisionTree(0, 1, 100);
+			tree.setSeed(99);
+			tree.setForkThreshold(10);
+			pool.submit(() -> tree.train(new DataTable(data))).get(); // training reorders rows
+			pool.shutdown();
+			results[i] = toTestString(tree);
+		}
+		assertEquals(results[0], results[1]);
+	}
+
+	@Test public void testSeededTreeSameWhenRetrained() {
+		DataTable data = heartData();
+		DecisionTree tree = new DecisionTree(0, 1, 20);
+		tree.setSeed(5);
+		tree.train(new DataTable(data)); // training reorders rows
+		String first = toTestString(tree);
+		tree.train(new DataTable(data));
+		assertEquals(first, toTestString(tree));
+	}
+
+	@Test public void testHeartBatchClassifySameAsClassify() {
+		DataTable data = heartData();
+		RandomForest rf = new RandomForest(50, 1);
+		rf.train(data);
+		int[] expected = new int[data.size()];
+		int[][] rows = new int[data.size()][];
+		for (int i = 0; i<data.size(); i++) {
+			rows[i] = data.getRow(i);
+			expected[i] = rf.classify(rows[i]);
+		}
+		assertArrayEquals(expected, rf.classifyBatch(data));
+		int[] out = new int[rows.length];
+		rf.classify(rows, out);
+		assertArrayEquals(expected, out);
+	}
+
+	@Test public void testBatchClassifySkipsEmptyTrees() {
+		DataTable data = heartData();
+		RandomForest rf = new RandomForest(10, 1, 20, 0.001); // bootstrap samples have no rows
+		rf.train(data);
+		int[] expected = new int[data.size()];
+		int[][] rows = new int[data.size()][];
+		for (int i = 0; i<data.size(); i++) {
+			rows[i] = data.getRow(i);
+			expected[i] = rf.classify(rows[i]);
+			assertEquals(DecisionTree.INVALID_CATEGORY, expected[i]);
+		}
+		assertArrayEquals(expected, rf.classifyBatch(data));
+		int[] out = new int[rows.length];
+		rf.classify(rows, out);
+		assertArrayEquals(expected, out);
+	}
+
+	@Test public void testHeartClassProbabilitiesAverageTrees() {
+		DataTable data = heartData();
+		int N = 20;
+		RandomForest rf = new RandomForest(N, 1);
+		rf.train(data);
+		double[] probabilities = new double[rf.getNumberOfCategories()];
+		for (int i = 0; i<data.size(); i++) {
+			int[] row = data.getRow(i);
+			rf.classProbabilities(row, probabilities);
+			double[] expected = new double[probabilities.length];
+			for (int k = 0; k<N; k++) {
+				Map<Integer, Double> treeProbabilities = rf.getTree(k).classProbabilities(row);
+				for (Integer c : treeProbabilities.keySet()) {
+					expected[c] += treeProbabilities.get(c)/N;
+				}
+			}
+			assertArrayEquals(expected, probabilities, 1e-9);
+			assertEquals(1.0, Arrays.stream(probabilities).sum(), 1e-9);
+		}
+	}
+
+	@Test public void testHeartOutOfBagEstimates() {
+		DataTable data = heartData();
+		int N = 50;
+		RandomForest rf = new RandomForest(N, 1);
+		rf.setSeed(7);
+		rf.train(data);
+		RandomForest parallel = new RandomForest(N, 1);
+		parallel.setSeed(7);
+		parallel.setNumThreads(8);
+		parallel.train(data);
+
+		int[] predictions = rf.getOutOfBagPredictions(data);
+		double[][] probabilities = rf.getOutOfBagClassProbabilities(data);
+		assertArrayEquals(predictions, parallel.getOutOfBagPredictions(data));
+		int yi = data.getPredictedCol();
+		int mismatches = 0;
+		for (int i = 0; i<data.size(); i++) {
+			int[] row = data.getRow(i);
+			List<DecisionTree> oobTrees = new ArrayList<>();
+			double[] expected = new double[rf.getNumberOfCategories()];
+			for (int k = 0; k<N; k++) {
+				if ( !rf.isInBag(k, i) ) {
+					oobTrees.add(rf.getTree(k));
+				}
+			}
+			assertTrue(oobTrees.size()>0); // ~18 expected; none is very unlikely
+			for (DecisionTree tree : oobTrees) {
+				Map<Integer, Double> treeProbabilities = tree.classProbabilities(row);
+				for (Integer c : treeProbabilities.keySet()) {
+					expected[c] += treeProbabilities.get(c)/oobTrees.size();
+				}
+			}
+			assertArrayEquals(expected, probabilities[i], 1e-9);
+			assertEquals(1.0, Arrays.stream(probabilities[i]).sum(), 1e-9);
+			int[] votes = new int[rf.getNumberOfCategories()];
+			for (DecisionTree tree : oobTrees) {
+				votes[tree.classify(row)]++;
+			}
+			assertEquals(votes[predictions[i]], Arrays.stream(votes).max().getAsInt());
+			if ( predictions[i]!=row[yi] ) mismatches++;
+		}
+
+		double error = rf.getErrorEstimate(data);
+		assertEquals((double)mismatches/data.size(), error, 1e-9);
+		assertEquals(error, parallel.getErrorEstimate(data), 1e-9);
+		// should be in the neighborhood of the k-fold error
+		assertEquals(Heart_wo_NA_kfold[1], error, 0.08);
+
+		int[][] confusion = rf.getOutOfBagConfusionMatrix(data);
+		int total = 0;
+		int correct = 0;
+		for (int a = 0; a<confusion.length; a++) {
+			for (int p = 0; p<confusion[a].length; p++) {
+				total += confusion[a][p];
+				if ( a==p ) correct += confusion[a][p];
+			}
+		}
+		assertEquals(data.size(), total);
+		assertEquals(data.size()-mismatches, correct);
+	}
+
+	@Test public void testHeartAddTreesSameAsTrainingAtOnce() {
+		DataTable data = heartData();
+		RandomForest all = new RandomForest(50, 1);
+		all.setSeed(11);
+		all.train(data);
+		RandomForest grown = new RandomForest(30, 1);
+		grown.setSeed(11);
+		grown.train(data);
+		assertEquals(20, grown.addTrees(data, 20));
+		assertEquals(50, grown.getNumberOfTrees());
+		for (int i = 0; i<50; i++) {
+			assertEquals(toTestString(all.getTree(i)), toTestString(grown.getTree(i)));
+		}
+		assertArrayEquals(all.classifyBatch(data), grown.classifyBatch(data));
+		double[] curve = grown.getOutOfBagErrorCurve(data);
+		assertEquals(50, curve.length);
+		assertEquals(all.getErrorEstimate(data), curve[49], 1e-9);
+	}
+
+	@Test public void testHeartEarlyStopping() {
+		DataTable data = heartData();
+		RandomForest all = new RandomForest(500, 1);
+		all.setSeed(11);
+		all.train(data);
+		double[] curve = all.getOutOfBagErrorCurve(data);
+
+		RandomForest rf = new RandomForest(500, 1);
+		rf.setSeed(11);
+		rf.setEarlyStopping(0.01, 10);
+		rf.train(data);
+		int n = rf.getNumberOfTrees();
+		assertTrue(n<500);
+		assertEquals(0, n%10);
+		// stopped at the first check where the error settled
+		assertTrue(Math.abs(curve[n-1]-curve[n-11])<=0.01);
+		for (int k = 20; k<n; k += 10) {
+			assertTrue(Math.abs(curve[k-1]-curve[k-11])>0.01);
+		}
+		for (int i = 0; i<n; i++) {
+			assertEquals(toTestString(all.getTree(i)), toTestString(rf.getTree(i)));
+		}
+	}
+
 	@Ignore @Test public void testHeartOOBError() {
 		DataTable data = heartData();
 		int N = 50;
-		double[] missed = new double[N];
+		RandomForest rf = new RandomForest(N, 1);
+		rf.train(data);
+		double[] missed = rf.getOutOfBagErrorCurve(data); // as if we'd trained 1..N trees
 		for (int k = 1; k<=N; k++) {
-			RandomForest rf = new RandomForest(k, 1);
-			rf.train(data);
-			missed[k-1] = rf.getErrorEstimate(data);
 			System.out.println(missed[k-1]);
 		}
 	}
@@ -189,6 +397,160 @@ public class TestRFDataSets extends BaseTest {
 		RF_kFoldCrossErrors(iris_kfold, fileName, data, sizes, kfolds, minLeafSize, 0.03);
 	}
 
+	@Test public void testParallelkFoldCross() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		List<Integer> rowOrder = data.getRowIndexes().subList(0, data.size());
+		List<Integer> before = new ArrayList<>(rowOrder);
+		Supplier<RandomForest> factory = () -> {
+			RandomForest rf = new RandomForest(20, 20);
+			rf.setSeed(1);
+			return rf;
+		};
+		CrossValidationResult serial = Validation.kFoldCross(factory, 5, data, new Random(1), 1);
+		CrossValidationResult parallel = Validation.kFoldCross(factory, 5, data, new Random(1), 3);
+		assertEquals(before, new ArrayList<>(rowOrder)); // data isn't shuffled
+		assertEquals(5, parallel.getFolds().size());
+		int testRows = 0;
+		int misses = 0;
+		for (int i = 0; i<5; i++) {
+			CrossValidationResult.Fold fold = parallel.getFolds().get(i);
+			assertEquals(data.size(), fold.getNumberOfTrainingRows()+fold.getNumberOfTestRows());
+			assertEquals(serial.getFolds().get(i).getMisses(), fold.getMisses());
+			testRows += fold.getNumberOfTestRows();
+			misses += fold.getMisses();
+		}
+		assertEquals(data.size(), testRows);
+		assertEquals(serial.getError(), parallel.getError(), 0.0);
+		assertTrue(parallel.getError()<0.1);
+		int[][] confusion = parallel.getConfusionMatrix();
+		int correct = 0;
+		int total = 0;
+		for (int a = 0; a<confusion.length; a++) {
+			for (int p = 0; p<confusion.length; p++) {
+				total += confusion[a][p];
+				if ( a==p ) correct += confusion[a][p];
+			}
+		}
+		assertEquals(data.size(), total);
+		assertEquals(data.size()-misses, correct);
+	}
+
+	@Test public void testHyperparameterSearch() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		List<HyperparameterSearch.Candidate> candidates =
+			HyperparameterSearch.grid(new int[] {5, 20}, new int[] {1, 20}, new int[] {20}, new double[] {1.0});
+		candidates.addAll(HyperparameterSearch.treeGrid(new int[] {1}, new int[] {20}));
+		HyperparameterSearch search = new HyperparameterSearch(data, 5, new Random(1));
+		search.setNumThreads(3);
+		List<HyperparameterSearch.Result> results = search.search(candidates);
+		assertEquals(5, results.size());
+		for (HyperparameterSearch.Result r : results) {
+			assertEquals(5, r.getNumberOfFolds());
+		}
+		for (int i = 1; i<results.size(); i++) {
+			assertTrue(results.get(i-1).getError()<=results.get(i).getError());
+		}
+		assertTrue(results.get(0).getCandidate().isForest());
+
+		// same folds and seeds as cross validating the candidate by itself
+		HyperparameterSearch.Candidate c = candidates.get(3);
+		Supplier<RandomForest> factory = () -> {
+			RandomForest rf = new RandomForest(20, 20);
+			rf.setSeed(DecisionTree.SEED);
+			rf.setPresort(true);
+			return rf;
+		};
+		CrossValidationResult cv = Validation.kFoldCross(factory, 5, data, new Random(1), 1);
+		for (HyperparameterSearch.Result r : results) {
+			if ( r.getCandidate()==c ) {
+				assertEquals(cv.getError(), r.getError(), 0.0);
+			}
+		}
+	}
+
+	@Test public void testSuccessiveHalving() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		List<HyperparameterSearch.Candidate> grid =
+			HyperparameterSearch.grid(new int[] {5, 10, 20}, new int[] {1, 5, 20}, new int[] {10, 20}, new double[] {0.5, 1.0});
+		List<HyperparameterSearch.Candidate> candidates = HyperparameterSearch.sample(grid, 9, new Random(1));
+		assertEquals(9, candidates.size());
+		HyperparameterSearch search = new HyperparameterSearch(data, 9, new Random(1));
+		search.setSuccessiveHalving(3);
+		search.setMaxBins(32);
+		List<HyperparameterSearch.Result> results = search.search(candidates);
+		assertEquals(9, results.size());
+		// 9 candidates on 1 fold, best 3 on 3 folds, best 1 on all 9
+		assertEquals(9, results.get(0).getNumberOfFolds());
+		assertEquals(3, results.get(1).getNumberOfFolds());
+		assertEquals(3, results.get(2).getNumberOfFolds());
+		for (int i = 3; i<9; i++) {
+			assertEquals(1, results.get(i).getNumberOfFolds());
+		}
+		assertTrue(results.get(0).getError()<0.1);
+	}
+
+	@Test public void testApproximateLeaveOneOut() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable wine = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable heart = heartData();
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (int seed : new int[] {1, 7, 13}) {
+				Supplier<RandomForest> forests = () -> {
+					RandomForest rf = new RandomForest(20, 1);
+					rf.setSeed(seed);
+					return rf;
+				};
+				int n = wine.size();
+				double approximate = Validation.leaveOneOut(forests, wine, 3)/(double)n;
+				double exact = Validation.exactLeaveOneOut(forests, wine, pool)/(double)n;
+				assertEquals(exact, approximate, 0.03);
+				// big node samples see nearly all rows so retraining barely changes the tree
+				Supplier<DecisionTree> trees = () -> {
+					DecisionTree tree = new DecisionTree(0, 5, 100);
+					tree.setSeed(seed);
+					return tree;
+				};
+				approximate = Validation.leaveOneOut(trees, wine, 3)/(double)n;
+				exact = Validation.exactLeaveOneOut(trees, wine, pool)/(double)n;
+				assertEquals(exact, approximate, 0.01);
+				// otherwise it ignores how splits change without the row; it's optimistic
+				n = heart.size();
+				approximate = Validation.leaveOneOut(trees, heart, 3)/(double)n;
+				exact = Validation.exactLeaveOneOut(trees, heart, pool)/(double)n;
+				assertTrue(approximate<=exact);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test public void testParallelExactLeaveOneOutSameAsSerial() {
+		URL url = this.getClass().getClassLoader().getResource("wine.csv");
+		DataTable wine = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (DataTable data : new DataTable[] {wine, heartData()}) {
+				for (int seed : new int[] {1, 7, 13}) {
+					Supplier<DecisionTree> trees = () -> {
+						DecisionTree tree = new DecisionTree(0, 1, 20);
+						tree.setSeed(seed);
+						return tree;
+					};
+					assertEquals(Validation.leaveOneOut(trees.get(), data),
+					             Validation.exactLeaveOneOut(trees, data, pool));
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
 	@Ignore @Test public void testIrisOOBError() {
 		DataTable data = DataTable.fromStrings(Arrays.asList(TestDataSets.restaurant));
 		int N = 50;
@@ -211,8 +573,7 @@ public class TestRFDataSets extends BaseTest {
 
 	@Ignore @Test public void testConnect4kFoldCrossErrors() {
 		String fileName = "connect-4.csv";
-		URL url = this.getClass().getClassLoader().getResource(fileName);
-		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable data = Datasets.load(fileName);
 		int kfolds = 5;
 		int minLeafSize = 20;
 		RF_kFoldCrossErrors(connect_4_kfold, fileName, data, scikit_sizes, kfolds, minLeafSize, 0.035);
@@ -230,8 +591,7 @@ public class TestRFDataSets extends BaseTest {
 
 	@Test public void testShuttlekFoldCrossErrors() {
 		String fileName = "shuttle.csv";
-		URL url = this.getClass().getClassLoader().getResource(fileName);
-		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable data = Datasets.load(fileName);
 //		DecisionTree.debug = true;
 		int kfolds = 5;
 		int minLeafSize = MIN_LEAF_SIZE;
@@ -297,8 +657,7 @@ public class TestRFDataSets extends BaseTest {
 		int n_estimators = 50;
 		int minLeafSize = 20;
 		double bootstrapSampleRate = 0.5;
-		URL url = this.getClass().getClassLoader().getResource(fileName);
-		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable data = Datasets.load(fileName);
 		int nodeSampleSize = (int)(0.15 * data.size());
 		nodeSampleSize = 111;
 //		DecisionTree.debug = true;
@@ -314,8 +673,7 @@ public class TestRFDataSets extends BaseTest {
 		String fileName = "shuttle.csv";
 		int n_estimators = 100;
 		int minLeafSize = 20;
-		URL url = this.getClass().getClassLoader().getResource(fileName);
-		DataTable data = DataTable.loadCSV(url.getFile(), null, null, null, true);
+		DataTable data = Datasets.load(fileName);
 //		DecisionTree.debug = true;
 		long start = System.nanoTime();
 		RandomForest rf = new RandomForest(n_estimators, minLeafSize);